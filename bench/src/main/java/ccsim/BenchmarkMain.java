@@ -0,0 +1,19 @@
+package ccsim;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line with allocation profiling
+ * (-prof gc) always enabled. Run from the repository root so that data/ is
+ * found.
+ */
+public class BenchmarkMain {
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,99 @@
+package ccsim;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures a complete read miss through the bus, which is dominated by
+ * snooping the other caches. Every other cache holds a share of the blocks
+ * read, so each BusRd has exactly one sharer to respond.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BusSnoopBenchmark {
+  private static final int CACHE_SIZE = 4096;
+  private static final int SHARER_CACHE_SIZE = 4 * CACHE_SIZE;
+  private static final int ASSOCIATIVITY = 2;
+  private static final int BLOCK_SIZE = 32;
+  private static final int NUM_BLOCKS = SHARER_CACHE_SIZE / BLOCK_SIZE;
+
+  @Param({ "4", "16", "64" })
+  int numCaches;
+
+  @Param({ "false", "true" })
+  boolean snoopFilter;
+
+  private Bus bus;
+  private Cache requester;
+  private Processor processor;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    bus = new Bus();
+    if (snoopFilter) {
+      bus.setSnoopFilter(new SnoopFilter(numCaches, BLOCK_SIZE));
+    }
+    // The requester cycles through more blocks than it can hold, so every read misses
+    requester = new MesiCache(bus, CACHE_SIZE, ASSOCIATIVITY, BLOCK_SIZE);
+    processor = new Processor(EmptySource.INSTANCE, requester);
+    Cache[] sharers = new Cache[numCaches - 1];
+    for (int i = 0; i < sharers.length; i++) {
+      sharers[i] = new MesiCache(bus, SHARER_CACHE_SIZE, ASSOCIATIVITY, BLOCK_SIZE);
+      new Processor(EmptySource.INSTANCE, sharers[i]).state = Processor.ProcessorState.DONE;
+    }
+    for (int block = 0; block < NUM_BLOCKS; block++) {
+      int address = block * BLOCK_SIZE;
+      Cache sharer = sharers[block % sharers.length];
+      if (!sharer.getSet(address).isFull()) {
+        sharer.getSet(address).add(sharer.getTag(address), BlockState.MESI_SHARED);
+      }
+    }
+  }
+
+  @Benchmark
+  public long readMiss() {
+    next = (next + 1) % NUM_BLOCKS;
+    processor.state = Processor.ProcessorState.WAITCACHE;
+    requester.read(next * BLOCK_SIZE);
+    requester.tick();
+    long cycles = 0;
+    while (requester.cacheState != Cache.CacheState.READY) {
+      bus.tick();
+      bus.tock();
+      requester.tick();
+      cycles++;
+    }
+    return cycles;
+  }
+
+  /**
+   * Instruction source for processors that only exist to be unstalled
+   */
+  static class EmptySource implements InstructionSource {
+    static final EmptySource INSTANCE = new EmptySource();
+
+    @Override
+    public boolean hasNext() {
+      return false;
+    }
+
+    @Override
+    public Instruction.Type next() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getValue() {
+      return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
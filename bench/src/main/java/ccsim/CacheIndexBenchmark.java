@@ -0,0 +1,47 @@
+package ccsim;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheIndexBenchmark {
+  private static final int NUM_ADDRESSES = 1024;
+
+  @Param({ "16", "32", "64" })
+  int blockSize;
+
+  private Cache cache;
+  private int[] addresses;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    cache = new MesiCache(new Bus(), 4096, 2, blockSize);
+    Random random = new Random(4223);
+    addresses = new int[NUM_ADDRESSES];
+    for (int i = 0; i < NUM_ADDRESSES; i++) {
+      addresses[i] = random.nextInt(Integer.MAX_VALUE);
+    }
+  }
+
+  @Benchmark
+  public int getSetIndex() {
+    return cache.getSetIndex(nextAddress());
+  }
+
+  @Benchmark
+  public int getTag() {
+    return cache.getTag(nextAddress());
+  }
+
+  private int nextAddress() {
+    next = (next + 1) & (NUM_ADDRESSES - 1);
+    return addresses[next];
+  }
+}
@@ -0,0 +1,62 @@
+package ccsim;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheSetBenchmark {
+  @Param({ "1", "4", "16" })
+  int associativity;
+
+  @Param({ "LRU", "PLRU", "RANDOM", "FIFO", "SRRIP", "BRRIP" })
+  String replacement;
+
+  private CacheSet set;
+  private int next;
+  private int nextFreshTag;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    CacheBlocks blocks = new CacheBlocks(1, associativity);
+    blocks.setReplacementPolicy(
+        ReplacementPolicy.create(ReplacementPolicy.Type.valueOf(replacement), 1, associativity, 1));
+    set = blocks.createSets()[0];
+    for (int tag = 0; tag < associativity; tag++) {
+      set.add(tag, BlockState.MESI_SHARED);
+    }
+    next = 0;
+    nextFreshTag = associativity;
+  }
+
+  @Benchmark
+  public boolean contains() {
+    return set.contains(nextTag());
+  }
+
+  @Benchmark
+  public void use() {
+    set.use(nextTag());
+  }
+
+  @Benchmark
+  public int evictAndFill() {
+    int evicted = set.getEvictionTargetTag();
+    set.evict();
+    set.add(nextFreshTag++, BlockState.MESI_SHARED);
+    return evicted;
+  }
+
+  /**
+   * Cycles through the resident tags. Resident tags are always the most recent
+   * associativity tags added, since evictAndFill adds increasing tags.
+   */
+  private int nextTag() {
+    next = next + 1 == associativity ? 0 : next + 1;
+    return nextFreshTag - associativity + next;
+  }
+}
@@ -0,0 +1,59 @@
+package ccsim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * End to end throughput on the bundled bodytrack_four benchmark, reported as
+ * simulated instructions per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SimulatorBenchmark {
+  private static final String INPUT_FILE = "bodytrack_four";
+
+  @Param({ "MESI", "MOESI", "DRAGON" })
+  String protocol;
+
+  @Param({ "CYCLE", "EVENT" })
+  String engine;
+
+  private long traceInstructions;
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long instructions;
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    traceInstructions = 0;
+    for (File file : new File("data/" + INPUT_FILE).listFiles()) {
+      try (InstructionSource source = InstructionSource.open(file)) {
+        while (source.hasNext()) {
+          source.next();
+          traceInstructions++;
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public long simulate(Counters counters) {
+    Simulator simulator = new Simulator(Simulator.Protocol.valueOf(protocol), INPUT_FILE, 1024, 2, 16,
+        Map.of("engine", engine), new PrintStream(OutputStream.nullOutputStream()));
+    simulator.run();
+    counters.instructions += traceInstructions;
+    return simulator.getSimulatorCycle();
+  }
+}
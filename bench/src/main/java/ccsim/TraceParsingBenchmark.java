@@ -0,0 +1,57 @@
+package ccsim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the cost of reading one instruction, as Processor does, from each
+ * trace format and compression of the bundled bodytrack trace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceParsingBenchmark {
+  private static final File TRACE = new File("data/bodytrack_four/bodytrack_2.data");
+
+  @Param({ "TEXT", "FIXED", "DELTA" })
+  String format;
+
+  @Param({ "NONE", "GZIP", "BLOCK" })
+  String compression;
+
+  private File file;
+  private InstructionSource source;
+
+  @Setup
+  public void setUp() throws IOException {
+    file = TRACE;
+    if (!format.equals("TEXT") || !compression.equals("NONE")) {
+      file = File.createTempFile("trace", ".bin");
+      file.deleteOnExit();
+      TraceConverter.convert(TRACE, file,
+          format.equals("TEXT") ? null : BinaryInstructionSource.Encoding.valueOf(format),
+          TraceConverter.Compression.valueOf(compression));
+    }
+    source = InstructionSource.open(file);
+  }
+
+  @TearDown
+  public void tearDown() {
+    source.close();
+  }
+
+  @Benchmark
+  public int getNextInstruction() throws IOException {
+    if (!source.hasNext()) {
+      source.close();
+      source = InstructionSource.open(file);
+    }
+    source.next();
+    return source.getValue();
+  }
+}
@@ -0,0 +1,284 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * ArbitrationQueue holds the caches waiting for the bus and picks which one is
+ * granted it next. Waiting caches are kept as a linked list threaded through
+ * arrays indexed by cache id, with a bitset for membership, so checking and
+ * removing any cache are O(1) at any core count. The list is in request
+ * order, or for OLDEST_FIRST in the order the caches' accesses started, so a
+ * reservation is O(1) except that oldest first walks back past the caches
+ * whose access started later.
+ *
+ * Selecting under FIFO and OLDEST_FIRST takes the first cache in the list
+ * that can be granted, which is O(1) unless caches at the head cannot be
+ * granted yet, such as those whose block a split-transaction bus already has
+ * in flight; it then walks past them, O(waiting) at worst. ROUND_ROBIN and
+ * FIXED_PRIORITY scan the membership bitset 64 caches a word at a time, and
+ * likewise test each waiting cache they pass.
+ *
+ * A cache reserved to the front, which Dragon does for the BusUpd that follows
+ * a write miss, is granted first under every policy.
+ */
+public class ArbitrationQueue {
+  enum Policy {
+    /**
+     * In order of reservation
+     */
+    FIFO,
+
+    /**
+     * The next cache by id after the cache granted last
+     */
+    ROUND_ROBIN,
+
+    /**
+     * The cache with the lowest id
+     */
+    FIXED_PRIORITY,
+
+    /**
+     * The cache whose current access started earliest, counting from its
+     * first reservation rather than from a reservation made after a writeback
+     */
+    OLDEST_FIRST
+  }
+
+  private static final int NONE = -1;
+
+  private Policy policy;
+  private int[] next = new int[0];
+  private int[] previous = new int[0];
+  private long[] members = new long[0];
+  private int head = NONE;
+  private int tail = NONE;
+  private int front = NONE;
+  private int lastGranted = NONE;
+  private int size = 0;
+
+  // Cycle of each cache's current reservation, and of the start of its access
+  private long[] reserveCycles = new long[0];
+  private long[] accessCycles = new long[0];
+  private boolean[] accessing = new boolean[0];
+
+  public ArbitrationQueue(Policy policy) {
+    this.policy = policy;
+  }
+
+  /**
+   * Makes room for cache ids up to id
+   */
+  public void register(int id) {
+    int length = id + 1;
+    if (length <= next.length) {
+      return;
+    }
+    next = Arrays.copyOf(next, length);
+    previous = Arrays.copyOf(previous, length);
+    reserveCycles = Arrays.copyOf(reserveCycles, length);
+    accessCycles = Arrays.copyOf(accessCycles, length);
+    accessing = Arrays.copyOf(accessing, length);
+    members = Arrays.copyOf(members, (length + Long.SIZE - 1) / Long.SIZE);
+  }
+
+  public boolean contains(int id) {
+    return (members[id / Long.SIZE] & (1L << (id % Long.SIZE))) != 0;
+  }
+
+  public boolean isEmpty() {
+    return head == NONE;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Queues a cache behind the caches already waiting, unless it is waiting
+   */
+  public void add(int id, long cycle) {
+    if (contains(id)) {
+      return;
+    }
+    link(id, cycle);
+    insertAfter(id, policy == Policy.OLDEST_FIRST ? findOlder(id) : tail);
+  }
+
+  /**
+   * Queues a cache ahead of every cache waiting, to be granted next. Oldest
+   * first still links it in by when its access started, for when it is not
+   * granted at once.
+   */
+  public void addFirst(int id, long cycle) {
+    link(id, cycle);
+    insertAfter(id, policy == Policy.OLDEST_FIRST ? findOlder(id) : NONE);
+    front = id;
+  }
+
+  /**
+   * Returns the id of the cache to grant the bus to next among those that
+   * grantable accepts, or -1 if there is none.
+   */
+  public int select(IntPredicate grantable) {
+    if (head == NONE) {
+      return NONE;
+    }
+    if (front != NONE && grantable.test(front)) {
+      return front;
+    }
+    switch (policy) {
+      case ROUND_ROBIN:
+        return selectFrom(lastGranted + 1, grantable);
+      case FIXED_PRIORITY:
+        return selectFrom(0, grantable);
+      case OLDEST_FIRST:
+      case FIFO:
+      default:
+        for (int id = head; id != NONE; id = next[id]) {
+          if (grantable.test(id)) {
+            return id;
+          }
+        }
+        return NONE;
+    }
+  }
+
+  /**
+   * Removes a cache granted the bus and returns how many cycles it waited
+   */
+  public long grant(int id, long cycle) {
+    members[id / Long.SIZE] &= ~(1L << (id % Long.SIZE));
+    if (previous[id] == NONE) {
+      head = next[id];
+    } else {
+      next[previous[id]] = next[id];
+    }
+    if (next[id] == NONE) {
+      tail = previous[id];
+    } else {
+      previous[next[id]] = previous[id];
+    }
+    if (front == id) {
+      front = NONE;
+    }
+    lastGranted = id;
+    size--;
+    return cycle - reserveCycles[id];
+  }
+
+  /**
+   * Marks the access of a cache as complete, so that its next reservation
+   * starts a new access
+   */
+  public void completeAccess(int id) {
+    accessing[id] = false;
+  }
+
+  public void writeState(DataOutputStream out) throws IOException {
+    Checkpoint.writeInts(out, next);
+    Checkpoint.writeInts(out, previous);
+    Checkpoint.writeLongs(out, members);
+    Checkpoint.writeLongs(out, reserveCycles);
+    Checkpoint.writeLongs(out, accessCycles);
+    Checkpoint.writeBooleans(out, accessing);
+    out.writeInt(head);
+    out.writeInt(tail);
+    out.writeInt(front);
+    out.writeInt(lastGranted);
+    out.writeInt(size);
+  }
+
+  public void readState(DataInputStream in) throws IOException {
+    Checkpoint.readInts(in, next);
+    Checkpoint.readInts(in, previous);
+    Checkpoint.readLongs(in, members);
+    Checkpoint.readLongs(in, reserveCycles);
+    Checkpoint.readLongs(in, accessCycles);
+    Checkpoint.readBooleans(in, accessing);
+    head = in.readInt();
+    tail = in.readInt();
+    front = in.readInt();
+    lastGranted = in.readInt();
+    size = in.readInt();
+  }
+
+  private void link(int id, long cycle) {
+    size++;
+    members[id / Long.SIZE] |= 1L << (id % Long.SIZE);
+    reserveCycles[id] = cycle;
+    if (!accessing[id]) {
+      accessing[id] = true;
+      accessCycles[id] = cycle;
+    }
+  }
+
+  /**
+   * Returns the last waiting cache whose access started no later than that of
+   * id, or -1 if there is none. This is the tail unless id is coming back
+   * after a writeback.
+   */
+  private int findOlder(int id) {
+    int older = tail;
+    while (older != NONE && accessCycles[older] > accessCycles[id]) {
+      older = previous[older];
+    }
+    return older;
+  }
+
+  /**
+   * Links a cache into the list behind the cache after, or at the head if
+   * after is -1
+   */
+  private void insertAfter(int id, int after) {
+    previous[id] = after;
+    next[id] = after == NONE ? head : next[after];
+    if (after == NONE) {
+      head = id;
+    } else {
+      next[after] = id;
+    }
+    if (next[id] == NONE) {
+      tail = id;
+    } else {
+      previous[next[id]] = id;
+    }
+  }
+
+  /**
+   * Returns the first waiting cache that grantable accepts in id order,
+   * starting from id start and wrapping around.
+   */
+  private int selectFrom(int start, IntPredicate grantable) {
+    if (start >= next.length) {
+      start = 0;
+    }
+    for (int id = nextMember(start); id != NONE; id = nextMember(id + 1)) {
+      if (grantable.test(id)) {
+        return id;
+      }
+    }
+    for (int id = nextMember(0); id != NONE && id < start; id = nextMember(id + 1)) {
+      if (grantable.test(id)) {
+        return id;
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Returns the lowest waiting cache id from id onwards, or -1 if there is none
+   */
+  private int nextMember(int id) {
+    for (int word = id / Long.SIZE; word < members.length; word++) {
+      long bits = members[word];
+      if (word == id / Long.SIZE) {
+        bits &= -1L << (id % Long.SIZE);
+      }
+      if (bits != 0) {
+        return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+      }
+    }
+    return NONE;
+  }
+}
@@ -0,0 +1,185 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * BinaryInstructionSource reads a packed binary trace through a memory mapped
+ * window of the file, or through a buffer refilled from a stream when the trace
+ * is compressed.
+ *
+ * The file starts with an 8 byte header: the magic "CCTR", a version byte, an
+ * encoding byte and two reserved bytes. Each instruction is then a 1 byte
+ * opcode (0 load, 1 store, 2 other) followed by its value. The FIXED encoding
+ * stores the value as a little-endian int. The DELTA encoding stores addresses
+ * as a zigzag varint of the difference from the previous address and cycle
+ * durations as an unsigned varint.
+ */
+public class BinaryInstructionSource implements InstructionSource {
+  public static final int MAGIC = 0x43435452; // "CCTR"
+  public static final byte VERSION = 1;
+  public static final int HEADER_SIZE = 8;
+  public static final int MAX_RECORD_SIZE = 6;
+  private static final long WINDOW_SIZE = 1L << 28;
+  private static final int STREAM_BUFFER_SIZE = 1 << 20;
+
+  enum Encoding {
+    FIXED, DELTA
+  }
+
+  private ReadableByteChannel channel;
+  private FileChannel file;
+  private Encoding encoding;
+  private long fileSize;
+  private long windowStart;
+  private ByteBuffer window;
+  private boolean endOfStream = false;
+
+  // Current instruction
+  private int value;
+  private int previousAddress = 0;
+
+  public BinaryInstructionSource(File file) throws IOException {
+    this.file = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.channel = this.file;
+    this.fileSize = this.file.size();
+    map(0);
+    readHeader(file.getName());
+  }
+
+  public BinaryInstructionSource(ReadableByteChannel channel, String name) throws IOException {
+    this.channel = channel;
+    this.window = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    window.flip();
+    refill();
+    readHeader(name);
+  }
+
+  private void readHeader(String name) throws IOException {
+    if (window.remaining() < HEADER_SIZE || window.order(ByteOrder.BIG_ENDIAN).getInt() != MAGIC) {
+      throw new IOException(name + " is not a binary trace");
+    }
+    window.order(ByteOrder.LITTLE_ENDIAN);
+    byte version = window.get();
+    if (version != VERSION) {
+      throw new IOException(name + " has unsupported binary trace version " + version);
+    }
+    byte encodingOrdinal = window.get();
+    if (encodingOrdinal < 0 || encodingOrdinal >= Encoding.values().length) {
+      throw new IOException(name + " has unknown binary trace encoding " + encodingOrdinal);
+    }
+    this.encoding = Encoding.values()[encodingOrdinal];
+    window.position(window.position() + 2);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return window.hasRemaining() || (!atEnd() && refill());
+  }
+
+  @Override
+  public Instruction.Type next() {
+    if (window.remaining() < MAX_RECORD_SIZE && !atEnd()) {
+      refill();
+    }
+
+    int instType = window.get();
+    Instruction.Type type;
+    switch (instType) {
+      case 0:
+        type = Instruction.Type.LOAD;
+        break;
+      case 1:
+        type = Instruction.Type.STORE;
+        break;
+      case 2:
+        type = Instruction.Type.OTHER;
+        break;
+      default:
+        throw new InputMismatchException("Unknown instruction code :" + instType);
+    }
+
+    switch (encoding) {
+      case FIXED:
+        value = window.getInt();
+        break;
+      case DELTA:
+        if (type == Instruction.Type.OTHER) {
+          value = readVarint();
+        } else {
+          int zigzag = readVarint();
+          value = previousAddress + ((zigzag >>> 1) ^ -(zigzag & 1));
+          previousAddress = value;
+        }
+        break;
+    }
+    return type;
+  }
+
+  @Override
+  public int getValue() {
+    return value;
+  }
+
+  @Override
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private int readVarint() {
+    int result = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = window.get();
+      result |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return result;
+      }
+    }
+    throw new InputMismatchException("Malformed varint in binary trace");
+  }
+
+  private boolean atEnd() {
+    return file != null ? windowStart + window.limit() >= fileSize : endOfStream;
+  }
+
+  /**
+   * Moves the unread bytes to the front of the window and fills the rest,
+   * returning whether any bytes are left to read.
+   */
+  private boolean refill() {
+    if (file != null) {
+      map(windowStart + window.position());
+      return window.hasRemaining();
+    }
+    try {
+      window.compact();
+      while (window.hasRemaining()) {
+        if (channel.read(window) < 0) {
+          endOfStream = true;
+          break;
+        }
+      }
+      window.flip();
+      return window.hasRemaining();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void map(long position) {
+    try {
+      windowStart = position;
+      window = file.map(FileChannel.MapMode.READ_ONLY, position, Long.min(WINDOW_SIZE, fileSize - position));
+      window.order(ByteOrder.LITTLE_ENDIAN);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
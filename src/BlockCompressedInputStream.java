@@ -0,0 +1,173 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * BlockCompressedInputStream reads a block compressed trace, inflating the
+ * blocks ahead of the reader on a shared pool of threads.
+ *
+ * The file starts with a 12 byte header: the magic "CCZB", a version byte,
+ * three reserved bytes and the block size as a big-endian int. Each block is
+ * then its uncompressed length, compressed length and CRC32 as big-endian ints,
+ * followed by the raw deflate data, so every block can be inflated on its own.
+ */
+public class BlockCompressedInputStream extends InputStream {
+  public static final int MAGIC = 0x43435a42; // "CCZB"
+  public static final byte VERSION = 1;
+  public static final int HEADER_SIZE = 12;
+  private static final int READ_BUFFER_SIZE = 1 << 16;
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+  private static final ExecutorService INFLATERS = Executors.newFixedThreadPool(THREADS, r -> {
+    Thread thread = new Thread(r, "trace-inflater");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private DataInputStream in;
+  private String name;
+  private int blockSize;
+  private int readAhead;
+  private Deque<Future<byte[]>> pending = new ArrayDeque<>();
+  private boolean endOfFile = false;
+
+  // Current block
+  private byte[] block = new byte[0];
+  private int position = 0;
+
+  public BlockCompressedInputStream(File file) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE));
+    this.name = file.getName();
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(name + " is not a block compressed trace");
+      }
+      byte version = in.readByte();
+      if (version != VERSION) {
+        throw new IOException(name + " has unsupported block compressed trace version " + version);
+      }
+      in.readFully(new byte[3]);
+      this.blockSize = in.readInt();
+      if (blockSize <= 0) {
+        throw new IOException(name + " has invalid block size " + blockSize);
+      }
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    // Keep every inflater busy, while bounding the inflated blocks held in memory
+    this.readAhead = 2 * THREADS;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position == block.length && !nextBlock()) {
+      return -1;
+    }
+    return block[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (position == block.length && !nextBlock()) {
+      return -1;
+    }
+    int count = Integer.min(length, block.length - position);
+    System.arraycopy(block, position, buffer, offset, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException {
+    pending.forEach(f -> f.cancel(false));
+    pending.clear();
+    in.close();
+  }
+
+  /**
+   * Moves to the next non-empty block, returning false at the end of the file
+   */
+  private boolean nextBlock() throws IOException {
+    do {
+      submitBlocks();
+      Future<byte[]> next = pending.poll();
+      if (next == null) {
+        return false;
+      }
+      block = await(next);
+      position = 0;
+    } while (block.length == 0);
+    submitBlocks();
+    return true;
+  }
+
+  /**
+   * Reads compressed blocks and hands them to the inflaters until readAhead
+   * blocks are pending or the file ends.
+   */
+  private void submitBlocks() throws IOException {
+    while (!endOfFile && pending.size() < readAhead) {
+      int uncompressedLength;
+      try {
+        uncompressedLength = in.readInt();
+      } catch (EOFException e) {
+        endOfFile = true;
+        break;
+      }
+      int compressedLength = in.readInt();
+      int checksum = in.readInt();
+      if (uncompressedLength < 0 || uncompressedLength > blockSize || compressedLength < 0) {
+        throw new IOException(name + " has a corrupt block header");
+      }
+      byte[] compressed = new byte[compressedLength];
+      in.readFully(compressed);
+      pending.add(INFLATERS.submit(() -> inflate(compressed, uncompressedLength, checksum)));
+    }
+  }
+
+  private byte[] inflate(byte[] compressed, int uncompressedLength, int checksum) throws IOException {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(compressed);
+      byte[] data = new byte[uncompressedLength];
+      int length = 0;
+      while (length < uncompressedLength && !inflater.finished()) {
+        int count = inflater.inflate(data, length, uncompressedLength - length);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        length += count;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, length);
+      if (length != uncompressedLength || (int) crc.getValue() != checksum) {
+        throw new IOException(name + " has a corrupt block");
+      }
+      return data;
+    } catch (DataFormatException e) {
+      throw new IOException(name + " has a corrupt block", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private byte[] await(Future<byte[]> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while inflating " + name);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(name + " could not be inflated", e.getCause());
+    }
+  }
+}
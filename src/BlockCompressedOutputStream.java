@@ -0,0 +1,84 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * BlockCompressedOutputStream writes the block compressed trace format read by
+ * BlockCompressedInputStream, deflating every blockSize bytes on their own.
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+  public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+  private DataOutputStream out;
+  private Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private CRC32 crc = new CRC32();
+  private byte[] block;
+  private byte[] compressed;
+  private int length = 0;
+
+  public BlockCompressedOutputStream(OutputStream out, int blockSize) throws IOException {
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.block = new byte[blockSize];
+    this.compressed = new byte[blockSize + blockSize / 1000 + 64];
+    this.out.writeInt(BlockCompressedInputStream.MAGIC);
+    this.out.writeByte(BlockCompressedInputStream.VERSION);
+    this.out.write(new byte[3]);
+    this.out.writeInt(blockSize);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (length == block.length) {
+      writeBlock();
+    }
+    block[length++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int count) throws IOException {
+    while (count > 0) {
+      if (length == block.length) {
+        writeBlock();
+      }
+      int copied = Integer.min(count, block.length - length);
+      System.arraycopy(buffer, offset, block, length, copied);
+      length += copied;
+      offset += copied;
+      count -= copied;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (length > 0) {
+        writeBlock();
+      }
+      out.close();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    deflater.reset();
+    deflater.setInput(block, 0, length);
+    deflater.finish();
+    int compressedLength = 0;
+    while (!deflater.finished()) {
+      if (compressedLength == compressed.length) {
+        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+      }
+      compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+    }
+    crc.reset();
+    crc.update(block, 0, length);
+
+    out.writeInt(length);
+    out.writeInt(compressedLength);
+    out.writeInt((int) crc.getValue());
+    out.write(compressed, 0, compressedLength);
+    length = 0;
+  }
+}
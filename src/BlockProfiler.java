@@ -0,0 +1,211 @@
+import java.util.*;
+
+/**
+ * BlockProfiler finds the blocks behind the coherence traffic. Each kind of
+ * event feeds a Space-Saving sketch, which monitors a fixed number of blocks:
+ * an event on an unmonitored block replaces the block with the lowest count
+ * and inherits that count, so the heaviest blocks are kept while memory stays
+ * bounded however long the trace. A reported count overestimates the true one
+ * by at most the count the block inherited.
+ *
+ * Each monitored block also records which cores caused its events since it
+ * was last taken into the sketch.
+ */
+public class BlockProfiler {
+  enum Metric {
+    INVALIDATIONS("Invalidations"), UPDATES("Updates"), TRANSFERS("Cache-to-Cache Transfers"), MISSES("Misses");
+
+    private String title;
+
+    Metric(String title) {
+      this.title = title;
+    }
+
+    public String getTitle() {
+      return title;
+    }
+  }
+
+  // Blocks monitored per block reported, which bounds the overestimate
+  private static final int SKETCH_FACTOR = 8;
+
+  private int topK;
+  private int blockSize;
+  private Sketch[] sketches = new Sketch[Metric.values().length];
+
+  public BlockProfiler(int topK, int blockSize, int numCores) {
+    this.topK = topK;
+    this.blockSize = blockSize;
+    for (int i = 0; i < sketches.length; i++) {
+      sketches[i] = new Sketch(topK * SKETCH_FACTOR, numCores);
+    }
+  }
+
+  public void record(Metric metric, int address, int core) {
+    sketches[metric.ordinal()].record(address / blockSize, core);
+  }
+
+  /**
+   * The blocks with the most events of a kind, labelled with the block
+   * address and the number of cores that caused them, in descending order
+   */
+  public Map<String, Number> getTopBlocks(Metric metric) {
+    Sketch sketch = sketches[metric.ordinal()];
+    Integer[] slots = new Integer[sketch.size];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = i;
+    }
+    Arrays.sort(slots, (a, b) -> Long.compare(sketch.counts[b], sketch.counts[a]));
+    Map<String, Number> topBlocks = new LinkedHashMap<>();
+    for (int i = 0; i < Integer.min(topK, slots.length); i++) {
+      int slot = slots[i];
+      int numCores = sketch.getNumCores(slot);
+      topBlocks.put(String.format("0x%08x (%d %s)", (long) sketch.blocks[slot] * blockSize, numCores,
+          numCores == 1 ? "core" : "cores"), sketch.counts[slot]);
+    }
+    return topBlocks;
+  }
+
+  /**
+   * Space-Saving sketch over flat arrays. Monitored blocks are found through
+   * an open addressing table and kept in a min-heap by count, so recording an
+   * event takes O(log capacity) and allocates nothing.
+   */
+  private static class Sketch {
+    private static final int EMPTY = 0;
+
+    private int capacity;
+    private int size = 0;
+    private int[] blocks;
+    private long[] counts;
+    private int words;
+    private long[] cores;
+
+    // Min-heap of slots by count, and the position of each slot in it
+    private int[] heap;
+    private int[] heapIndex;
+
+    // Linear probing table of slot + 1, with EMPTY marking free entries
+    private int[] table;
+    private int mask;
+
+    Sketch(int capacity, int numCores) {
+      this.capacity = capacity;
+      this.blocks = new int[capacity];
+      this.counts = new long[capacity];
+      this.words = (numCores + Long.SIZE - 1) / Long.SIZE;
+      this.cores = new long[capacity * words];
+      this.heap = new int[capacity];
+      this.heapIndex = new int[capacity];
+      this.table = new int[Integer.highestOneBit(capacity) * 4];
+      this.mask = table.length - 1;
+    }
+
+    void record(int block, int core) {
+      int slot = find(block);
+      if (slot < 0) {
+        if (size < capacity) {
+          slot = size++;
+          counts[slot] = 0;
+          heap[slot] = slot;
+          heapIndex[slot] = slot;
+          siftUp(slot);
+        } else {
+          // Replace the block with the lowest count, keeping its count
+          slot = heap[0];
+          remove(blocks[slot]);
+          Arrays.fill(cores, slot * words, (slot + 1) * words, 0);
+        }
+        blocks[slot] = block;
+        insert(block, slot);
+      }
+      counts[slot]++;
+      cores[slot * words + core / Long.SIZE] |= 1L << (core % Long.SIZE);
+      siftDown(heapIndex[slot]);
+    }
+
+    int getNumCores(int slot) {
+      int numCores = 0;
+      for (int i = slot * words; i < (slot + 1) * words; i++) {
+        numCores += Long.bitCount(cores[i]);
+      }
+      return numCores;
+    }
+
+    private int hash(int block) {
+      int h = block * 0x9e3779b9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find(int block) {
+      for (int i = hash(block); table[i] != EMPTY; i = (i + 1) & mask) {
+        if (blocks[table[i] - 1] == block) {
+          return table[i] - 1;
+        }
+      }
+      return -1;
+    }
+
+    private void insert(int block, int slot) {
+      int i = hash(block);
+      while (table[i] != EMPTY) {
+        i = (i + 1) & mask;
+      }
+      table[i] = slot + 1;
+    }
+
+    /**
+     * Removes a block from the table, shifting back the entries after it that
+     * would otherwise no longer be found
+     */
+    private void remove(int block) {
+      int i = hash(block);
+      while (blocks[table[i] - 1] != block) {
+        i = (i + 1) & mask;
+      }
+      for (int j = (i + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+        int home = hash(blocks[table[j] - 1]);
+        boolean inPlace = i <= j ? i < home && home <= j : i < home || home <= j;
+        if (!inPlace) {
+          table[i] = table[j];
+          i = j;
+        }
+      }
+      table[i] = EMPTY;
+    }
+
+    private void siftUp(int position) {
+      int slot = heap[position];
+      while (position > 0) {
+        int parent = (position - 1) / 2;
+        if (counts[heap[parent]] <= counts[slot]) {
+          break;
+        }
+        place(heap[parent], position);
+        position = parent;
+      }
+      place(slot, position);
+    }
+
+    private void siftDown(int position) {
+      int slot = heap[position];
+      while (2 * position + 1 < size) {
+        int child = 2 * position + 1;
+        if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+          child++;
+        }
+        if (counts[slot] <= counts[heap[child]]) {
+          break;
+        }
+        place(heap[child], position);
+        position = child;
+      }
+      place(slot, position);
+    }
+
+    private void place(int slot, int position) {
+      heap[position] = slot;
+      heapIndex[slot] = position;
+    }
+  }
+}
@@ -13,4 +13,9 @@ public enum BlockState {
    * Dragon
    */
   DRAGON_EXCLUSIVE, DRAGON_SHARED_CLEAN, DRAGON_SHARED_MODIFIED, DRAGON_MODIFIED,
+
+  /**
+   * Shared last-level cache
+   */
+  LLC_CLEAN, LLC_DIRTY,
 }
@@ -1,107 +1,270 @@
+import java.io.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.IntPredicate;
 
-public class Bus {
+public class Bus implements Interconnect {
   private static final int INVALIDATE_LATENCY_CACHE = 1;
   private static final int WORD_LATENCY_CACHE = 2;
   private static final int BLOCK_LATENCY_MEM = 100;
   private static final int WORD_SIZE = 4;
+  private static final int REQUEST_LATENCY = 1;
+  private static final IntPredicate ANY_CACHE = id -> true;
 
   enum BusState {
     READY, BUSY
   }
 
+  /**
+   * A memory access of a split transaction, which proceeds off the bus after
+   * its request phase. Writebacks have no requester waiting on them, and a
+   * fetch its non-blocking requester has detached from has no transaction.
+   * Completed fetches are pooled and reused.
+   */
+  private static class Fetch {
+    Cache requester;
+    BusTransaction transaction;
+    int block;
+    int remaining;
+
+    Fetch set(Cache requester, BusTransaction transaction, int block, int remaining) {
+      this.requester = requester;
+      this.transaction = transaction;
+      this.block = block;
+      this.remaining = remaining;
+      return this;
+    }
+  }
+
   private List<Cache> caches;
+  private SnoopFilter snoopFilter;
+  private BlockProfiler profiler;
+  private LastLevelCache llc;
+  private long[] sharers;
 
   // State variables
   private BusState busState;
   private int primaryCycles;
   private int secondaryCycles;
-  private List<Cache> requesterQueue;
+  private long cycle = 0;
+  private ArbitrationQueue requesterQueue;
+  private ArbitrationQueue prefetchQueue = new ArbitrationQueue(ArbitrationQueue.Policy.FIFO);
+  private boolean prefetching = false;
+  private IntPredicate grantable =
+      id -> this.maxOutstanding == 0 || !isInFlight(getBlock(caches.get(id).pendingAddress));
   private Cache requester;
-  private Set<Cache> hogged = Set.of();
+  private ArrayList<Cache> hogged = new ArrayList<>(0);
   private BusTransaction result;
 
+  // Split transactions
+  private int maxOutstanding = 0;
+  private int blockSize;
+  private boolean requestPhase = false;
+  private List<Fetch> inFlight = new ArrayList<>();
+  private List<Fetch> responses = new ArrayList<>();
+  private Deque<Fetch> freeFetches = new ArrayDeque<>();
+  private BusTransaction response = new BusTransaction(Transition.BUS_RD, 0, 0);
+
   // Statistics
   private long busTrafficBytes = 0;
   private long busNumInvalidations = 0;
   private long busNumUpdates = 0;
+  private long busNumSnoops = 0;
+  private long busNumFilteredSnoops = 0;
+  private long busCycles = 0;
+  private long busBusyCycles = 0;
+  private long busQueuedCycles = 0;
+  private long busOutstandingSum = 0;
+  private long busOutstandingMax = 0;
+  private long[] busGrants = new long[0];
+  private long[] busWaitCycles = new long[0];
+  private long[] busWaitMax = new long[0];
+  private LatencyHistogram[] busWaitHistograms;
 
   public Bus() {
     caches = new ArrayList<>();
     busState = BusState.READY;
     primaryCycles = 0;
     secondaryCycles = 0;
-    requesterQueue = new ArrayList<>();
+    requesterQueue = new ArbitrationQueue(ArbitrationQueue.Policy.FIFO);
   }
 
-  public void registerCache(Cache cache) {
+  @Override
+  public int registerCache(Cache cache) {
     caches.add(cache);
+    // Every cache may wait for or hog the bus at once, so size for that now
+    // rather than growing the lists during the simulation
+    int id = caches.size() - 1;
+    requesterQueue.register(id);
+    prefetchQueue.register(id);
+    hogged.ensureCapacity(caches.size());
+    busGrants = Arrays.copyOf(busGrants, caches.size());
+    busWaitCycles = Arrays.copyOf(busWaitCycles, caches.size());
+    busWaitMax = Arrays.copyOf(busWaitMax, caches.size());
+    return id;
   }
 
-  public void reserve(Cache cache) {
-    if (!requesterQueue.contains(cache)) {
-      requesterQueue.add(cache);
+  /**
+   * Snoops only the caches that the filter reports as sharers of a block. Must
+   * be set before any cache is registered.
+   */
+  public void setSnoopFilter(SnoopFilter snoopFilter) {
+    if (!caches.isEmpty()) {
+      throw new RuntimeException("Snoop filter must be set before caches are registered");
+    }
+    this.snoopFilter = snoopFilter;
+    this.sharers = new long[snoopFilter.getWords()];
+  }
+
+  /**
+   * Splits memory accesses into a request phase and a response phase, so that
+   * up to maxOutstanding accesses to different blocks are in flight at once.
+   * Requests to a block with an access in flight wait until it completes. A
+   * non-blocking cache is released after the request phase of a fetch, so
+   * that it can fetch the blocks of its other MSHRs while the data is on its
+   * way.
+   */
+  public void setSplitTransactions(int maxOutstanding, int blockSize) {
+    this.maxOutstanding = maxOutstanding;
+    this.blockSize = blockSize;
+    // Every access in flight holds a fetch, so pool them all up front rather
+    // than allocating them during the simulation
+    this.inFlight = new ArrayList<>(maxOutstanding);
+    this.responses = new ArrayList<>(maxOutstanding);
+    this.freeFetches = new ArrayDeque<>(maxOutstanding);
+    for (int i = 0; i < maxOutstanding; i++) {
+      freeFetches.push(new Fetch());
+    }
+  }
+
+  /**
+   * Places a shared last-level cache between the bus and memory. Must be set
+   * before the simulation starts, and cannot be used with split transactions.
+   */
+  public void setLastLevelCache(int cacheSize, int associativity, int blockSize, int hitLatency,
+      LastLevelCache.Inclusion inclusion) {
+    if (maxOutstanding > 0) {
+      throw new RuntimeException("Last-level cache cannot be used with split transactions");
+    }
+    this.llc = new LastLevelCache(caches, cacheSize, associativity, blockSize, hitLatency, inclusion);
+  }
+
+  public LastLevelCache getLastLevelCache() {
+    return llc;
+  }
+
+  /**
+   * Chooses which of the caches waiting for the bus is granted it next. Must
+   * be set before any cache is registered.
+   */
+  public void setArbitrationPolicy(ArbitrationQueue.Policy policy) {
+    if (!caches.isEmpty()) {
+      throw new RuntimeException("Arbitration policy must be set before caches are registered");
+    }
+    this.requesterQueue = new ArbitrationQueue(policy);
+  }
+
+  @Override
+  public SnoopFilter getSnoopFilter() {
+    return snoopFilter;
+  }
+
+  @Override
+  public void setBlockProfiler(BlockProfiler profiler) {
+    this.profiler = profiler;
+  }
+
+  @Override
+  public void enableLatencyHistograms() {
+    busWaitHistograms = new LatencyHistogram[caches.size()];
+    for (int i = 0; i < busWaitHistograms.length; i++) {
+      busWaitHistograms[i] = new LatencyHistogram();
     }
   }
 
+  @Override
+  public void reserve(Cache cache) {
+    requesterQueue.add(cache.getId(), cycle);
+  }
+
+  @Override
   public void reserveToFront(Cache cache) {
-    if (requesterQueue.contains(cache) || !(cache instanceof DragonCache))
+    if (requesterQueue.contains(cache.getId()) || !(cache instanceof DragonCache))
       throw new RuntimeException("Reserve to front should only be called by Dragon after BusRd for PrWrMiss");
 
-    requesterQueue.add(0, cache);
+    requesterQueue.addFirst(cache.getId(), cycle);
   }
 
+  @Override
+  public void reservePrefetch(Cache cache) {
+    prefetchQueue.add(cache.getId(), cycle);
+  }
+
+  @Override
   public void tick() {
     switch (busState) {
       case BUSY:
         break;
       case READY:
-        if (requesterQueue.isEmpty()) {
+        if (!responses.isEmpty()) {
+          startResponse();
           return;
         }
-        requester = requesterQueue.remove(0);
-        BusTransaction transaction = requester.accessBus();
-        switch (transaction.getTransition()) {
-          case BUS_RD:
-            busRd(transaction);
-            break;
-          case BUS_RD_X:
-            busRdX(transaction);
-            busNumInvalidations++;
-            break;
-          case BUS_UPGR:
-            busUpgr(transaction);
-            busNumInvalidations++;
-            break;
-          case FLUSH:
-            flush(transaction);
-            break;
-          case BUS_UPD:
-            busUpd(transaction);
-            busNumUpdates++;
-            break;
-          case FLUSH_OPT:
-            throw new RuntimeException("Some cache directly requested FlushOpt from the bus");
+        int next = nextGrantable();
+        if (next < 0) {
+          grantPrefetch();
+          return;
         }
-        busTrafficBytes += result.getSize();
-        busState = BusState.BUSY;
+        grant(next);
     }
   }
 
+  @Override
   public void tock() {
+    cycle++;
+    busQueuedCycles += requesterQueue.size();
+    if (maxOutstanding > 0) {
+      countDownFetches();
+    }
     switch (busState) {
       case BUSY:
+        busBusyCycles++;
         primaryCycles = Integer.max(primaryCycles - 1, -1);
         secondaryCycles = Integer.max(secondaryCycles - 1, -1);
         if (primaryCycles == 0) {
-          requester.exitBus(result);
+          if (requestPhase) {
+            int latency = Integer.max(BLOCK_LATENCY_MEM - REQUEST_LATENCY - getTransferLatency(result.getSize()), 1);
+            int block = getBlock(result.getAddress());
+            if (requester.detachFetch(result)) {
+              inFlight.add(newFetch(requester, null, block, latency));
+              if (requester.cacheState == Cache.CacheState.READY) {
+                requesterQueue.completeAccess(requester.getId());
+              }
+            } else {
+              inFlight.add(newFetch(requester, result, block, latency));
+            }
+            requestPhase = false;
+          } else if (prefetching) {
+            prefetching = false;
+            requester.exitPrefetch(result);
+          } else if (result == response) {
+            requester.completeFetch(result);
+          } else {
+            if (result.getTransition() == Transition.BUS_RD || result.getTransition() == Transition.BUS_RD_X) {
+              requester.recordFill(result);
+            }
+            requester.exitBus(result);
+            if (requester.cacheState == Cache.CacheState.READY) {
+              requesterQueue.completeAccess(requester.getId());
+            }
+          }
           requester = null;
           result = null;
         }
         if (secondaryCycles == 0) {
-          hogged.stream().forEach(c -> c.unhog());
-          hogged = Set.of();
+          for (int i = 0; i < hogged.size(); i++) {
+            hogged.get(i).unhog();
+          }
+          hogged.clear();
         }
         if (primaryCycles <= 0 && secondaryCycles <= 0) {
           busState = BusState.READY;
@@ -112,44 +275,383 @@ public class Bus {
     }
   }
 
-  public Map<String, Number> getBusStatistics() {
+  @Override
+  public long getSkippableCycles() {
+    long skippable = Long.MAX_VALUE;
+    for (int i = 0; i < inFlight.size(); i++) {
+      skippable = Long.min(skippable, inFlight.get(i).remaining - 1);
+    }
+    switch (busState) {
+      case READY:
+        return responses.isEmpty() && nextGrantable() < 0 && prefetchQueue.isEmpty() ? skippable : 0;
+      case BUSY:
+        if (primaryCycles <= 0 && secondaryCycles <= 0) {
+          return 0;
+        }
+        if (primaryCycles > 0) {
+          skippable = Long.min(skippable, primaryCycles - 1);
+        }
+        if (secondaryCycles > 0) {
+          skippable = Long.min(skippable, secondaryCycles - 1);
+        }
+        return skippable;
+      default:
+        return 0;
+    }
+  }
+
+  @Override
+  public void skipCycles(long cycles) {
+    cycle += cycles;
+    busQueuedCycles += requesterQueue.size() * cycles;
+    if (maxOutstanding > 0) {
+      for (int i = 0; i < inFlight.size(); i++) {
+        inFlight.get(i).remaining -= cycles;
+      }
+      recordOutstanding(cycles);
+    }
+    if (busState == BusState.BUSY) {
+      busBusyCycles += cycles;
+      primaryCycles = (int) Long.max(primaryCycles - cycles, -1);
+      secondaryCycles = (int) Long.max(secondaryCycles - cycles, -1);
+    }
+  }
+
+  @Override
+  public boolean isIdle() {
+    return busState == BusState.READY && requesterQueue.isEmpty() && prefetchQueue.isEmpty() && inFlight.isEmpty()
+        && responses.isEmpty();
+  }
+
+  @Override
+  public void completeFunctionally() {
+    if (busState != BusState.READY || !inFlight.isEmpty() || !responses.isEmpty()) {
+      throw new RuntimeException("Functional transactions need an idle bus");
+    }
+    // Functional transactions are not counted, so the counters they change are
+    // put back and the profiler is left out
+    long trafficBytes = busTrafficBytes;
+    long invalidations = busNumInvalidations;
+    long updates = busNumUpdates;
+    long snoops = busNumSnoops;
+    long filteredSnoops = busNumFilteredSnoops;
+    BlockProfiler savedProfiler = profiler;
+    profiler = null;
+    if (llc != null) {
+      llc.setWarming(true);
+    }
+    for (int next = nextGrantable(); next >= 0; next = nextGrantable()) {
+      requesterQueue.grant(next, cycle);
+      start(next);
+      // Memory completes at once, so nothing is left in flight
+      while (!inFlight.isEmpty()) {
+        freeFetches.push(inFlight.remove(inFlight.size() - 1).set(null, null, 0, 0));
+      }
+      for (int i = 0; i < hogged.size(); i++) {
+        hogged.get(i).unhog();
+      }
+      hogged.clear();
+      Cache served = requester;
+      BusTransaction transaction = result;
+      busState = BusState.READY;
+      primaryCycles = 0;
+      secondaryCycles = 0;
+      requestPhase = false;
+      requester = null;
+      result = null;
+      served.exitBus(transaction);
+      if (served.cacheState == Cache.CacheState.READY) {
+        requesterQueue.completeAccess(served.getId());
+      }
+    }
+    busTrafficBytes = trafficBytes;
+    busNumInvalidations = invalidations;
+    busNumUpdates = updates;
+    busNumSnoops = snoops;
+    busNumFilteredSnoops = filteredSnoops;
+    profiler = savedProfiler;
+    if (llc != null) {
+      llc.setWarming(false);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return "Bus";
+  }
+
+  @Override
+  public void writeState(DataOutputStream out) throws IOException {
+    out.writeByte(busState.ordinal());
+    out.writeInt(primaryCycles);
+    out.writeInt(secondaryCycles);
+    out.writeLong(cycle);
+    requesterQueue.writeState(out);
+    prefetchQueue.writeState(out);
+    out.writeInt(requester == null ? -1 : requester.getId());
+    out.writeBoolean(prefetching);
+    if (result != null && result != response && (requester == null
+        || result != (prefetching ? requester.prefetchTransaction : requester.transaction))) {
+      throw new RuntimeException("Bus is carrying a transaction that is not its requester's");
+    }
+    out.writeBoolean(result != null);
+    out.writeBoolean(result == response);
+    response.writeState(out);
+    out.writeInt(hogged.size());
+    for (int i = 0; i < hogged.size(); i++) {
+      out.writeInt(hogged.get(i).getId());
+    }
+    out.writeBoolean(requestPhase);
+    writeFetches(out, inFlight);
+    writeFetches(out, responses);
+
+    out.writeLong(busTrafficBytes);
+    out.writeLong(busNumInvalidations);
+    out.writeLong(busNumUpdates);
+    out.writeLong(busNumSnoops);
+    out.writeLong(busNumFilteredSnoops);
+    out.writeLong(busCycles);
+    out.writeLong(busBusyCycles);
+    out.writeLong(busQueuedCycles);
+    out.writeLong(busOutstandingSum);
+    out.writeLong(busOutstandingMax);
+    Checkpoint.writeLongs(out, busGrants);
+    Checkpoint.writeLongs(out, busWaitCycles);
+    Checkpoint.writeLongs(out, busWaitMax);
+    if (llc != null) {
+      llc.writeState(out);
+    }
+  }
+
+  @Override
+  public void readState(DataInputStream in) throws IOException {
+    busState = BusState.values()[in.readByte()];
+    primaryCycles = in.readInt();
+    secondaryCycles = in.readInt();
+    cycle = in.readLong();
+    requesterQueue.readState(in);
+    prefetchQueue.readState(in);
+    int requesterId = in.readInt();
+    requester = requesterId < 0 ? null : caches.get(requesterId);
+    prefetching = in.readBoolean();
+    result = in.readBoolean() ? (prefetching ? requester.prefetchTransaction : requester.transaction) : null;
+    if (in.readBoolean()) {
+      result = response;
+    }
+    response.readState(in);
+    hogged.clear();
+    for (int i = in.readInt(); i > 0; i--) {
+      hogged.add(caches.get(in.readInt()));
+    }
+    requestPhase = in.readBoolean();
+    readFetches(in, inFlight);
+    readFetches(in, responses);
+
+    busTrafficBytes = in.readLong();
+    busNumInvalidations = in.readLong();
+    busNumUpdates = in.readLong();
+    busNumSnoops = in.readLong();
+    busNumFilteredSnoops = in.readLong();
+    busCycles = in.readLong();
+    busBusyCycles = in.readLong();
+    busQueuedCycles = in.readLong();
+    busOutstandingSum = in.readLong();
+    busOutstandingMax = in.readLong();
+    Checkpoint.readLongs(in, busGrants);
+    Checkpoint.readLongs(in, busWaitCycles);
+    Checkpoint.readLongs(in, busWaitMax);
+    if (llc != null) {
+      llc.readState(in);
+    }
+  }
+
+  /**
+   * Saves memory accesses in flight. The transaction of a fetch is that of its
+   * requester unless it was detached, and writebacks no longer need theirs.
+   */
+  private void writeFetches(DataOutputStream out, List<Fetch> fetches) throws IOException {
+    out.writeInt(fetches.size());
+    for (int i = 0; i < fetches.size(); i++) {
+      Fetch fetch = fetches.get(i);
+      out.writeInt(fetch.requester == null ? -1 : fetch.requester.getId());
+      out.writeBoolean(fetch.transaction == null);
+      out.writeInt(fetch.block);
+      out.writeInt(fetch.remaining);
+    }
+  }
+
+  private void readFetches(DataInputStream in, List<Fetch> fetches) throws IOException {
+    fetches.clear();
+    for (int i = in.readInt(); i > 0; i--) {
+      int requesterId = in.readInt();
+      Cache fetchRequester = requesterId < 0 ? null : caches.get(requesterId);
+      boolean detached = in.readBoolean();
+      fetches.add(newFetch(fetchRequester, fetchRequester == null || detached ? null : fetchRequester.transaction,
+          in.readInt(), in.readInt()));
+    }
+  }
+
+  @Override
+  public long getTrafficBytes() {
+    return busTrafficBytes;
+  }
+
+  @Override
+  public long getInvalidations() {
+    return busNumInvalidations;
+  }
+
+  @Override
+  public long getUpdates() {
+    return busNumUpdates;
+  }
+
+  @Override
+  public long getBusyCycles() {
+    return busBusyCycles;
+  }
+
+  @Override
+  public long getQueuedCycles() {
+    return busQueuedCycles;
+  }
+
+  @Override
+  public Map<String, Number> getStatistics() {
     Map<String, Number> statistics = new LinkedHashMap<>();
     statistics.put("Bus Traffic (bytes)", busTrafficBytes);
     statistics.put("Invalidations", busNumInvalidations);
     statistics.put("Updates", busNumUpdates);
+    if (snoopFilter != null) {
+      statistics.put("Snoops Sent", busNumSnoops);
+      statistics.put("Snoops Filtered", busNumFilteredSnoops);
+    }
+    if (maxOutstanding > 0) {
+      statistics.put("Outstanding Fetches (avg)", busCycles == 0 ? 0f : (float) busOutstandingSum / busCycles);
+      statistics.put("Outstanding Fetches (max)", busOutstandingMax);
+    }
     return statistics;
   }
 
+  @Override
+  public Map<String, Number> getRequesterStatistics(int id) {
+    Map<String, Number> statistics = new LinkedHashMap<>();
+    statistics.put("Bus Grants", busGrants[id]);
+    statistics.put("Bus Wait (avg)", busGrants[id] == 0 ? 0f : (float) busWaitCycles[id] / busGrants[id]);
+    statistics.put("Bus Wait (max)", busWaitMax[id]);
+    if (busWaitHistograms != null) {
+      busWaitHistograms[id].putPercentiles(statistics, "Bus Wait");
+    }
+    return statistics;
+  }
+
+  /**
+   * Grants the bus to the cache with the given id and starts its transaction
+   */
+  private void grant(int id) {
+    recordWait(id, requesterQueue.grant(id, cycle));
+    start(id);
+  }
+
+  /**
+   * Starts a prefetch as a BusRd for the first cache waiting to prefetch that
+   * still has a block worth fetching. Prefetches are not counted as grants.
+   */
+  private void grantPrefetch() {
+    while (!prefetchQueue.isEmpty()) {
+      int id = prefetchQueue.select(ANY_CACHE);
+      prefetchQueue.grant(id, cycle);
+      requester = caches.get(id);
+      BusTransaction transaction = requester.accessPrefetch();
+      if (transaction != null) {
+        prefetching = true;
+        busRd(transaction);
+        busTrafficBytes += result.getSize();
+        busState = BusState.BUSY;
+        return;
+      }
+      requester = null;
+    }
+  }
+
+  private void start(int id) {
+    requester = caches.get(id);
+    BusTransaction transaction = requester.accessBus();
+    if (profiler != null) {
+      profile(transaction);
+    }
+    switch (transaction.getTransition()) {
+      case BUS_RD:
+        busRd(transaction);
+        break;
+      case BUS_RD_X:
+        busRdX(transaction);
+        busNumInvalidations++;
+        break;
+      case BUS_UPGR:
+        busUpgr(transaction);
+        busNumInvalidations++;
+        break;
+      case FLUSH:
+        flush(transaction);
+        break;
+      case BUS_UPD:
+        busUpd(transaction);
+        busNumUpdates++;
+        break;
+      case FLUSH_OPT:
+        throw new RuntimeException("Some cache directly requested FlushOpt from the bus");
+    }
+    busTrafficBytes += result.getSize();
+    busState = BusState.BUSY;
+  }
+
   private void busRd(BusTransaction transaction) {
     result = transaction;
 
-    boolean shared = caches.stream().filter(c -> c != requester).anyMatch(c -> c.contains(transaction.getAddress()));
+    boolean shared;
+    if (snoopFilter != null) {
+      shared = findSharers(transaction.getAddress());
+    } else {
+      shared = false;
+      for (int i = nextSnoopTarget(0); i >= 0 && !shared; i = nextSnoopTarget(i + 1)) {
+        shared = caches.get(i).contains(transaction.getAddress());
+      }
+    }
     result.setShared(shared);
 
     // Propagate to caches
     boolean foundResponder = false;
-    for (Cache cache : caches) {
-      if (cache == requester)
-        continue;
-
-      Optional<BusTransaction> response = cache.snoop(transaction);
+    for (int i = nextSnoopTarget(0); i >= 0; i = nextSnoopTarget(i + 1)) {
+      Cache cache = caches.get(i);
+      SnoopResult response = cache.snoop(transaction);
       // Fetch from first cache that responds with FlushOpt
-      if (!foundResponder && response.isPresent()) {
+      if (!foundResponder && response != SnoopResult.NONE) {
         foundResponder = true;
-        hogged = Set.of(cache);
+        if (profiler != null) {
+          profiler.record(BlockProfiler.Metric.TRANSFERS, transaction.getAddress(), requester.getId());
+        }
+        hogged.add(cache);
         cache.hog();
         primaryCycles = WORD_LATENCY_CACHE * (transaction.getSize() / WORD_SIZE);
-        if (response.get().getTransition() == Transition.FLUSH_OPT) {
+        if (response == SnoopResult.FLUSH_OPT) {
           secondaryCycles = primaryCycles;
         } else {
-          secondaryCycles = Integer.max(BLOCK_LATENCY_MEM, primaryCycles);
+          secondaryCycles = Integer.max(writeMemory(transaction.getAddress()), primaryCycles);
         }
       }
     }
 
+    result.setSuppliedByCache(foundResponder);
+
     // Fetch from memory if no cache responded
     if (!foundResponder) {
-      primaryCycles = BLOCK_LATENCY_MEM;
+      if (maxOutstanding > 0) {
+        primaryCycles = REQUEST_LATENCY;
+        requestPhase = true;
+      } else {
+        primaryCycles = readMemory(transaction.getAddress());
+      }
     }
   }
 
@@ -158,11 +660,11 @@ public class Bus {
   }
 
   private void busUpgr(BusTransaction transaction) {
-    for (Cache cache : caches) {
-      if (cache == requester) {
-        continue;
-      }
-      cache.snoop(transaction);
+    if (snoopFilter != null) {
+      findSharers(transaction.getAddress());
+    }
+    for (int i = nextSnoopTarget(0); i >= 0; i = nextSnoopTarget(i + 1)) {
+      caches.get(i).snoop(transaction);
     }
     result = transaction;
     primaryCycles = INVALIDATE_LATENCY_CACHE;
@@ -170,23 +672,36 @@ public class Bus {
 
   private void flush(BusTransaction transaction) {
     result = transaction;
-    primaryCycles = BLOCK_LATENCY_MEM;
+    if (maxOutstanding > 0) {
+      // Data goes with the request, memory stays busy with the block afterwards
+      primaryCycles = getTransferLatency(transaction.getSize());
+      inFlight.add(newFetch(null, transaction, getBlock(transaction.getAddress()),
+          BLOCK_LATENCY_MEM - primaryCycles));
+    } else {
+      primaryCycles = writeMemory(transaction.getAddress());
+    }
   }
 
   private void busUpd(BusTransaction transaction) {
     result = transaction;
 
-    Set<Cache> containsAddr = caches.stream().filter(c -> c != requester && c.contains(transaction.getAddress()))
-        .collect(Collectors.toSet());
-    boolean shared = !containsAddr.isEmpty();
+    if (snoopFilter != null) {
+      findSharers(transaction.getAddress());
+    }
+    for (int i = nextSnoopTarget(0); i >= 0; i = nextSnoopTarget(i + 1)) {
+      Cache cache = caches.get(i);
+      if (snoopFilter != null || cache.contains(transaction.getAddress())) {
+        hogged.add(cache);
+      }
+    }
+    boolean shared = !hogged.isEmpty();
     result.setShared(shared);
 
     if (shared) {
-      hogged = containsAddr;
-      hogged.stream().forEach(c -> {
-        c.snoop(transaction);
-        c.hog();
-      });
+      for (int i = 0; i < hogged.size(); i++) {
+        hogged.get(i).snoop(transaction);
+        hogged.get(i).hog();
+      }
       primaryCycles = WORD_LATENCY_CACHE * (transaction.getSize() / WORD_SIZE);
       secondaryCycles = primaryCycles;
     } else {
@@ -194,4 +709,185 @@ public class Bus {
       result.setSize(0);
     }
   }
+
+  /**
+   * Reads a block from below the bus, returning the latency
+   */
+  private int readMemory(int address) {
+    if (llc == null) {
+      return BLOCK_LATENCY_MEM;
+    }
+    return llc.read(address) ? llc.getHitLatency() : llc.getHitLatency() + BLOCK_LATENCY_MEM;
+  }
+
+  /**
+   * Writes a dirty block below the bus, returning the latency
+   */
+  private int writeMemory(int address) {
+    if (llc == null) {
+      return BLOCK_LATENCY_MEM;
+    }
+    llc.write(address);
+    return llc.getHitLatency();
+  }
+
+  private void profile(BusTransaction transaction) {
+    int address = transaction.getAddress();
+    int core = requester.getId();
+    switch (transaction.getTransition()) {
+      case BUS_RD:
+        profiler.record(BlockProfiler.Metric.MISSES, address, core);
+        break;
+      case BUS_RD_X:
+        profiler.record(BlockProfiler.Metric.MISSES, address, core);
+        profiler.record(BlockProfiler.Metric.INVALIDATIONS, address, core);
+        break;
+      case BUS_UPGR:
+        profiler.record(BlockProfiler.Metric.INVALIDATIONS, address, core);
+        break;
+      case BUS_UPD:
+        profiler.record(BlockProfiler.Metric.UPDATES, address, core);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Loads the sharers of address other than the requester from the snoop
+   * filter and counts the snoops it saves. Returns whether there are any.
+   */
+  private boolean findSharers(int address) {
+    snoopFilter.getSharers(address, sharers);
+    int requesterId = requester.getId();
+    sharers[requesterId / Long.SIZE] &= ~(1L << (requesterId % Long.SIZE));
+    int numSharers = 0;
+    for (long word : sharers) {
+      numSharers += Long.bitCount(word);
+    }
+    busNumSnoops += numSharers;
+    busNumFilteredSnoops += caches.size() - 1 - numSharers;
+    return numSharers > 0;
+  }
+
+  /**
+   * Returns the id of the first cache from id onwards that has to be snooped,
+   * or -1 if there is none. With a snoop filter these are the sharers found by
+   * the last findSharers(), otherwise every cache except the requester.
+   */
+  private int nextSnoopTarget(int id) {
+    if (snoopFilter == null) {
+      for (int i = id; i < caches.size(); i++) {
+        if (caches.get(i) != requester) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    for (int word = id / Long.SIZE; word < sharers.length; word++) {
+      long bits = sharers[word];
+      if (word == id / Long.SIZE) {
+        bits &= -1L << (id % Long.SIZE);
+      }
+      if (bits != 0) {
+        return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the id of the cache the arbitration policy grants the bus to next,
+   * or -1 if there is none. With split transactions, nothing is granted while
+   * the maximum number of accesses are in flight, and requests to blocks with
+   * an access in flight are passed over.
+   */
+  private int nextGrantable() {
+    if (maxOutstanding > 0 && inFlight.size() + responses.size() >= maxOutstanding) {
+      return -1;
+    }
+    return requesterQueue.select(grantable);
+  }
+
+  private void recordWait(int id, long wait) {
+    busGrants[id]++;
+    busWaitCycles[id] += wait;
+    busWaitMax[id] = Long.max(busWaitMax[id], wait);
+    if (busWaitHistograms != null) {
+      busWaitHistograms[id].record(wait);
+    }
+  }
+
+  private boolean isInFlight(int block) {
+    for (int i = 0; i < inFlight.size(); i++) {
+      if (inFlight.get(i).block == block) {
+        return true;
+      }
+    }
+    for (int i = 0; i < responses.size(); i++) {
+      if (responses.get(i).block == block) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Fetch newFetch(Cache requester, BusTransaction transaction, int block, int remaining) {
+    Fetch fetch = freeFetches.isEmpty() ? new Fetch() : freeFetches.pop();
+    return fetch.set(requester, transaction, block, remaining);
+  }
+
+  /**
+   * Counts down accesses in flight, moving completed fetches to the responses
+   * waiting for the bus and retiring completed writebacks.
+   */
+  private void countDownFetches() {
+    for (int i = 0; i < inFlight.size();) {
+      Fetch fetch = inFlight.get(i);
+      fetch.remaining--;
+      if (fetch.remaining != 0) {
+        i++;
+        continue;
+      }
+      inFlight.remove(i);
+      if (fetch.requester != null) {
+        responses.add(fetch);
+      } else {
+        freeFetches.push(fetch.set(null, null, 0, 0));
+      }
+    }
+    recordOutstanding(1);
+  }
+
+  /**
+   * Response phase of a fetch: the data is transferred to the requester, which
+   * exits the bus once it arrives.
+   */
+  private void startResponse() {
+    Fetch fetch = responses.remove(0);
+    requester = fetch.requester;
+    result = fetch.transaction;
+    if (result == null) {
+      // The requester already holds the block and only waits for its data
+      result = response.set(Transition.BUS_RD, fetch.block * blockSize, blockSize);
+    }
+    freeFetches.push(fetch.set(null, null, 0, 0));
+    primaryCycles = getTransferLatency(result.getSize());
+    busState = BusState.BUSY;
+  }
+
+  private void recordOutstanding(long cycles) {
+    int outstanding = inFlight.size() + responses.size();
+    busCycles += cycles;
+    busOutstandingSum += outstanding * cycles;
+    busOutstandingMax = Long.max(busOutstandingMax, outstanding);
+  }
+
+  private int getBlock(int address) {
+    return address / blockSize;
+  }
+
+  private int getTransferLatency(int size) {
+    return Integer.max(WORD_LATENCY_CACHE * (size / WORD_SIZE), 1);
+  }
 }
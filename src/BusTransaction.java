@@ -1,8 +1,11 @@
+import java.io.*;
+
 public class BusTransaction {
   private Transition transition;
   private int address;
   private int size;
   private boolean shared;
+  private boolean suppliedByCache;
 
   public BusTransaction(Transition transition, int address, int size) {
     this.transition = transition;
@@ -11,6 +14,19 @@ public class BusTransaction {
     this.shared = false;
   }
 
+  /**
+   * Reuses this transaction for a new request, so that caches do not allocate
+   * one per bus access
+   */
+  public BusTransaction set(Transition transition, int address, int size) {
+    this.transition = transition;
+    this.address = address;
+    this.size = size;
+    this.shared = false;
+    this.suppliedByCache = false;
+    return this;
+  }
+
   public Transition getTransition() {
     return transition;
   }
@@ -34,4 +50,31 @@ public class BusTransaction {
   public boolean getShared() {
     return shared;
   }
+
+  /**
+   * Whether another cache rather than memory supplied the block
+   */
+  public void setSuppliedByCache(boolean suppliedByCache) {
+    this.suppliedByCache = suppliedByCache;
+  }
+
+  public boolean isSuppliedByCache() {
+    return suppliedByCache;
+  }
+
+  public void writeState(DataOutputStream out) throws IOException {
+    out.writeByte(transition.ordinal());
+    out.writeInt(address);
+    out.writeInt(size);
+    out.writeBoolean(shared);
+    out.writeBoolean(suppliedByCache);
+  }
+
+  public void readState(DataInputStream in) throws IOException {
+    transition = Transition.values()[in.readByte()];
+    address = in.readInt();
+    size = in.readInt();
+    shared = in.readBoolean();
+    suppliedByCache = in.readBoolean();
+  }
 }
\ No newline at end of file
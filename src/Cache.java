@@ -1,3 +1,4 @@
+import java.io.*;
 import java.util.*;
 
 public abstract class Cache {
@@ -5,24 +6,53 @@ public abstract class Cache {
     READY,
 
     // Reading
-    PENDING_READ, READING_WAITBUS, READING_PENDING_FLUSH, READING,
+    PENDING_READ, READING_WAITBUS, READING_PENDING_FLUSH, READING, READING_PENDING_PREFETCH,
 
     // Writing
-    PENDING_WRITE, WRITING_WAITBUS, WRITING_PENDING_FLUSH, WRITING,
+    PENDING_WRITE, WRITING_WAITBUS, WRITING_PENDING_FLUSH, WRITING, WRITING_PENDING_PREFETCH,
+  }
+
+  enum FillSource {
+    NONE, CACHE, MEMORY
   }
 
   protected static final int WORD_SIZE = 4;
 
   protected Processor processor;
-  protected Bus bus;
+  protected Interconnect bus;
+  protected int id;
   protected int blockSize;
   protected int numSets;
-  protected List<CacheSet> sets;
+  protected CacheBlocks blocks;
+  protected CacheSet[] sets;
   protected boolean hoggedByBus;
+  protected BusTransaction transaction = new BusTransaction(Transition.BUS_RD, 0, 0);
+  protected BusTransaction prefetchTransaction = new BusTransaction(Transition.BUS_RD, 0, 0);
+  protected boolean deferReservations = false;
+  private boolean reservationDeferred = false;
+  private boolean prefetchReservationDeferred = false;
+  private Prefetcher prefetcher;
+
+  // Non-blocking mode, where accesses that miss wait in the MSHRs while the
+  // processor goes on. The access the processor issued last waits for the
+  // cache to take it, and the state machine serves the oldest MSHR. On a
+  // split-transaction bus, it moves on to the next MSHR once the fetch of the
+  // last one is in flight, and the blocks still being fetched are pinned so
+  // that no later miss evicts them before their data arrives.
+  private MshrFile mshrs;
+  private boolean issuePending = false;
+  private int issuedAddress;
+  private boolean issuedWrite;
+  private long issuedCycle;
+  private boolean servingIssued = false;
+  private boolean servingMiss = false;
+  private boolean detachingFetch = false;
 
   // State variables
   protected CacheState cacheState;
   protected int pendingAddress;
+  protected FillSource fillSource = FillSource.NONE;
+  protected int prefetchBlock = -1;
 
   // Statistics
   protected long cacheNumTotalAccesses = 0;
@@ -30,28 +60,91 @@ public abstract class Cache {
   protected long cacheNumMisses = 0;
   protected long cacheNumPrivateAccesses = 0;
   protected long cacheNumSharedAccesses = 0;
+  protected long prefetchNumIssued = 0;
+  protected long prefetchNumUseful = 0;
+  protected long prefetchNumLate = 0;
+  protected long prefetchNumDropped = 0;
+  protected long prefetchTrafficBytes = 0;
+  protected long cacheNumHitsUnderMiss = 0;
+  protected long cacheNumSecondaryMisses = 0;
+  protected long cacheMaxMissesInFlight = 0;
 
-  public Cache(Bus bus, int cacheSize, int associativity, int blockSize) {
+  public Cache(Interconnect bus, int cacheSize, int associativity, int blockSize) {
     this.bus = bus;
     this.blockSize = blockSize;
     this.numSets = cacheSize / (blockSize * associativity);
-    this.sets = new ArrayList<>();
-    for (int i = 0; i < this.numSets; i++) {
-      this.sets.add(new CacheSet(associativity));
+    this.blocks = new CacheBlocks(numSets, associativity);
+    this.sets = blocks.createSets();
+    this.id = bus.registerCache(this);
+    if (bus.getSnoopFilter() != null) {
+      blocks.attachSnoopFilter(bus.getSnoopFilter(), id);
     }
-    bus.registerCache(this);
     this.hoggedByBus = false;
     this.cacheState = CacheState.READY;
   }
 
+  /**
+   * Replaces the default LRU policy, before the first access
+   */
+  public void setReplacementPolicy(ReplacementPolicy.Type type, long seed) {
+    blocks.setReplacementPolicy(ReplacementPolicy.create(type, numSets, blocks.associativity, seed));
+  }
+
+  /**
+   * Leaves the eviction count unchanged while warming functionally, since
+   * evictions happen when the interconnect serves the access rather than in
+   * warm()
+   */
+  public void setWarming(boolean warming) {
+    blocks.setWarming(warming);
+  }
+
+  /**
+   * Fetches the blocks that prefetcher predicts while the bus has no demand
+   * access to serve. Must be set before the first access.
+   */
+  public void setPrefetcher(Prefetcher prefetcher) {
+    this.prefetcher = prefetcher;
+  }
+
+  /**
+   * Makes the cache non-blocking, with the given number of MSHRs that each
+   * hold up to accessesPerEntry accesses. Must be set before the first
+   * access.
+   */
+  public void setMshrs(int entries, int accessesPerEntry) {
+    this.mshrs = new MshrFile(entries, accessesPerEntry, blockSize);
+  }
+
   public void registerProcessor(Processor processor) {
     this.processor = processor;
   }
 
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Whether the cache has no access of the processor in progress
+   */
+  public boolean isReady() {
+    return cacheState == CacheState.READY;
+  }
+
   public boolean contains(int address) {
     return getSet(address).contains(getTag(address));
   }
 
+  /**
+   * Returns the state of the block containing address, or null if the block is
+   * not cached
+   */
+  public BlockState getBlockState(int address) {
+    CacheSet set = getSet(address);
+    int tag = getTag(address);
+    return set.contains(tag) ? set.getState(tag) : null;
+  }
+
   public void hog() {
     hoggedByBus = true;
   }
@@ -69,33 +162,103 @@ public abstract class Cache {
     statistics.put("Cache Hits", cacheNumHits);
     statistics.put("Cache Misses", cacheNumMisses);
     statistics.put("Cache Miss Rate (%)", (float) cacheNumMisses / cacheNumTotalAccesses * 100);
+    statistics.put("Cache Evictions", blocks.getEvictions());
     statistics.put("Private Data Accesses", cacheNumPrivateAccesses);
     statistics.put("Shared Data Accesses", cacheNumSharedAccesses);
     statistics.put("Private Data Accesses (%)", (float) cacheNumPrivateAccesses / cacheNumHits * 100);
     statistics.put("Shared Data Accesses (%)", (float) cacheNumSharedAccesses / cacheNumHits * 100);
+    if (prefetcher != null) {
+      long covered = prefetchNumUseful + prefetchNumLate;
+      statistics.put("Prefetches Issued", prefetchNumIssued);
+      statistics.put("Useful Prefetches", prefetchNumUseful);
+      statistics.put("Late Prefetches", prefetchNumLate);
+      statistics.put("Dropped Prefetches", prefetchNumDropped);
+      statistics.put("Prefetch Accuracy (%)", (float) covered / prefetchNumIssued * 100);
+      statistics.put("Prefetch Coverage (%)", (float) covered / (cacheNumMisses + prefetchNumUseful) * 100);
+      statistics.put("Prefetch Lateness (%)", (float) prefetchNumLate / covered * 100);
+      statistics.put("Prefetch Traffic (bytes)", prefetchTrafficBytes);
+    }
+    if (mshrs != null) {
+      statistics.put("Hits Under Miss", cacheNumHitsUnderMiss);
+      statistics.put("Secondary Misses", cacheNumSecondaryMisses);
+      statistics.put("Misses In Flight (max)", cacheMaxMissesInFlight);
+    }
     return statistics;
   }
 
+  /**
+   * Starts the pending access like tick(), but without counting it in the
+   * statistics
+   */
+  public void warm() {
+    long totalAccesses = cacheNumTotalAccesses;
+    long hits = cacheNumHits;
+    long misses = cacheNumMisses;
+    long privateAccesses = cacheNumPrivateAccesses;
+    long sharedAccesses = cacheNumSharedAccesses;
+    if (!hoggedByBus) {
+      performPending();
+    }
+    cacheNumTotalAccesses = totalAccesses;
+    cacheNumHits = hits;
+    cacheNumMisses = misses;
+    cacheNumPrivateAccesses = privateAccesses;
+    cacheNumSharedAccesses = sharedAccesses;
+  }
+
   public void tick() {
     if (hoggedByBus)
       return;
+    if (mshrs != null) {
+      acceptIssued();
+      startMiss();
+    }
+    performPending();
+  }
+
+  /**
+   * Starts the access the state machine has pending, if any
+   */
+  private void performPending() {
     switch (cacheState) {
       case PENDING_READ:
-        prRd(pendingAddress);
+        if (prefetcher == null || !observeAccess()) {
+          prRd(pendingAddress);
+        }
         break;
       case PENDING_WRITE:
-        prWr(pendingAddress);
+        if (prefetcher == null || !observeAccess()) {
+          prWr(pendingAddress);
+        }
         break;
       default:
         break;
     }
   }
 
+  /**
+   * Number of upcoming cycles in which tick() does nothing. A cache waiting on
+   * the bus is woken by the bus, so only a pending access keeps it busy.
+   */
+  public long getSkippableCycles() {
+    if (mshrs != null && !hoggedByBus && (issuePending || canStartMiss())) {
+      return 0;
+    }
+    switch (cacheState) {
+      case PENDING_READ:
+      case PENDING_WRITE:
+        return hoggedByBus ? Long.MAX_VALUE : 0;
+      default:
+        return Long.MAX_VALUE;
+    }
+  }
+
   public void read(int address) {
     if (cacheState != CacheState.READY) {
       throw new RuntimeException("Read operation called when cache is not in READY state");
     }
     pendingAddress = address;
+    fillSource = FillSource.NONE;
     cacheState = CacheState.PENDING_READ;
   }
 
@@ -104,23 +267,464 @@ public abstract class Cache {
       throw new RuntimeException("Write operation called when cache is not in READY state");
     }
     pendingAddress = address;
+    fillSource = FillSource.NONE;
     cacheState = CacheState.PENDING_WRITE;
   }
 
+  /**
+   * Hands the cache an access in non-blocking mode. The cache calls accept()
+   * on the processor once the access hits or takes an MSHR, and
+   * completeAccess() once it is done.
+   */
+  public void issue(int address, boolean write, long cycle) {
+    if (issuePending) {
+      throw new RuntimeException("Access issued before the cache took the previous one");
+    }
+    issuePending = true;
+    issuedAddress = address;
+    issuedWrite = write;
+    issuedCycle = cycle;
+  }
+
+  /**
+   * Records where the block of the pending access came from, called by the
+   * interconnect before it completes a BusRd or BusRdX
+   */
+  public void recordFill(BusTransaction result) {
+    fillSource = result.isSuppliedByCache() ? FillSource.CACHE : FillSource.MEMORY;
+  }
+
+  /**
+   * Where the block of the current access came from, NONE if it was already
+   * in this cache
+   */
+  public FillSource getFillSource() {
+    return fillSource;
+  }
+
+  /**
+   * Called by a split-transaction bus once the request phase of a fetch is
+   * over. A non-blocking cache that fetches the block for the MSHR it serves
+   * fills the block now and goes on to its next MSHR, while the accesses of
+   * this one complete in completeFetch() once the data arrives. Until then
+   * the block is pinned against replacement. Returns whether it did;
+   * otherwise the bus calls exitBus() once the data arrives.
+   */
+  public boolean detachFetch(BusTransaction result) {
+    if (!servingMiss || !(cacheState == CacheState.READING && result.getTransition() == Transition.BUS_RD
+        || cacheState == CacheState.WRITING && result.getTransition() == Transition.BUS_RD_X)) {
+      return false;
+    }
+    recordFill(result);
+    detachingFetch = true;
+    exitBus(result);
+    detachingFetch = false;
+    getSet(result.getAddress()).pin(getTag(result.getAddress()));
+    return true;
+  }
+
+  /**
+   * Completes the MSHR that detachFetch() left waiting for the data of result,
+   * and unpins its block unless a snoop has invalidated it meanwhile
+   */
+  public void completeFetch(BusTransaction result) {
+    int entry = mshrs.getFetching(result.getAddress() / blockSize);
+    if (entry < 0) {
+      throw new RuntimeException("Data arrived for a block with no MSHR waiting on it");
+    }
+    getSet(result.getAddress()).unpin(getTag(result.getAddress()));
+    completeMshr(entry, result.isSuppliedByCache() ? FillSource.CACHE : FillSource.MEMORY);
+  }
+
+  /**
+   * Returns the prefetch to make now that the bus is granted to it, or null if
+   * no predicted block is still worth fetching. Blocks already cached or being
+   * fetched on demand are skipped, as are blocks whose fill would have to
+   * write back a dirty block.
+   */
+  public BusTransaction accessPrefetch() {
+    for (int block = prefetcher.poll(); block >= 0; block = prefetcher.poll()) {
+      if (block > Integer.MAX_VALUE / blockSize) {
+        continue;
+      }
+      int address = block * blockSize;
+      CacheSet set = getSet(address);
+      int tag = getTag(address);
+      if (set.contains(tag) || (cacheState != CacheState.READY && block == pendingAddress / blockSize)
+          || (set.isFull() && isDirty(set.getState(set.getEvictionTargetTag())))) {
+        continue;
+      }
+      prefetchBlock = block;
+      prefetchNumIssued++;
+      prefetchTrafficBytes += blockSize;
+      return prefetchTransaction.set(Transition.BUS_RD, address, blockSize);
+    }
+    return null;
+  }
+
+  /**
+   * Fills a prefetched block in the state a read miss would have left it in.
+   * The fill is dropped if its victim was written since the prefetch started.
+   * A demand access that missed on the block while it was being prefetched is
+   * then replayed, without counting it again.
+   */
+  public void exitPrefetch(BusTransaction result) {
+    int address = result.getAddress();
+    CacheSet set = getSet(address);
+    int tag = getTag(address);
+    prefetchBlock = -1;
+    if (set.isFull() && !isDirty(set.getState(set.getEvictionTargetTag()))) {
+      set.evict();
+    }
+    boolean filled = !set.isFull();
+    if (filled) {
+      set.add(tag, getPrefetchState(result.getShared()));
+    } else {
+      prefetchNumDropped++;
+    }
+    switch (cacheState) {
+      case READING_PENDING_PREFETCH:
+        recordFill(result);
+        replayAccess(CacheState.PENDING_READ);
+        break;
+      case WRITING_PENDING_PREFETCH:
+        recordFill(result);
+        replayAccess(CacheState.PENDING_WRITE);
+        break;
+      default:
+        if (filled) {
+          set.markPrefetched(tag);
+        }
+        break;
+    }
+    if (!prefetcher.isEmpty()) {
+      bus.reservePrefetch(this);
+    }
+  }
+
+  public void writeState(DataOutputStream out) throws IOException {
+    out.writeByte(cacheState.ordinal());
+    out.writeInt(pendingAddress);
+    out.writeByte(fillSource.ordinal());
+    out.writeBoolean(hoggedByBus);
+    transaction.writeState(out);
+    out.writeLong(cacheNumTotalAccesses);
+    out.writeLong(cacheNumHits);
+    out.writeLong(cacheNumMisses);
+    out.writeLong(cacheNumPrivateAccesses);
+    out.writeLong(cacheNumSharedAccesses);
+    blocks.writeState(out);
+    if (prefetcher != null) {
+      prefetchTransaction.writeState(out);
+      out.writeInt(prefetchBlock);
+      out.writeLong(prefetchNumIssued);
+      out.writeLong(prefetchNumUseful);
+      out.writeLong(prefetchNumLate);
+      out.writeLong(prefetchNumDropped);
+      out.writeLong(prefetchTrafficBytes);
+      prefetcher.writeState(out);
+    }
+    if (mshrs != null) {
+      out.writeBoolean(issuePending);
+      out.writeInt(issuedAddress);
+      out.writeBoolean(issuedWrite);
+      out.writeLong(issuedCycle);
+      out.writeBoolean(servingMiss);
+      out.writeLong(cacheNumHitsUnderMiss);
+      out.writeLong(cacheNumSecondaryMisses);
+      out.writeLong(cacheMaxMissesInFlight);
+      mshrs.writeState(out);
+    }
+  }
+
+  public void readState(DataInputStream in) throws IOException {
+    cacheState = CacheState.values()[in.readByte()];
+    pendingAddress = in.readInt();
+    fillSource = FillSource.values()[in.readByte()];
+    hoggedByBus = in.readBoolean();
+    transaction.readState(in);
+    cacheNumTotalAccesses = in.readLong();
+    cacheNumHits = in.readLong();
+    cacheNumMisses = in.readLong();
+    cacheNumPrivateAccesses = in.readLong();
+    cacheNumSharedAccesses = in.readLong();
+    blocks.readState(in);
+    if (prefetcher != null) {
+      prefetchTransaction.readState(in);
+      prefetchBlock = in.readInt();
+      prefetchNumIssued = in.readLong();
+      prefetchNumUseful = in.readLong();
+      prefetchNumLate = in.readLong();
+      prefetchNumDropped = in.readLong();
+      prefetchTrafficBytes = in.readLong();
+      prefetcher.readState(in);
+    }
+    if (mshrs != null) {
+      issuePending = in.readBoolean();
+      issuedAddress = in.readInt();
+      issuedWrite = in.readBoolean();
+      issuedCycle = in.readLong();
+      servingMiss = in.readBoolean();
+      cacheNumHitsUnderMiss = in.readLong();
+      cacheNumSecondaryMisses = in.readLong();
+      cacheMaxMissesInFlight = in.readLong();
+      mshrs.readState(in);
+    }
+  }
+
+  /**
+   * Drops the block containing address because the shared last-level cache
+   * evicted it, returning whether the dropped block was dirty
+   */
+  public boolean backInvalidate(int address) {
+    CacheSet set = getSet(address);
+    int tag = getTag(address);
+    if (!set.contains(tag)) {
+      return false;
+    }
+    boolean dirty = isDirty(set.getState(tag));
+    set.invalidate(tag);
+    return dirty;
+  }
+
+  /**
+   * Only records reservations made from tick() until flushReservation(), so
+   * that caches ticked in parallel reserve the bus in a deterministic order.
+   */
+  public void setDeferReservations(boolean deferReservations) {
+    this.deferReservations = deferReservations;
+  }
+
+  public void flushReservation() {
+    if (reservationDeferred) {
+      reservationDeferred = false;
+      bus.reserve(this);
+    }
+    if (prefetchReservationDeferred) {
+      prefetchReservationDeferred = false;
+      bus.reservePrefetch(this);
+    }
+  }
+
+  /**
+   * Reserves the bus on a processor access that missed
+   */
+  protected void reserveBus() {
+    if (deferReservations) {
+      reservationDeferred = true;
+    } else {
+      bus.reserve(this);
+    }
+  }
+
+  /**
+   * Completes the access being performed, called by the protocol once it hit
+   * or its transactions are done. In non-blocking mode this is either the
+   * issued access hitting under a miss, or the MSHR being served together
+   * with the accesses merged into it.
+   */
+  protected void completeAccess() {
+    if (servingIssued) {
+      processor.completeAccess(issuedCycle, issuedWrite, FillSource.NONE);
+    } else if (servingMiss) {
+      servingMiss = false;
+      if (detachingFetch) {
+        mshrs.detach();
+      } else {
+        completeMshr(mshrs.getStarted(), fillSource);
+      }
+    } else {
+      processor.unstall();
+    }
+  }
+
+  private void completeMshr(int entry, FillSource source) {
+    for (int i = 0; i < mshrs.getAccesses(entry); i++) {
+      processor.completeAccess(mshrs.getIssueCycle(entry, i), mshrs.isStore(entry, i), source);
+    }
+    mshrs.complete(entry);
+  }
+
+  /**
+   * Takes the access issued by the processor if it hits, merges into an MSHR
+   * for its block or finds a free MSHR. Otherwise it is tried again next
+   * cycle. Secondary misses are counted as misses when they merge.
+   */
+  private void acceptIssued() {
+    if (!issuePending) {
+      return;
+    }
+    if (mshrs.contains(issuedAddress / blockSize)) {
+      if (mshrs.merge(issuedAddress, issuedWrite, issuedCycle)) {
+        cacheNumTotalAccesses++;
+        cacheNumMisses++;
+        cacheNumSecondaryMisses++;
+        issuePending = false;
+        processor.accept();
+        return;
+      }
+    } else if (isHit(issuedAddress, issuedWrite)) {
+      if (!mshrs.isEmpty()) {
+        cacheNumHitsUnderMiss++;
+      }
+      issuePending = false;
+      processor.accept();
+      performIssued();
+      return;
+    }
+    if (mshrs.isFull()) {
+      return;
+    }
+    mshrs.allocate(issuedAddress, issuedWrite, issuedCycle);
+    issuePending = false;
+    processor.accept();
+  }
+
+  /**
+   * Performs a hit on the issued access alongside the miss the state machine
+   * may be serving, which is put back afterwards
+   */
+  private void performIssued() {
+    CacheState savedState = cacheState;
+    int savedAddress = pendingAddress;
+    FillSource savedSource = fillSource;
+    cacheState = issuedWrite ? CacheState.PENDING_WRITE : CacheState.PENDING_READ;
+    pendingAddress = issuedAddress;
+    fillSource = FillSource.NONE;
+    servingIssued = true;
+    performPending();
+    servingIssued = false;
+    cacheState = savedState;
+    pendingAddress = savedAddress;
+    fillSource = savedSource;
+  }
+
+  /**
+   * Starts serving the next MSHR once the previous one is done or fetching
+   */
+  private void startMiss() {
+    if (!canStartMiss()) {
+      return;
+    }
+    pendingAddress = mshrs.start();
+    boolean write = mshrs.isWrite();
+    cacheMaxMissesInFlight = Long.max(cacheMaxMissesInFlight, mshrs.getFetchingCount() + 1);
+    fillSource = FillSource.NONE;
+    servingMiss = true;
+    cacheState = write ? CacheState.PENDING_WRITE : CacheState.PENDING_READ;
+  }
+
+  /**
+   * Whether the state machine is free to serve the next MSHR. It waits while
+   * the block would have to evict one from a set whose blocks are all pinned
+   * until their fetches complete.
+   */
+  private boolean canStartMiss() {
+    if (cacheState != CacheState.READY || !mshrs.hasWaiting()) {
+      return false;
+    }
+    int address = mshrs.getWaitingAddress();
+    CacheSet set = getSet(address);
+    return set.contains(getTag(address)) || !set.isPinned();
+  }
+
+  private boolean isHit(int address, boolean write) {
+    CacheSet set = getSet(address);
+    int tag = getTag(address);
+    return set.contains(tag) && (!write || isWritable(set.getState(tag)));
+  }
+
+  /**
+   * Trains the prefetcher on the pending access and queues for the bus to
+   * prefetch what it predicts. Returns whether the access missed on the block
+   * being prefetched, and now waits for the prefetch to complete instead.
+   */
+  private boolean observeAccess() {
+    if (blocks.warming) {
+      return false;
+    }
+    CacheSet set = getSet(pendingAddress);
+    int tag = getTag(pendingAddress);
+    int block = pendingAddress / blockSize;
+    boolean merged = false;
+    if (set.contains(tag)) {
+      if (!set.usePrefetched(tag)) {
+        return false;
+      }
+      prefetchNumUseful++;
+    } else if (block == prefetchBlock) {
+      prefetchNumLate++;
+      cacheNumTotalAccesses++;
+      cacheNumMisses++;
+      cacheState = cacheState == CacheState.PENDING_READ ? CacheState.READING_PENDING_PREFETCH
+          : CacheState.WRITING_PENDING_PREFETCH;
+      merged = true;
+    }
+    prefetcher.train(block);
+    if (!prefetcher.isEmpty()) {
+      if (deferReservations) {
+        prefetchReservationDeferred = true;
+      } else {
+        bus.reservePrefetch(this);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Starts the pending access again from the interconnect, reserving it at
+   * once as exitBus() does, even while reservations from tick() are deferred
+   */
+  private void replayAccess(CacheState pendingState) {
+    boolean defer = deferReservations;
+    deferReservations = false;
+    cacheState = pendingState;
+    warm();
+    deferReservations = defer;
+  }
+
   public abstract BusTransaction accessBus();
 
+  /**
+   * Address of the block the next transaction of the pending access is for,
+   * which the directory routes the request by. Protocols that write a dirty
+   * victim back before fetching return the victim while it is still cached.
+   */
+  public int getRequestAddress() {
+    return pendingAddress;
+  }
+
   public abstract void exitBus(BusTransaction result);
 
-  public abstract Optional<BusTransaction> snoop(BusTransaction transaction);
+  public abstract SnoopResult snoop(BusTransaction transaction);
 
   protected abstract void prRd(int address);
 
   protected abstract void prWr(int address);
 
-  protected abstract void updateCacheStatistics(Optional<BlockState> state);
+  /**
+   * Counts an access to a block in state, or a miss on an uncached block if
+   * state is null
+   */
+  protected abstract void updateCacheStatistics(BlockState state);
+
+  /**
+   * Whether a block in state holds data that memory does not
+   */
+  protected abstract boolean isDirty(BlockState state);
+
+  /**
+   * Whether a write to a block in state hits without a transaction
+   */
+  protected abstract boolean isWritable(BlockState state);
+
+  /**
+   * State of a block filled by a BusRd, given whether another cache shares it
+   */
+  protected abstract BlockState getPrefetchState(boolean shared);
 
   protected CacheSet getSet(int address) {
-    return sets.get(getSetIndex(address));
+    return sets[getSetIndex(address)];
   }
 
   protected int getSetIndex(int address) {
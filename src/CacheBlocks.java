@@ -0,0 +1,101 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * CacheBlocks stores the blocks of every set of a cache in flat primitive
+ * arrays indexed by set * associativity + way, so that lookups and replacement
+ * updates neither box tags nor allocate.
+ */
+public class CacheBlocks {
+  static final byte EMPTY = -1;
+
+  final int numSets;
+  final int associativity;
+  final int[] tags;
+  final byte[] states;
+  final int[] sizes;
+  final boolean[] prefetched;
+  final boolean[] pinned;
+  ReplacementPolicy policy;
+  long evictions = 0;
+  boolean warming = false;
+  SnoopFilter snoopFilter;
+  int cacheId;
+
+  public CacheBlocks(int numSets, int associativity) {
+    this.numSets = numSets;
+    this.associativity = associativity;
+    this.tags = new int[numSets * associativity];
+    this.states = new byte[numSets * associativity];
+    this.sizes = new int[numSets];
+    this.prefetched = new boolean[numSets * associativity];
+    this.pinned = new boolean[numSets * associativity];
+    this.policy = new LruReplacement(numSets, associativity, true);
+    Arrays.fill(states, EMPTY);
+  }
+
+  /**
+   * Replaces the default LRU policy, before any block is added
+   */
+  public void setReplacementPolicy(ReplacementPolicy policy) {
+    this.policy = policy;
+  }
+
+  /**
+   * Leaves the eviction count unchanged while warming functionally
+   */
+  public void setWarming(boolean warming) {
+    this.warming = warming;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Keeps filter up to date with the blocks held by the cache with the given id
+   */
+  public void attachSnoopFilter(SnoopFilter filter, int cacheId) {
+    this.snoopFilter = filter;
+    this.cacheId = cacheId;
+  }
+
+  public void writeState(DataOutputStream out) throws IOException {
+    Checkpoint.writeInts(out, tags);
+    Checkpoint.writeBytes(out, states);
+    Checkpoint.writeInts(out, sizes);
+    Checkpoint.writeBooleans(out, prefetched);
+    Checkpoint.writeBooleans(out, pinned);
+    out.writeLong(evictions);
+    policy.writeState(out);
+  }
+
+  /**
+   * Restores the blocks saved by writeState() into empty sets, adding them to
+   * the snoop filter
+   */
+  public void readState(DataInputStream in) throws IOException {
+    Checkpoint.readInts(in, tags);
+    Checkpoint.readBytes(in, states);
+    Checkpoint.readInts(in, sizes);
+    Checkpoint.readBooleans(in, prefetched);
+    Checkpoint.readBooleans(in, pinned);
+    evictions = in.readLong();
+    policy.readState(in);
+    if (snoopFilter != null) {
+      for (int index = 0; index < states.length; index++) {
+        if (states[index] != EMPTY) {
+          snoopFilter.addSharer(tags[index] * numSets + index / associativity, cacheId);
+        }
+      }
+    }
+  }
+
+  public CacheSet[] createSets() {
+    CacheSet[] sets = new CacheSet[numSets];
+    for (int i = 0; i < numSets; i++) {
+      sets[i] = new CacheSet(this, i);
+    }
+    return sets;
+  }
+}
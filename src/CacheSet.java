@@ -1,70 +1,181 @@
-import java.util.*;
-
 /**
- * CacheSet represents a cache set with a LRU eviction scheme. State is an enum
- * representing the states of a cache coherence protocol.
+ * CacheSet represents a cache set, evicting blocks as chosen by the
+ * replacement policy of its CacheBlocks among the blocks that are not
+ * pinned. State is an enum representing the
+ * states of a cache coherence protocol. The blocks of the set live in a slice
+ * of the arrays of its CacheBlocks.
  */
 public class CacheSet {
+  private static final BlockState[] STATES = BlockState.values();
+
+  private CacheBlocks blocks;
+  private int setIndex;
+  private int base;
   private int numBlocks;
-  private Map<Integer, BlockState> blocks;
 
-  CacheSet(int associativity) {
-    this.numBlocks = associativity;
-    this.blocks = new LinkedHashMap<Integer, BlockState>(this.numBlocks);
+  CacheSet(CacheBlocks blocks, int setIndex) {
+    this.blocks = blocks;
+    this.setIndex = setIndex;
+    this.numBlocks = blocks.associativity;
+    this.base = setIndex * numBlocks;
   }
 
   public boolean contains(int tag) {
-    return blocks.containsKey(tag);
+    return find(tag) >= 0;
   }
 
   public BlockState getState(int tag) {
-    if (!contains(tag)) {
+    int index = find(tag);
+    if (index < 0) {
       throw new RuntimeException("CacheSet does not contain tag, unable to get state");
     }
-    return blocks.get(tag);
+    return STATES[blocks.states[index]];
   }
 
   public void add(int tag, BlockState state) {
     if (contains(tag)) {
       throw new RuntimeException("CacheSet already contains tag, unable to add");
     }
-    blocks.put(tag, state);
+    if (isFull()) {
+      throw new RuntimeException("CacheSet is full, unable to add");
+    }
+    int index = base;
+    while (blocks.states[index] != CacheBlocks.EMPTY) {
+      index++;
+    }
+    blocks.tags[index] = tag;
+    blocks.states[index] = (byte) state.ordinal();
+    blocks.policy.fill(index);
+    blocks.prefetched[index] = false;
+    blocks.pinned[index] = false;
+    blocks.sizes[setIndex]++;
+    if (blocks.snoopFilter != null) {
+      blocks.snoopFilter.addSharer(getBlock(tag), blocks.cacheId);
+    }
   }
 
   public int getEvictionTargetTag() {
     if (!isFull()) {
       throw new RuntimeException("Requesting eviction target when cache set not full");
     }
-    return blocks.keySet().iterator().next();
+    return blocks.tags[blocks.policy.findVictim(setIndex, blocks.pinned)];
   }
 
   public void evict() {
     if (!isFull()) {
       throw new RuntimeException("Evicting when cache set not full");
     }
-    blocks.remove(getEvictionTargetTag());
+    remove(blocks.policy.findVictim(setIndex, blocks.pinned));
+    if (!blocks.warming) {
+      blocks.evictions++;
+    }
   }
 
   public void use(int tag) {
-    if (!contains(tag)) {
+    int index = find(tag);
+    if (index < 0) {
       throw new RuntimeException("CacheSet does not contain tag, unable to use");
     }
-    BlockState state = blocks.remove(tag);
-    blocks.put(tag, state);
+    blocks.policy.touch(index);
+  }
+
+  /**
+   * Marks a block as prefetched until its first use
+   */
+  public void markPrefetched(int tag) {
+    int index = find(tag);
+    if (index < 0) {
+      throw new RuntimeException("CacheSet does not contain tag, unable to mark prefetched");
+    }
+    blocks.prefetched[index] = true;
+  }
+
+  /**
+   * Clears the prefetched mark of a block, returning whether it was set
+   */
+  public boolean usePrefetched(int tag) {
+    int index = find(tag);
+    if (index < 0 || !blocks.prefetched[index]) {
+      return false;
+    }
+    blocks.prefetched[index] = false;
+    return true;
+  }
+
+  /**
+   * Keeps a block from being evicted until it is unpinned or invalidated
+   */
+  public void pin(int tag) {
+    int index = find(tag);
+    if (index < 0) {
+      throw new RuntimeException("CacheSet does not contain tag, unable to pin");
+    }
+    blocks.pinned[index] = true;
+  }
+
+  public void unpin(int tag) {
+    int index = find(tag);
+    if (index >= 0) {
+      blocks.pinned[index] = false;
+    }
+  }
+
+  /**
+   * Whether the set is full and every block in it is pinned, so that nothing
+   * can be evicted to make room
+   */
+  public boolean isPinned() {
+    if (!isFull()) {
+      return false;
+    }
+    for (int index = base; index < base + numBlocks; index++) {
+      if (!blocks.pinned[index]) {
+        return false;
+      }
+    }
+    return true;
   }
 
   public void update(int tag, BlockState state) {
-    if (!contains(tag)) {
+    int index = find(tag);
+    if (index < 0) {
       throw new RuntimeException("CacheSet does not contain tag, unable to update");
     }
-    blocks.put(tag, state);
+    blocks.states[index] = (byte) state.ordinal();
   }
 
   public void invalidate(int tag) {
-    blocks.remove(tag);
+    int index = find(tag);
+    if (index >= 0) {
+      remove(index);
+    }
   }
 
   public boolean isFull() {
-    return blocks.size() == numBlocks;
+    return blocks.sizes[setIndex] == numBlocks;
+  }
+
+  private int find(int tag) {
+    int[] tags = blocks.tags;
+    byte[] states = blocks.states;
+    for (int index = base; index < base + numBlocks; index++) {
+      if (tags[index] == tag && states[index] != CacheBlocks.EMPTY) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  private void remove(int index) {
+    blocks.states[index] = CacheBlocks.EMPTY;
+    blocks.pinned[index] = false;
+    blocks.sizes[setIndex]--;
+    if (blocks.snoopFilter != null) {
+      blocks.snoopFilter.removeSharer(getBlock(blocks.tags[index]), blocks.cacheId);
+    }
+  }
+
+  private int getBlock(int tag) {
+    return tag * blocks.numSets + setIndex;
   }
 }
@@ -0,0 +1,146 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Checkpoint saves the state of a simulation between two cycles and restores
+ * it into a freshly built simulation of the same configuration, which then
+ * runs on exactly as the saved simulation would have.
+ *
+ * A checkpoint is the magic "CCCK", a version byte and a deflated body: the
+ * configuration it was taken with, the cycle, and the state of every
+ * processor, every cache and the interconnect, each written by its own
+ * writeState(). Traces are saved as the number of instructions each processor
+ * has read, and are skipped forward on restore.
+ */
+public class Checkpoint {
+  public static final int MAGIC = 0x4343434b; // "CCCK"
+  public static final byte VERSION = 8;
+
+  /**
+   * Writes a checkpoint, replacing file only once it is complete so that a
+   * crash while writing leaves the previous checkpoint intact
+   */
+  public static void save(File file, String configuration, long cycle, List<Processor> processors,
+      List<Cache> caches, Interconnect bus) throws IOException {
+    File partial = new File(file.getPath() + ".partial");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(partial))) {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      DataOutputStream body = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(out)));
+      body.writeUTF(configuration);
+      body.writeLong(cycle);
+      body.writeInt(processors.size());
+      for (Processor processor : processors) {
+        processor.writeState(body);
+      }
+      for (Cache cache : caches) {
+        cache.writeState(body);
+      }
+      bus.writeState(body);
+      body.close();
+    }
+    if (!partial.renameTo(file)) {
+      file.delete();
+      if (!partial.renameTo(file)) {
+        throw new IOException("could not replace " + file);
+      }
+    }
+  }
+
+  /**
+   * Restores a checkpoint into a simulation that has not started, returning
+   * the cycle it was taken at
+   */
+  public static long restore(File file, String configuration, List<Processor> processors, List<Cache> caches,
+      Interconnect bus) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file.getName() + " is not a checkpoint");
+      }
+      byte version = in.readByte();
+      if (version != VERSION) {
+        throw new IOException(file.getName() + " has unsupported checkpoint version " + version);
+      }
+      DataInputStream body = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in)));
+      String saved = body.readUTF();
+      if (!saved.equals(configuration)) {
+        throw new IOException(file.getName() + " was taken with " + saved + ", not " + configuration);
+      }
+      long cycle = body.readLong();
+      if (body.readInt() != processors.size()) {
+        throw new IOException(file.getName() + " has a different number of processors");
+      }
+      for (Processor processor : processors) {
+        processor.readState(body);
+      }
+      for (Cache cache : caches) {
+        cache.readState(body);
+      }
+      bus.readState(body);
+      return cycle;
+    } catch (EOFException e) {
+      throw new IOException(file.getName() + " is truncated", e);
+    }
+  }
+
+  static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  static void readInts(DataInputStream in, int[] values) throws IOException {
+    checkLength(in, values.length);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readInt();
+    }
+  }
+
+  static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+    out.writeInt(values.length);
+    for (long value : values) {
+      out.writeLong(value);
+    }
+  }
+
+  static void readLongs(DataInputStream in, long[] values) throws IOException {
+    checkLength(in, values.length);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readLong();
+    }
+  }
+
+  static void writeBytes(DataOutputStream out, byte[] values) throws IOException {
+    out.writeInt(values.length);
+    out.write(values);
+  }
+
+  static void readBytes(DataInputStream in, byte[] values) throws IOException {
+    checkLength(in, values.length);
+    in.readFully(values);
+  }
+
+  static void writeBooleans(DataOutputStream out, boolean[] values) throws IOException {
+    out.writeInt(values.length);
+    for (boolean value : values) {
+      out.writeBoolean(value);
+    }
+  }
+
+  static void readBooleans(DataInputStream in, boolean[] values) throws IOException {
+    checkLength(in, values.length);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readBoolean();
+    }
+  }
+
+  private static void checkLength(DataInputStream in, int length) throws IOException {
+    int saved = in.readInt();
+    if (saved != length) {
+      throw new IOException("checkpoint holds " + saved + " values where " + length + " were expected");
+    }
+  }
+}
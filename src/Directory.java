@@ -0,0 +1,602 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Directory replaces the snooping bus with home-node directories for the
+ * directory-based MESI protocol. Blocks are interleaved across one home node
+ * per cache, and each home node looks up at most one request per cycle.
+ * Instead of broadcasting, a home node sends point-to-point forwards and
+ * invalidations to the caches its sharer table lists for the block. Requests
+ * to different blocks proceed in parallel, while requests to the same block
+ * are serialized. A request is routed by the block it is for, which is the
+ * victim when a cache writes a dirty block back before its miss.
+ *
+ * State changes at other caches are applied when the home node processes a
+ * request, and the requester completes after the latency of the messages the
+ * request exchanges.
+ */
+public class Directory implements Interconnect {
+  private static final int HOP_LATENCY = 4;
+  private static final int LOOKUP_LATENCY = 2;
+  private static final int WORD_LATENCY = 2;
+  private static final int BLOCK_LATENCY_MEM = 100;
+  private static final int WORD_SIZE = 4;
+
+  /**
+   * A request travelling from a cache to its home node
+   */
+  private static class Request {
+    Cache cache;
+    int block;
+    long arrivalCycle;
+  }
+
+  /**
+   * A transaction processed by its home node, which completes once its
+   * messages have been delivered
+   */
+  private static class InFlight {
+    Cache requester;
+    BusTransaction transaction;
+    int block;
+    long completeCycle;
+  }
+
+  private List<Cache> caches;
+  private SnoopFilter sharerTable;
+  private BlockProfiler profiler;
+  private long[] sharers;
+  private int blockSize;
+
+  // State variables
+  private long cycle = 0;
+  private List<Request> requests;
+  private List<InFlight> inFlight;
+  private boolean[] homeBusy;
+  private Deque<Request> freeRequests = new ArrayDeque<>();
+  private Deque<InFlight> freeInFlight = new ArrayDeque<>();
+
+  // Statistics
+  private long directoryTrafficBytes = 0;
+  private long directoryNumMessages = 0;
+  private long directoryNumLookups = 0;
+  private long directoryNumInvalidations = 0;
+  private long directoryBusyCycles = 0;
+  private long directoryQueuedCycles = 0;
+  private long[] directoryRequests;
+  private long[] directoryWaitCycles;
+  private long[] directoryWaitMax;
+  private LatencyHistogram[] directoryWaitHistograms;
+
+  public Directory(int numCaches, int blockSize) {
+    this.caches = new ArrayList<>();
+    this.sharerTable = new SnoopFilter(numCaches, blockSize);
+    this.sharers = new long[sharerTable.getWords()];
+    this.blockSize = blockSize;
+    this.requests = new ArrayList<>(numCaches);
+    this.inFlight = new ArrayList<>(numCaches);
+    this.homeBusy = new boolean[numCaches];
+    this.directoryRequests = new long[numCaches];
+    this.directoryWaitCycles = new long[numCaches];
+    this.directoryWaitMax = new long[numCaches];
+  }
+
+  @Override
+  public int registerCache(Cache cache) {
+    caches.add(cache);
+    // Each cache has at most one request waiting or in flight, so pool one of
+    // each per cache rather than allocating them during the simulation
+    freeRequests.push(new Request());
+    freeInFlight.push(new InFlight());
+    return caches.size() - 1;
+  }
+
+  @Override
+  public SnoopFilter getSnoopFilter() {
+    return sharerTable;
+  }
+
+  @Override
+  public void setBlockProfiler(BlockProfiler profiler) {
+    this.profiler = profiler;
+  }
+
+  @Override
+  public void enableLatencyHistograms() {
+    directoryWaitHistograms = new LatencyHistogram[directoryRequests.length];
+    for (int i = 0; i < directoryWaitHistograms.length; i++) {
+      directoryWaitHistograms[i] = new LatencyHistogram();
+    }
+  }
+
+  @Override
+  public void reserve(Cache cache) {
+    for (int i = 0; i < requests.size(); i++) {
+      if (requests.get(i).cache == cache) {
+        return;
+      }
+    }
+    Request request = freeRequests.isEmpty() ? new Request() : freeRequests.pop();
+    request.cache = cache;
+    request.block = sharerTable.getBlock(cache.getRequestAddress());
+    request.arrivalCycle = cycle + HOP_LATENCY;
+    requests.add(request);
+  }
+
+  @Override
+  public void reserveToFront(Cache cache) {
+    throw new RuntimeException("Reserve to front is not supported by the directory");
+  }
+
+  @Override
+  public void reservePrefetch(Cache cache) {
+    throw new RuntimeException("Prefetching is not supported by the directory");
+  }
+
+  /**
+   * Counts the message a cache sends its home node when it drops a clean block
+   */
+  public void notifyReplacement() {
+    directoryNumMessages++;
+  }
+
+  @Override
+  public void tick() {
+    Arrays.fill(homeBusy, false);
+    for (int i = 0; i < requests.size();) {
+      Request request = requests.get(i);
+      if (request.arrivalCycle > cycle) {
+        i++;
+        continue;
+      }
+      if (isRedirected(request)) {
+        // The victim was taken by another cache while the writeback travelled,
+        // so its home node sends the request on to the home of the miss
+        request.block = sharerTable.getBlock(request.cache.getRequestAddress());
+        request.arrivalCycle = cycle + HOP_LATENCY;
+        directoryNumMessages++;
+        i++;
+        continue;
+      }
+      int home = request.block % homeBusy.length;
+      if (homeBusy[home] || isBusy(request.block)) {
+        i++;
+        continue;
+      }
+      homeBusy[home] = true;
+      requests.remove(i);
+      Cache cache = request.cache;
+      int block = request.block;
+      // The request message is counted once it reaches its home node
+      directoryNumMessages++;
+      recordWait(cache.getId(), cycle - request.arrivalCycle);
+      request.cache = null;
+      freeRequests.push(request);
+      process(cache, block);
+    }
+  }
+
+  @Override
+  public void tock() {
+    if (!inFlight.isEmpty()) {
+      directoryBusyCycles++;
+    }
+    directoryQueuedCycles += requests.size();
+    for (int i = 0; i < inFlight.size();) {
+      InFlight transaction = inFlight.get(i);
+      if (transaction.completeCycle > cycle) {
+        i++;
+        continue;
+      }
+      inFlight.remove(i);
+      Cache requester = transaction.requester;
+      BusTransaction result = transaction.transaction;
+      transaction.requester = null;
+      transaction.transaction = null;
+      freeInFlight.push(transaction);
+      if (result.getTransition() == Transition.BUS_RD || result.getTransition() == Transition.BUS_RD_X) {
+        requester.recordFill(result);
+      }
+      requester.exitBus(result);
+    }
+    cycle++;
+  }
+
+  @Override
+  public long getSkippableCycles() {
+    long skippable = Long.MAX_VALUE;
+    for (int i = 0; i < requests.size(); i++) {
+      Request request = requests.get(i);
+      if (request.arrivalCycle > cycle) {
+        skippable = Long.min(skippable, request.arrivalCycle - cycle);
+      } else if (isRedirected(request) || !isBusy(request.block)) {
+        return 0;
+      }
+    }
+    for (int i = 0; i < inFlight.size(); i++) {
+      skippable = Long.min(skippable, inFlight.get(i).completeCycle - cycle);
+    }
+    return skippable;
+  }
+
+  @Override
+  public void skipCycles(long cycles) {
+    if (!inFlight.isEmpty()) {
+      directoryBusyCycles += cycles;
+    }
+    directoryQueuedCycles += requests.size() * cycles;
+    cycle += cycles;
+  }
+
+  @Override
+  public boolean isIdle() {
+    return requests.isEmpty() && inFlight.isEmpty();
+  }
+
+  @Override
+  public void completeFunctionally() {
+    if (!inFlight.isEmpty()) {
+      throw new RuntimeException("Functional transactions need an idle directory");
+    }
+    // Functional transactions are not counted, so the counters they change are
+    // put back and the profiler is left out
+    long trafficBytes = directoryTrafficBytes;
+    long messages = directoryNumMessages;
+    long lookups = directoryNumLookups;
+    long invalidations = directoryNumInvalidations;
+    BlockProfiler savedProfiler = profiler;
+    profiler = null;
+    while (!requests.isEmpty()) {
+      Request request = requests.remove(0);
+      Cache cache = request.cache;
+      // Messages are delivered at once, so the request goes straight to the
+      // home of the block the cache needs by now
+      int block = sharerTable.getBlock(cache.getRequestAddress());
+      request.cache = null;
+      freeRequests.push(request);
+      process(cache, block);
+      // The transaction completes now as well
+      InFlight transaction = inFlight.remove(inFlight.size() - 1);
+      BusTransaction result = transaction.transaction;
+      transaction.requester = null;
+      transaction.transaction = null;
+      freeInFlight.push(transaction);
+      cache.exitBus(result);
+    }
+    directoryTrafficBytes = trafficBytes;
+    directoryNumMessages = messages;
+    directoryNumLookups = lookups;
+    directoryNumInvalidations = invalidations;
+    profiler = savedProfiler;
+  }
+
+  @Override
+  public String getName() {
+    return "Directory";
+  }
+
+  @Override
+  public void writeState(DataOutputStream out) throws IOException {
+    out.writeLong(cycle);
+    out.writeInt(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      out.writeInt(requests.get(i).cache.getId());
+      out.writeInt(requests.get(i).block);
+      out.writeLong(requests.get(i).arrivalCycle);
+    }
+    out.writeInt(inFlight.size());
+    for (int i = 0; i < inFlight.size(); i++) {
+      InFlight transaction = inFlight.get(i);
+      if (transaction.transaction != transaction.requester.transaction) {
+        throw new RuntimeException("Directory is carrying a transaction that is not its requester's");
+      }
+      out.writeInt(transaction.requester.getId());
+      out.writeInt(transaction.block);
+      out.writeLong(transaction.completeCycle);
+    }
+
+    out.writeLong(directoryTrafficBytes);
+    out.writeLong(directoryNumMessages);
+    out.writeLong(directoryNumLookups);
+    out.writeLong(directoryNumInvalidations);
+    out.writeLong(directoryBusyCycles);
+    out.writeLong(directoryQueuedCycles);
+    Checkpoint.writeLongs(out, directoryRequests);
+    Checkpoint.writeLongs(out, directoryWaitCycles);
+    Checkpoint.writeLongs(out, directoryWaitMax);
+  }
+
+  @Override
+  public void readState(DataInputStream in) throws IOException {
+    cycle = in.readLong();
+    requests.clear();
+    for (int i = in.readInt(); i > 0; i--) {
+      Request request = new Request();
+      request.cache = caches.get(in.readInt());
+      request.block = in.readInt();
+      request.arrivalCycle = in.readLong();
+      requests.add(request);
+    }
+    inFlight.clear();
+    for (int i = in.readInt(); i > 0; i--) {
+      InFlight transaction = new InFlight();
+      transaction.requester = caches.get(in.readInt());
+      transaction.transaction = transaction.requester.transaction;
+      transaction.block = in.readInt();
+      transaction.completeCycle = in.readLong();
+      inFlight.add(transaction);
+    }
+
+    directoryTrafficBytes = in.readLong();
+    directoryNumMessages = in.readLong();
+    directoryNumLookups = in.readLong();
+    directoryNumInvalidations = in.readLong();
+    directoryBusyCycles = in.readLong();
+    directoryQueuedCycles = in.readLong();
+    Checkpoint.readLongs(in, directoryRequests);
+    Checkpoint.readLongs(in, directoryWaitCycles);
+    Checkpoint.readLongs(in, directoryWaitMax);
+  }
+
+  @Override
+  public long getTrafficBytes() {
+    return directoryTrafficBytes;
+  }
+
+  @Override
+  public long getInvalidations() {
+    return directoryNumInvalidations;
+  }
+
+  @Override
+  public long getUpdates() {
+    return 0;
+  }
+
+  @Override
+  public long getBusyCycles() {
+    return directoryBusyCycles;
+  }
+
+  @Override
+  public long getQueuedCycles() {
+    return directoryQueuedCycles;
+  }
+
+  @Override
+  public Map<String, Number> getStatistics() {
+    Map<String, Number> statistics = new LinkedHashMap<>();
+    statistics.put("Network Traffic (bytes)", directoryTrafficBytes);
+    statistics.put("Messages", directoryNumMessages);
+    statistics.put("Directory Lookups", directoryNumLookups);
+    statistics.put("Invalidations", directoryNumInvalidations);
+    return statistics;
+  }
+
+  /**
+   * How long the requests of a cache waited at their home nodes after arriving
+   */
+  @Override
+  public Map<String, Number> getRequesterStatistics(int id) {
+    Map<String, Number> statistics = new LinkedHashMap<>();
+    statistics.put("Directory Requests", directoryRequests[id]);
+    statistics.put("Directory Wait (avg)",
+        directoryRequests[id] == 0 ? 0f : (float) directoryWaitCycles[id] / directoryRequests[id]);
+    statistics.put("Directory Wait (max)", directoryWaitMax[id]);
+    if (directoryWaitHistograms != null) {
+      directoryWaitHistograms[id].putPercentiles(statistics, "Directory Wait");
+    }
+    return statistics;
+  }
+
+  private void recordWait(int id, long wait) {
+    directoryRequests[id]++;
+    directoryWaitCycles[id] += wait;
+    directoryWaitMax[id] = Long.max(directoryWaitMax[id], wait);
+    if (directoryWaitHistograms != null) {
+      directoryWaitHistograms[id].record(wait);
+    }
+  }
+
+  /**
+   * Whether the block a request was routed by is no longer the one its cache
+   * needs, because another cache took the dirty victim it was writing back
+   */
+  private boolean isRedirected(Request request) {
+    return sharerTable.getBlock(request.cache.getRequestAddress()) != request.block;
+  }
+
+  private boolean isBusy(int block) {
+    for (int i = 0; i < inFlight.size(); i++) {
+      if (inFlight.get(i).block == block) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void process(Cache requester, int block) {
+    BusTransaction transaction = requester.accessBus();
+    if (sharerTable.getBlock(transaction.getAddress()) != block) {
+      throw new RuntimeException("Directory routed a request by block " + block + " but it is for block "
+          + sharerTable.getBlock(transaction.getAddress()));
+    }
+    directoryNumLookups++;
+    if (profiler != null) {
+      profile(requester, transaction);
+    }
+
+    int latency;
+    switch (transaction.getTransition()) {
+      case BUS_RD:
+        latency = getShared(requester, transaction);
+        break;
+      case BUS_RD_X:
+        latency = getExclusive(requester, transaction);
+        directoryNumInvalidations++;
+        break;
+      case BUS_UPGR:
+        latency = upgrade(requester, transaction);
+        directoryNumInvalidations++;
+        break;
+      case FLUSH:
+        latency = writeback(transaction);
+        break;
+      default:
+        throw new RuntimeException("Unexpected transaction requested from directory: " + transaction.getTransition());
+    }
+    InFlight processed = freeInFlight.isEmpty() ? new InFlight() : freeInFlight.pop();
+    processed.requester = requester;
+    processed.transaction = transaction;
+    processed.block = block;
+    processed.completeCycle = cycle + latency - 1;
+    inFlight.add(processed);
+  }
+
+  private void profile(Cache requester, BusTransaction transaction) {
+    int address = transaction.getAddress();
+    switch (transaction.getTransition()) {
+      case BUS_RD:
+        profiler.record(BlockProfiler.Metric.MISSES, address, requester.getId());
+        break;
+      case BUS_RD_X:
+        profiler.record(BlockProfiler.Metric.MISSES, address, requester.getId());
+        profiler.record(BlockProfiler.Metric.INVALIDATIONS, address, requester.getId());
+        break;
+      case BUS_UPGR:
+        profiler.record(BlockProfiler.Metric.INVALIDATIONS, address, requester.getId());
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void recordTransfer(Cache requester, BusTransaction transaction) {
+    if (profiler != null) {
+      profiler.record(BlockProfiler.Metric.TRANSFERS, transaction.getAddress(), requester.getId());
+    }
+  }
+
+  /**
+   * GetS: forwarded to the owner if another cache holds the block exclusively,
+   * otherwise served from memory.
+   */
+  private int getShared(Cache requester, BusTransaction transaction) {
+    int numSharers = findSharers(requester, transaction.getAddress());
+    transaction.setShared(numSharers > 0);
+    directoryTrafficBytes += blockSize;
+
+    Cache owner = findOwner(numSharers, transaction.getAddress());
+    if (owner != null) {
+      recordTransfer(requester, transaction);
+      transaction.setSuppliedByCache(true);
+      SnoopResult response = owner.snoop(transaction);
+      // Forward to owner, data to requester, and writeback to home if dirty
+      directoryNumMessages += 2;
+      if (response == SnoopResult.FLUSH) {
+        directoryNumMessages++;
+        directoryTrafficBytes += blockSize;
+      }
+      return LOOKUP_LATENCY + HOP_LATENCY + getTransferLatency() + HOP_LATENCY;
+    }
+
+    directoryNumMessages++;
+    return LOOKUP_LATENCY + BLOCK_LATENCY_MEM + getTransferLatency() + HOP_LATENCY;
+  }
+
+  /**
+   * GetM: forwarded to the owner if another cache holds the block exclusively,
+   * otherwise served from memory while the sharers are invalidated in
+   * parallel and acknowledge the requester directly.
+   */
+  private int getExclusive(Cache requester, BusTransaction transaction) {
+    int numSharers = findSharers(requester, transaction.getAddress());
+    directoryTrafficBytes += blockSize;
+
+    Cache owner = findOwner(numSharers, transaction.getAddress());
+    if (owner != null) {
+      recordTransfer(requester, transaction);
+      transaction.setSuppliedByCache(true);
+      owner.snoop(transaction);
+      directoryNumMessages += 2;
+      return LOOKUP_LATENCY + HOP_LATENCY + getTransferLatency() + HOP_LATENCY;
+    }
+
+    invalidateSharers(transaction);
+    directoryNumMessages += 2 * numSharers + 1;
+    int dataLatency = BLOCK_LATENCY_MEM + getTransferLatency() + HOP_LATENCY;
+    int invalidateLatency = numSharers > 0 ? 2 * HOP_LATENCY : 0;
+    return LOOKUP_LATENCY + Integer.max(dataLatency, invalidateLatency);
+  }
+
+  /**
+   * Upgrade: the sharers are invalidated and acknowledge the requester, which
+   * also receives a grant from the home node.
+   */
+  private int upgrade(Cache requester, BusTransaction transaction) {
+    int numSharers = findSharers(requester, transaction.getAddress());
+    invalidateSharers(transaction);
+    directoryNumMessages += 2 * numSharers + 1;
+    return LOOKUP_LATENCY + (numSharers > 0 ? 2 * HOP_LATENCY : HOP_LATENCY);
+  }
+
+  /**
+   * PutM: the evicted block has already left the cache, the requester only
+   * waits for the data to reach its home node.
+   */
+  private int writeback(BusTransaction transaction) {
+    directoryTrafficBytes += blockSize;
+    return getTransferLatency() + HOP_LATENCY;
+  }
+
+  /**
+   * Loads the sharers of address other than the requester and returns how
+   * many there are.
+   */
+  private int findSharers(Cache requester, int address) {
+    sharerTable.getSharers(address, sharers);
+    int requesterId = requester.getId();
+    sharers[requesterId / Long.SIZE] &= ~(1L << (requesterId % Long.SIZE));
+    int numSharers = 0;
+    for (long word : sharers) {
+      numSharers += Long.bitCount(word);
+    }
+    return numSharers;
+  }
+
+  /**
+   * Returns the cache holding address in a Modified or Exclusive state among
+   * the sharers found last, or null if the block is clean and shared.
+   */
+  private Cache findOwner(int numSharers, int address) {
+    if (numSharers != 1) {
+      return null;
+    }
+    Cache sharer = caches.get(nextSharer(0));
+    BlockState state = sharer.getBlockState(address);
+    return state == BlockState.MESI_MODIFIED || state == BlockState.MESI_EXCLUSIVE ? sharer : null;
+  }
+
+  private void invalidateSharers(BusTransaction transaction) {
+    for (int i = nextSharer(0); i >= 0; i = nextSharer(i + 1)) {
+      caches.get(i).snoop(transaction);
+    }
+  }
+
+  private int nextSharer(int id) {
+    for (int word = id / Long.SIZE; word < sharers.length; word++) {
+      long bits = sharers[word];
+      if (word == id / Long.SIZE) {
+        bits &= -1L << (id % Long.SIZE);
+      }
+      if (bits != 0) {
+        return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+      }
+    }
+    return -1;
+  }
+
+  private int getTransferLatency() {
+    return WORD_LATENCY * (blockSize / WORD_SIZE);
+  }
+}
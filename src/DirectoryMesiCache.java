@@ -0,0 +1,29 @@
+/**
+ * DirectoryMesiCache is a MESI cache whose coherence requests go through a
+ * Directory instead of the snooping bus. It behaves as MesiCache, except that
+ * it notifies its home node when it drops a clean block, so the sharer table
+ * stays exact.
+ */
+public class DirectoryMesiCache extends MesiCache {
+  private Directory directory;
+
+  public DirectoryMesiCache(Directory directory, int cacheSize, int associativity, int blockSize) {
+    super(directory, cacheSize, associativity, blockSize);
+    this.directory = directory;
+  }
+
+  @Override
+  public BusTransaction accessBus() {
+    CacheSet set = getSet(pendingAddress);
+    int tag = getTag(pendingAddress);
+    boolean upgrade = cacheState == CacheState.WRITING_WAITBUS && set.contains(tag)
+        && set.getState(tag) == BlockState.MESI_SHARED;
+    boolean evicting = set.isFull() && !upgrade;
+
+    BusTransaction transaction = super.accessBus();
+    if (evicting && transaction.getTransition() != Transition.FLUSH) {
+      directory.notifyReplacement();
+    }
+    return transaction;
+  }
+}
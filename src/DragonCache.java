@@ -1,7 +1,7 @@
 import java.util.*;
 
 public class DragonCache extends Cache {
-  public DragonCache(Bus bus, int cacheSize, int associativity, int blockSize) {
+  public DragonCache(Interconnect bus, int cacheSize, int associativity, int blockSize) {
     super(bus, cacheSize, associativity, blockSize);
   }
 
@@ -12,14 +12,14 @@ public class DragonCache extends Cache {
     CacheSet set = getSet(address);
     int tag = getTag(address);
     if (set.contains(tag)) {
-      updateCacheStatistics(Optional.of(set.getState(tag)));
+      updateCacheStatistics(set.getState(tag));
       set.use(tag);
-      processor.unstall();
+      completeAccess();
       cacheState = CacheState.READY;
       return;
     }
-    updateCacheStatistics(Optional.empty());
-    bus.reserve(this);
+    updateCacheStatistics(null);
+    reserveBus();
     cacheState = CacheState.READING_WAITBUS;
   }
 
@@ -29,21 +29,21 @@ public class DragonCache extends Cache {
       throw new RuntimeException("Called prWr when not in PENDING_WRITE cachestate");
     CacheSet set = getSet(address);
     int tag = getTag(address);
-    Optional<BlockState> stateForStat = Optional.empty();
+    BlockState stateForStat = null;
     if (set.contains(tag)) {
       BlockState blockState = set.getState(tag);
-      stateForStat = Optional.of(blockState);
+      stateForStat = blockState;
       if (blockState == BlockState.DRAGON_EXCLUSIVE || blockState == BlockState.DRAGON_MODIFIED) {
         updateCacheStatistics(stateForStat);
         set.update(tag, BlockState.DRAGON_MODIFIED);
         set.use(tag);
-        processor.unstall();
+        completeAccess();
         cacheState = CacheState.READY;
         return;
       }
     }
     updateCacheStatistics(stateForStat);
-    bus.reserve(this);
+    reserveBus();
     cacheState = CacheState.WRITING_WAITBUS;
   }
 
@@ -57,7 +57,7 @@ public class DragonCache extends Cache {
       cacheState = CacheState.READING;
       // Capacity available
       if (!set.isFull())
-        return new BusTransaction(Transition.BUS_RD, pendingAddress, blockSize);
+        return transaction.set(Transition.BUS_RD, pendingAddress, blockSize);
 
       // Conflict miss
       int evictionTargetTag = set.getEvictionTargetTag();
@@ -67,21 +67,21 @@ public class DragonCache extends Cache {
       if (evictionTargetState == BlockState.DRAGON_MODIFIED
           || evictionTargetState == BlockState.DRAGON_SHARED_MODIFIED) {
         cacheState = CacheState.READING_PENDING_FLUSH;
-        return new BusTransaction(Transition.FLUSH, evictionTargetAddress, blockSize);
+        return transaction.set(Transition.FLUSH, evictionTargetAddress, blockSize);
       }
       set.evict();
-      return new BusTransaction(Transition.BUS_RD, pendingAddress, blockSize);
+      return transaction.set(Transition.BUS_RD, pendingAddress, blockSize);
     }
 
     if (cacheState == CacheState.WRITING_WAITBUS) {
       cacheState = CacheState.WRITING;
       // Write hit
       if (set.contains(tag))
-        return new BusTransaction(Transition.BUS_UPD, pendingAddress, blockSize);
+        return transaction.set(Transition.BUS_UPD, pendingAddress, blockSize);
 
       // Write miss, capacity available
       if (!set.isFull())
-        return new BusTransaction(Transition.BUS_RD, pendingAddress, blockSize);
+        return transaction.set(Transition.BUS_RD, pendingAddress, blockSize);
 
       // Conflict miss
       int evictionTargetTag = set.getEvictionTargetTag();
@@ -91,10 +91,10 @@ public class DragonCache extends Cache {
       if (evictionTargetState == BlockState.DRAGON_MODIFIED
           || evictionTargetState == BlockState.DRAGON_SHARED_MODIFIED) {
         cacheState = CacheState.WRITING_PENDING_FLUSH;
-        return new BusTransaction(Transition.FLUSH, evictionTargetAddress, blockSize);
+        return transaction.set(Transition.FLUSH, evictionTargetAddress, blockSize);
       }
       set.evict();
-      return new BusTransaction(Transition.BUS_RD, pendingAddress, blockSize);
+      return transaction.set(Transition.BUS_RD, pendingAddress, blockSize);
     }
 
     throw new RuntimeException(
@@ -116,7 +116,7 @@ public class DragonCache extends Cache {
             newBlockState = shared ? BlockState.DRAGON_SHARED_CLEAN : BlockState.DRAGON_EXCLUSIVE;
             set.add(tag, newBlockState);
             cacheState = CacheState.READY;
-            processor.unstall();
+            completeAccess();
             break;
           case WRITING:
             newBlockState = shared ? BlockState.DRAGON_SHARED_MODIFIED : BlockState.DRAGON_MODIFIED;
@@ -128,7 +128,7 @@ public class DragonCache extends Cache {
               cacheState = CacheState.WRITING_WAITBUS;
             } else {
               cacheState = CacheState.READY;
-              processor.unstall();
+              completeAccess();
             }
             break;
           default:
@@ -140,7 +140,7 @@ public class DragonCache extends Cache {
         set.update(tag, shared ? BlockState.DRAGON_SHARED_MODIFIED : BlockState.DRAGON_MODIFIED);
         set.use(tag);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case FLUSH:
         set.invalidate(tag);
@@ -162,13 +162,13 @@ public class DragonCache extends Cache {
   }
 
   @Override
-  public Optional<BusTransaction> snoop(BusTransaction transaction) {
+  public SnoopResult snoop(BusTransaction transaction) {
     int address = transaction.getAddress();
     int tag = getTag(address);
     CacheSet set = getSet(address);
 
     if (!set.contains(tag))
-      return Optional.empty();
+      return SnoopResult.NONE;
 
     BlockState blockState = set.getState(tag);
     switch (transaction.getTransition()) {
@@ -178,12 +178,12 @@ public class DragonCache extends Cache {
             set.update(tag, BlockState.DRAGON_SHARED_CLEAN);
             // FALLTHROUGH
           case DRAGON_SHARED_CLEAN:
-            return Optional.empty();
+            return SnoopResult.NONE;
           case DRAGON_MODIFIED:
             set.update(tag, BlockState.DRAGON_SHARED_MODIFIED);
             // FALLTHROUGH
           case DRAGON_SHARED_MODIFIED:
-            return Optional.of(new BusTransaction(Transition.FLUSH, address, blockSize));
+            return SnoopResult.FLUSH;
           default:
             break;
         }
@@ -191,9 +191,9 @@ public class DragonCache extends Cache {
         if (blockState != BlockState.DRAGON_SHARED_CLEAN && blockState != BlockState.DRAGON_SHARED_MODIFIED)
           throw new RuntimeException("Snooped BusUpd for block that is not Shared");
         set.update(tag, BlockState.DRAGON_SHARED_CLEAN);
-        return Optional.empty();
+        return SnoopResult.NONE;
       case FLUSH:
-        return Optional.empty();
+        return SnoopResult.NONE;
       default:
         throw new RuntimeException("Snooped invalid Dragon transaction type: " + transaction.getTransition());
     }
@@ -201,14 +201,29 @@ public class DragonCache extends Cache {
   }
 
   @Override
-  protected void updateCacheStatistics(Optional<BlockState> state) {
+  protected boolean isDirty(BlockState state) {
+    return state == BlockState.DRAGON_MODIFIED || state == BlockState.DRAGON_SHARED_MODIFIED;
+  }
+
+  @Override
+  protected boolean isWritable(BlockState state) {
+    return state == BlockState.DRAGON_MODIFIED || state == BlockState.DRAGON_EXCLUSIVE;
+  }
+
+  @Override
+  protected BlockState getPrefetchState(boolean shared) {
+    return shared ? BlockState.DRAGON_SHARED_CLEAN : BlockState.DRAGON_EXCLUSIVE;
+  }
+
+  @Override
+  protected void updateCacheStatistics(BlockState state) {
     cacheNumTotalAccesses++;
-    if (state.isEmpty()) {
+    if (state == null) {
       cacheNumMisses++;
       return;
     }
     cacheNumHits++;
-    switch (state.get()) {
+    switch (state) {
       case DRAGON_MODIFIED:
       case DRAGON_EXCLUSIVE:
         cacheNumPrivateAccesses++;
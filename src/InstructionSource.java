@@ -0,0 +1,76 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * InstructionSource is a stream of trace instructions for a single core. The
+ * current instruction is exposed through getType()/getValue() so that reading
+ * a trace does not allocate per instruction.
+ */
+public interface InstructionSource extends AutoCloseable {
+  int GZIP_MAGIC = 0x1f8b;
+  int STREAM_BUFFER_SIZE = 1 << 16;
+
+  boolean hasNext();
+
+  /**
+   * Advances to the next instruction and returns its type. The value of the
+   * instruction is then available from getValue().
+   */
+  Instruction.Type next();
+
+  /**
+   * Address if the current instruction is LOAD/STORE, cycle duration otherwise
+   */
+  int getValue();
+
+  @Override
+  void close();
+
+  /**
+   * Opens a trace file, detecting whether it is a binary or text trace and
+   * whether it is gzip or block compressed.
+   */
+  static InstructionSource open(File file) throws IOException {
+    int magic;
+    try (InputStream in = new FileInputStream(file)) {
+      magic = readMagic(in);
+    }
+    InputStream stream;
+    if (magic == BinaryInstructionSource.MAGIC) {
+      return new BinaryInstructionSource(file);
+    } else if (magic >>> 16 == GZIP_MAGIC) {
+      stream = new GZIPInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE);
+    } else if (magic == BlockCompressedInputStream.MAGIC) {
+      stream = new BlockCompressedInputStream(file);
+    } else {
+      return new TextInstructionSource(file);
+    }
+
+    // Decompressed traces are parsed as a stream, so peek at their format
+    InputStream buffered = new BufferedInputStream(stream, STREAM_BUFFER_SIZE);
+    buffered.mark(Integer.BYTES);
+    boolean binary = readMagic(buffered) == BinaryInstructionSource.MAGIC;
+    buffered.reset();
+    if (binary) {
+      return new BinaryInstructionSource(Channels.newChannel(buffered), file.getName());
+    }
+    return new TextInstructionSource(Channels.newChannel(buffered), file.getName());
+  }
+
+  /**
+   * Reads the first four bytes of a trace as a big-endian int, or -1 if the
+   * trace is shorter.
+   */
+  private static int readMagic(InputStream in) throws IOException {
+    int magic = 0;
+    for (int i = 0; i < Integer.BYTES; i++) {
+      int b = in.read();
+      if (b < 0) {
+        return -1;
+      }
+      magic = (magic << 8) | b;
+    }
+    return magic;
+  }
+}
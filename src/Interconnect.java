@@ -0,0 +1,101 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Interconnect carries coherence transactions between caches. A cache calls
+ * reserve() when it needs a transaction, and the interconnect later calls
+ * accessBus() on it to obtain the transaction and exitBus() once it completes.
+ */
+public interface Interconnect {
+  /**
+   * Registers a cache and returns its id, which is its index in snoop order
+   */
+  int registerCache(Cache cache);
+
+  /**
+   * Tracker of which caches hold each block that caches must keep up to date,
+   * or null if there is none
+   */
+  SnoopFilter getSnoopFilter();
+
+  /**
+   * Reports the blocks of the transactions to a profiler. Must be set before
+   * the simulation starts.
+   */
+  void setBlockProfiler(BlockProfiler profiler);
+
+  /**
+   * Keeps a histogram per cache of how long it waited to be served
+   */
+  void enableLatencyHistograms();
+
+  void reserve(Cache cache);
+
+  void reserveToFront(Cache cache);
+
+  /**
+   * Queues a cache to prefetch once no demand access is waiting. The
+   * interconnect calls accessPrefetch() on it when granted, and
+   * exitPrefetch() once the block arrives.
+   */
+  void reservePrefetch(Cache cache);
+
+  void tick();
+
+  void tock();
+
+  /**
+   * Number of upcoming cycles in which the interconnect only counts down its
+   * outstanding transactions.
+   */
+  long getSkippableCycles();
+
+  void skipCycles(long cycles);
+
+  /**
+   * Whether no cache is waiting for the interconnect and no transaction is in
+   * progress
+   */
+  boolean isIdle();
+
+  /**
+   * Serves every cache waiting for the interconnect, and those its
+   * transactions make wait, at once and without timing or counting them in
+   * the statistics. Used to warm the caches functionally while no timed
+   * transaction is in progress.
+   */
+  void completeFunctionally();
+
+  String getName();
+
+  /**
+   * Saves the transactions in progress and the statistics, referring to caches
+   * by id. The caches save their own transactions.
+   */
+  void writeState(DataOutputStream out) throws IOException;
+
+  void readState(DataInputStream in) throws IOException;
+
+  long getTrafficBytes();
+
+  long getInvalidations();
+
+  long getUpdates();
+
+  /**
+   * Number of cycles in which the interconnect was carrying a transaction
+   */
+  long getBusyCycles();
+
+  /**
+   * Sum over every cycle of the number of caches waiting to be served
+   */
+  long getQueuedCycles();
+
+  Map<String, Number> getStatistics();
+
+  /**
+   * Statistics of how long the cache with the given id waited to be served
+   */
+  Map<String, Number> getRequesterStatistics(int id);
+}
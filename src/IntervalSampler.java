@@ -0,0 +1,155 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * IntervalSampler records how the processor, cache and interconnect counters
+ * change over every interval of simulated cycles, so that phases of a run show
+ * up where the end-of-run totals would average them away.
+ *
+ * Rows are written as CSV, or, for files ending in ".bin", as a binary file
+ * of the magic "CCSI", the number of columns as an int and then one long per
+ * column of each row. The binary file holds only the counted columns, since
+ * the rates follow from them. Rows are built in reused buffers, so sampling
+ * does not allocate once the simulation is running.
+ */
+public class IntervalSampler implements Closeable {
+  public static final int MAGIC = 0x43435349; // "CCSI"
+  public static final long DEFAULT_INTERVAL = 10_000;
+  private static final String[] COLUMNS = { "cycle", "cycles", "loads", "stores", "idle_cycles", "cache_accesses",
+      "cache_misses", "invalidations", "updates", "traffic_bytes", "busy_cycles", "queued_cycles" };
+  private static final String[] RATE_COLUMNS = { "miss_rate", "busy_fraction", "queue_depth" };
+
+  private Interconnect bus;
+  private List<Processor> processors;
+  private List<Cache> caches;
+  private long interval;
+  private long nextSample;
+
+  private OutputStream csv;
+  private DataOutputStream binary;
+  private StringBuilder row = new StringBuilder();
+  private byte[] rowBytes = new byte[256];
+
+  // Counters at the end of the last interval, and read at this sample
+  private long[] last = new long[COLUMNS.length];
+  private long[] current = new long[COLUMNS.length];
+
+  public IntervalSampler(File file, long interval, Interconnect bus, List<Processor> processors,
+      List<Cache> caches) throws IOException {
+    this.bus = bus;
+    this.processors = processors;
+    this.caches = caches;
+    this.interval = interval;
+    this.nextSample = interval;
+    OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    if (file.getName().endsWith(".bin")) {
+      binary = new DataOutputStream(stream);
+      binary.writeInt(MAGIC);
+      binary.writeInt(COLUMNS.length);
+    } else {
+      csv = stream;
+      String header = String.join(",", COLUMNS) + "," + String.join(",", RATE_COLUMNS) + "\n";
+      csv.write(header.getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  /**
+   * Cycle at which the next sample is due
+   */
+  public long getNextSample() {
+    return nextSample;
+  }
+
+  /**
+   * Writes the interval that ends at cycle, if the interval is due
+   */
+  public void sample(long cycle) {
+    if (cycle < nextSample) {
+      return;
+    }
+    writeRow(cycle);
+    nextSample = cycle + interval;
+  }
+
+  /**
+   * Writes the partial interval that ends the simulation at cycle
+   */
+  public void finish(long cycle) {
+    if (cycle > last[0]) {
+      writeRow(cycle);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (csv != null) {
+      csv.close();
+    } else {
+      binary.close();
+    }
+  }
+
+  private void writeRow(long cycle) {
+    readCounters(cycle);
+    try {
+      if (binary != null) {
+        binary.writeLong(cycle);
+        for (int i = 1; i < current.length; i++) {
+          binary.writeLong(current[i] - last[i]);
+        }
+      } else {
+        writeCsvRow(cycle);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Samples could not be written: " + e.getMessage(), e);
+    }
+    long[] swap = last;
+    last = current;
+    current = swap;
+  }
+
+  private void readCounters(long cycle) {
+    Arrays.fill(current, 0);
+    current[0] = cycle;
+    current[1] = cycle;
+    for (int i = 0; i < processors.size(); i++) {
+      Processor processor = processors.get(i);
+      current[2] += processor.getLoads();
+      current[3] += processor.getStores();
+      current[4] += processor.getIdleCycles();
+    }
+    for (int i = 0; i < caches.size(); i++) {
+      Cache cache = caches.get(i);
+      current[5] += cache.cacheNumTotalAccesses;
+      current[6] += cache.cacheNumMisses;
+    }
+    current[7] = bus.getInvalidations();
+    current[8] = bus.getUpdates();
+    current[9] = bus.getTrafficBytes();
+    current[10] = bus.getBusyCycles();
+    current[11] = bus.getQueuedCycles();
+  }
+
+  private void writeCsvRow(long cycle) throws IOException {
+    row.setLength(0);
+    row.append(cycle);
+    for (int i = 1; i < current.length; i++) {
+      row.append(',').append(current[i] - last[i]);
+    }
+    long cycles = current[1] - last[1];
+    long accesses = current[5] - last[5];
+    row.append(',').append(accesses == 0 ? 0f : (float) (current[6] - last[6]) / accesses);
+    row.append(',').append((float) (current[10] - last[10]) / cycles);
+    row.append(',').append((float) (current[11] - last[11]) / cycles);
+    row.append('\n');
+    // Rows are ASCII, so copy them out directly rather than through an encoder
+    if (row.length() > rowBytes.length) {
+      rowBytes = new byte[row.length()];
+    }
+    for (int i = 0; i < row.length(); i++) {
+      rowBytes[i] = (byte) row.charAt(i);
+    }
+    csv.write(rowBytes, 0, row.length());
+  }
+}
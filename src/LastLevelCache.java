@@ -0,0 +1,160 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * LastLevelCache is a cache shared by every private cache, between the bus and
+ * memory. Misses that no private cache can supply are served from it at its
+ * hit latency, and fetched from memory into it otherwise. Blocks written back
+ * by the private caches are absorbed by it, and it writes its own dirty blocks
+ * to memory when it evicts them, off the critical path.
+ *
+ * An inclusive last-level cache holds every block that a private cache holds,
+ * so evicting a block back-invalidates the private copies, whose dirty data is
+ * written to memory with it. A non-inclusive one leaves the private copies
+ * alone.
+ */
+public class LastLevelCache {
+  enum Inclusion {
+    INCLUSIVE, NON_INCLUSIVE
+  }
+
+  private List<Cache> caches;
+  private Inclusion inclusion;
+  private int hitLatency;
+  private int blockSize;
+  private int numSets;
+  private CacheBlocks blocks;
+  private CacheSet[] sets;
+  private boolean warming = false;
+
+  // Statistics
+  private long llcNumHits = 0;
+  private long llcNumMisses = 0;
+  private long llcNumWritebacks = 0;
+  private long llcNumBackInvalidations = 0;
+
+  public LastLevelCache(List<Cache> caches, int cacheSize, int associativity, int blockSize, int hitLatency,
+      Inclusion inclusion) {
+    this.caches = caches;
+    this.inclusion = inclusion;
+    this.hitLatency = hitLatency;
+    this.blockSize = blockSize;
+    this.numSets = cacheSize / (blockSize * associativity);
+    this.blocks = new CacheBlocks(numSets, associativity);
+    this.sets = blocks.createSets();
+  }
+
+  public int getHitLatency() {
+    return hitLatency;
+  }
+
+  /**
+   * Replaces the default LRU policy, before the first access
+   */
+  public void setReplacementPolicy(ReplacementPolicy.Type type, long seed) {
+    blocks.setReplacementPolicy(ReplacementPolicy.create(type, numSets, blocks.associativity, seed));
+  }
+
+  /**
+   * Reads the block containing address for a private cache, filling it from
+   * memory on a miss. Returns whether it hit.
+   */
+  public boolean read(int address) {
+    CacheSet set = getSet(address);
+    int tag = getTag(address);
+    if (set.contains(tag)) {
+      set.use(tag);
+      if (!warming) {
+        llcNumHits++;
+      }
+      return true;
+    }
+    if (!warming) {
+      llcNumMisses++;
+    }
+    fill(address, BlockState.LLC_CLEAN);
+    return false;
+  }
+
+  /**
+   * Absorbs a dirty block written back by a private cache
+   */
+  public void write(int address) {
+    CacheSet set = getSet(address);
+    int tag = getTag(address);
+    if (set.contains(tag)) {
+      set.update(tag, BlockState.LLC_DIRTY);
+      set.use(tag);
+    } else {
+      fill(address, BlockState.LLC_DIRTY);
+    }
+  }
+
+  /**
+   * Leaves the statistics unchanged while warming functionally
+   */
+  public void setWarming(boolean warming) {
+    this.warming = warming;
+    blocks.setWarming(warming);
+  }
+
+  public void writeState(DataOutputStream out) throws IOException {
+    blocks.writeState(out);
+    out.writeLong(llcNumHits);
+    out.writeLong(llcNumMisses);
+    out.writeLong(llcNumWritebacks);
+    out.writeLong(llcNumBackInvalidations);
+  }
+
+  public void readState(DataInputStream in) throws IOException {
+    blocks.readState(in);
+    llcNumHits = in.readLong();
+    llcNumMisses = in.readLong();
+    llcNumWritebacks = in.readLong();
+    llcNumBackInvalidations = in.readLong();
+  }
+
+  public Map<String, Number> getStatistics() {
+    Map<String, Number> statistics = new LinkedHashMap<>();
+    statistics.put("LLC Accesses", llcNumHits + llcNumMisses);
+    statistics.put("LLC Hits", llcNumHits);
+    statistics.put("LLC Misses", llcNumMisses);
+    statistics.put("LLC Miss Rate (%)", (float) llcNumMisses / (llcNumHits + llcNumMisses) * 100);
+    statistics.put("LLC Evictions", blocks.getEvictions());
+    statistics.put("LLC Writebacks", llcNumWritebacks);
+    statistics.put("Back Invalidations", llcNumBackInvalidations);
+    return statistics;
+  }
+
+  private void fill(int address, BlockState state) {
+    CacheSet set = getSet(address);
+    if (set.isFull()) {
+      int victimTag = set.getEvictionTargetTag();
+      boolean dirty = set.getState(victimTag) == BlockState.LLC_DIRTY;
+      set.evict();
+      if (inclusion == Inclusion.INCLUSIVE) {
+        int victimAddress = (victimTag * numSets + (address / blockSize) % numSets) * blockSize;
+        for (int i = 0; i < caches.size(); i++) {
+          if (caches.get(i).contains(victimAddress)) {
+            dirty |= caches.get(i).backInvalidate(victimAddress);
+            if (!warming) {
+              llcNumBackInvalidations++;
+            }
+          }
+        }
+      }
+      if (dirty && !warming) {
+        llcNumWritebacks++;
+      }
+    }
+    set.add(getTag(address), state);
+  }
+
+  private CacheSet getSet(int address) {
+    return sets[(address / blockSize) % numSets];
+  }
+
+  private int getTag(int address) {
+    return (address / blockSize) / numSets;
+  }
+}
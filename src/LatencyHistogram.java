@@ -0,0 +1,80 @@
+import java.util.*;
+
+/**
+ * LatencyHistogram counts latencies in log-bucketed buckets, in the manner of
+ * HdrHistogram: values below SUB_BUCKETS have a bucket each, and every larger
+ * power of two is split into SUB_BUCKETS linear buckets, so a reported
+ * percentile is within 1/SUB_BUCKETS of the true value. The buckets cover every
+ * long and are allocated up front, so recording never allocates.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+  private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p99.9" };
+
+  private long[] counts = new long[SUB_BUCKETS * (Long.SIZE - SUB_BUCKET_BITS + 1)];
+  private long count = 0;
+  private long max = 0;
+
+  public void record(long value) {
+    counts[getIndex(value)]++;
+    count++;
+    max = Long.max(max, value);
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  /**
+   * Smallest recorded value that the given percent of values do not exceed,
+   * rounded up to the end of its bucket
+   */
+  public long getPercentile(double percent) {
+    long rank = Long.max(1, (long) Math.ceil(percent / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Long.min(getHighestValue(i), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Adds the percentiles and maximum to a statistics map under the given name,
+   * unless nothing was recorded
+   */
+  public void putPercentiles(Map<String, Number> statistics, String name) {
+    if (count == 0) {
+      return;
+    }
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      statistics.put(name + " (" + PERCENTILE_NAMES[i] + ")", getPercentile(PERCENTILES[i]));
+    }
+    statistics.put(name + " (max)", max);
+  }
+
+  private static int getIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) Long.max(value, 0);
+    }
+    int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return SUB_BUCKETS * (shift + 1) + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  private static long getHighestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
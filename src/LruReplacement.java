@@ -0,0 +1,56 @@
+import java.io.*;
+
+/**
+ * LruReplacement stamps every block with a global counter and evicts the block
+ * with the oldest stamp. Restamping blocks on hits gives LRU, and stamping
+ * them only when filled gives FIFO.
+ */
+public class LruReplacement extends ReplacementPolicy {
+  private final long[] lastUse;
+  private final boolean stampOnHit;
+  private long useCounter = 0;
+
+  public LruReplacement(int numSets, int associativity, boolean stampOnHit) {
+    super(numSets, associativity, 0);
+    this.lastUse = new long[numSets * associativity];
+    this.stampOnHit = stampOnHit;
+  }
+
+  @Override
+  public void fill(int index) {
+    lastUse[index] = ++useCounter;
+  }
+
+  @Override
+  public void touch(int index) {
+    if (stampOnHit) {
+      lastUse[index] = ++useCounter;
+    }
+  }
+
+  @Override
+  public int findVictim(int setIndex, boolean[] pinned) {
+    int base = setIndex * associativity;
+    int victim = -1;
+    for (int index = base; index < base + associativity; index++) {
+      if (!pinned[index] && (victim < 0 || lastUse[index] < lastUse[victim])) {
+        victim = index;
+      }
+    }
+    return victim;
+  }
+
+  @Override
+  public void writeState(DataOutputStream out) throws IOException {
+    super.writeState(out);
+    Checkpoint.writeLongs(out, lastUse);
+    out.writeLong(useCounter);
+  }
+
+  @Override
+  public void readState(DataInputStream in) throws IOException {
+    super.readState(in);
+    Checkpoint.readLongs(in, lastUse);
+    useCounter = in.readLong();
+  }
+}
@@ -1,7 +1,7 @@
 import java.util.*;
 
 public class MesiCache extends Cache {
-  public MesiCache(Bus bus, int cacheSize, int associativity, int blockSize) {
+  public MesiCache(Interconnect bus, int cacheSize, int associativity, int blockSize) {
     super(bus, cacheSize, associativity, blockSize);
   }
 
@@ -16,7 +16,7 @@ public class MesiCache extends Cache {
         // Capacity available
         if (!set.isFull()) {
           pendingState = CacheState.READING;
-          pendingTransaction = new BusTransaction(Transition.BUS_RD, pendingAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.BUS_RD, pendingAddress, blockSize);
           break;
         }
         // Conflict miss
@@ -28,11 +28,11 @@ public class MesiCache extends Cache {
         if (evictionTargetState == BlockState.MESI_MODIFIED) {
           // Need to flush evictee
           pendingState = CacheState.READING_PENDING_FLUSH;
-          pendingTransaction = new BusTransaction(Transition.FLUSH, evictionTargetAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.FLUSH, evictionTargetAddress, blockSize);
         } else {
           // No need to flush evictee
           pendingState = CacheState.READING;
-          pendingTransaction = new BusTransaction(Transition.BUS_RD, pendingAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.BUS_RD, pendingAddress, blockSize);
         }
         break;
       }
@@ -41,13 +41,13 @@ public class MesiCache extends Cache {
         int tag = getTag(pendingAddress);
         if (set.contains(tag) && set.getState(tag) == BlockState.MESI_SHARED) {
           pendingState = CacheState.WRITING;
-          pendingTransaction = new BusTransaction(Transition.BUS_UPGR, pendingAddress, 0);
+          pendingTransaction = transaction.set(Transition.BUS_UPGR, pendingAddress, 0);
           break;
         }
         // Cold miss
         if (!set.isFull()) {
           pendingState = CacheState.WRITING;
-          pendingTransaction = new BusTransaction(Transition.BUS_RD_X, pendingAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.BUS_RD_X, pendingAddress, blockSize);
           break;
         }
         // Conflict miss
@@ -59,11 +59,11 @@ public class MesiCache extends Cache {
         if (evictionTargetState == BlockState.MESI_MODIFIED) {
           // Need to flush evictee
           pendingState = CacheState.WRITING_PENDING_FLUSH;
-          pendingTransaction = new BusTransaction(Transition.FLUSH, evictionTargetAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.FLUSH, evictionTargetAddress, blockSize);
         } else {
           // No need to flush evictee
           pendingState = CacheState.WRITING;
-          pendingTransaction = new BusTransaction(Transition.BUS_RD_X, pendingAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.BUS_RD_X, pendingAddress, blockSize);
         }
         break;
       }
@@ -74,6 +74,19 @@ public class MesiCache extends Cache {
     return pendingTransaction;
   }
 
+  @Override
+  public int getRequestAddress() {
+    CacheSet set = getSet(pendingAddress);
+    if (!set.isFull() || set.contains(getTag(pendingAddress))) {
+      return pendingAddress;
+    }
+    int evictionTargetTag = set.getEvictionTargetTag();
+    if (set.getState(evictionTargetTag) != BlockState.MESI_MODIFIED) {
+      return pendingAddress;
+    }
+    return getAddress(evictionTargetTag, getSetIndex(pendingAddress));
+  }
+
   @Override
   public void exitBus(BusTransaction result) {
     int address = result.getAddress();
@@ -87,7 +100,7 @@ public class MesiCache extends Cache {
         BlockState newBlockState = result.getShared() ? BlockState.MESI_SHARED : BlockState.MESI_EXCLUSIVE;
         set.add(tag, newBlockState);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case BUS_RD_X:
         if (cacheState != CacheState.WRITING) {
@@ -95,7 +108,7 @@ public class MesiCache extends Cache {
         }
         set.add(tag, BlockState.MESI_MODIFIED);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case BUS_UPGR:
         if (cacheState != CacheState.WRITING) {
@@ -104,7 +117,7 @@ public class MesiCache extends Cache {
         set.update(tag, BlockState.MESI_MODIFIED);
         set.use(tag);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case FLUSH:
         if (cacheState == CacheState.READING_PENDING_FLUSH) {
@@ -122,10 +135,10 @@ public class MesiCache extends Cache {
   }
 
   @Override
-  public Optional<BusTransaction> snoop(BusTransaction transaction) {
+  public SnoopResult snoop(BusTransaction transaction) {
     int address = transaction.getAddress();
 
-    Optional<BusTransaction> response = Optional.empty();
+    SnoopResult response = SnoopResult.NONE;
     switch (transaction.getTransition()) {
       case BUS_RD:
         response = busRd(address);
@@ -143,9 +156,9 @@ public class MesiCache extends Cache {
   }
 
   @Override
-  protected void updateCacheStatistics(Optional<BlockState> state) {
+  protected void updateCacheStatistics(BlockState state) {
     cacheNumTotalAccesses++;
-    switch (state.get()) {
+    switch (state) {
       case MESI_MODIFIED:
       case MESI_EXCLUSIVE:
         cacheNumHits++;
@@ -163,25 +176,40 @@ public class MesiCache extends Cache {
     }
   }
 
+  @Override
+  protected boolean isDirty(BlockState state) {
+    return state == BlockState.MESI_MODIFIED;
+  }
+
+  @Override
+  protected boolean isWritable(BlockState state) {
+    return state == BlockState.MESI_MODIFIED || state == BlockState.MESI_EXCLUSIVE;
+  }
+
+  @Override
+  protected BlockState getPrefetchState(boolean shared) {
+    return shared ? BlockState.MESI_SHARED : BlockState.MESI_EXCLUSIVE;
+  }
+
   @Override
   protected void prRd(int address) {
-    CacheSet set = sets.get(getSetIndex(address));
+    CacheSet set = getSet(address);
     int tag = getTag(address);
     BlockState state = BlockState.MESI_INVALID;
     if (set.contains(tag)) {
       state = set.getState(tag);
     }
-    updateCacheStatistics(Optional.of(state));
+    updateCacheStatistics(state);
     switch (state) {
       case MESI_MODIFIED:
       case MESI_EXCLUSIVE:
       case MESI_SHARED:
         set.use(tag);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case MESI_INVALID:
-        bus.reserve(this);
+        reserveBus();
         cacheState = CacheState.READING_WAITBUS;
         break;
       default:
@@ -191,24 +219,24 @@ public class MesiCache extends Cache {
 
   @Override
   protected void prWr(int address) {
-    CacheSet set = sets.get(getSetIndex(address));
+    CacheSet set = getSet(address);
     int tag = getTag(address);
     BlockState state = BlockState.MESI_INVALID;
     if (set.contains(tag)) {
       state = set.getState(tag);
     }
-    updateCacheStatistics(Optional.of(state));
+    updateCacheStatistics(state);
     switch (state) {
       case MESI_EXCLUSIVE:
         set.update(tag, BlockState.MESI_MODIFIED);
       case MESI_MODIFIED:
         set.use(tag);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case MESI_SHARED:
       case MESI_INVALID:
-        bus.reserve(this);
+        reserveBus();
         cacheState = CacheState.WRITING_WAITBUS;
         break;
       default:
@@ -216,25 +244,25 @@ public class MesiCache extends Cache {
     }
   }
 
-  private Optional<BusTransaction> busRd(int address) {
-    CacheSet set = sets.get(getSetIndex(address));
+  private SnoopResult busRd(int address) {
+    CacheSet set = getSet(address);
     int tag = getTag(address);
     if (!set.contains(tag)) {
-      return Optional.empty();
+      return SnoopResult.NONE;
     }
 
-    Optional<BusTransaction> response = Optional.empty();
+    SnoopResult response = SnoopResult.NONE;
     switch (set.getState(tag)) {
       case MESI_MODIFIED:
         set.update(tag, BlockState.MESI_SHARED);
-        response = Optional.of(new BusTransaction(Transition.FLUSH, address, blockSize));
+        response = SnoopResult.FLUSH;
         break;
       case MESI_EXCLUSIVE:
         set.update(tag, BlockState.MESI_SHARED);
-        response = Optional.of(new BusTransaction(Transition.FLUSH_OPT, address, blockSize));
+        response = SnoopResult.FLUSH_OPT;
         break;
       case MESI_SHARED:
-        response = Optional.of(new BusTransaction(Transition.FLUSH_OPT, address, blockSize));
+        response = SnoopResult.FLUSH_OPT;
         break;
       case MESI_INVALID:
       default:
@@ -243,26 +271,26 @@ public class MesiCache extends Cache {
     return response;
   }
 
-  private Optional<BusTransaction> busRdX(int address) {
-    CacheSet set = sets.get(getSetIndex(address));
+  private SnoopResult busRdX(int address) {
+    CacheSet set = getSet(address);
     int tag = getTag(address);
     if (!set.contains(tag)) {
-      return Optional.empty();
+      return SnoopResult.NONE;
     }
 
-    Optional<BusTransaction> response = Optional.empty();
+    SnoopResult response = SnoopResult.NONE;
     switch (set.getState(tag)) {
       case MESI_MODIFIED:
         set.invalidate(tag);
-        response = Optional.of(new BusTransaction(Transition.FLUSH, address, blockSize));
+        response = SnoopResult.FLUSH;
         break;
       case MESI_EXCLUSIVE:
         set.invalidate(tag);
-        response = Optional.of(new BusTransaction(Transition.FLUSH_OPT, address, blockSize));
+        response = SnoopResult.FLUSH_OPT;
         break;
       case MESI_SHARED:
         set.invalidate(tag);
-        response = Optional.of(new BusTransaction(Transition.FLUSH_OPT, address, blockSize));
+        response = SnoopResult.FLUSH_OPT;
         break;
       case MESI_INVALID:
       default:
@@ -272,7 +300,7 @@ public class MesiCache extends Cache {
   }
 
   private void busUpgr(int address) {
-    CacheSet set = sets.get(getSetIndex(address));
+    CacheSet set = getSet(address);
     int tag = getTag(address);
     if (!set.contains(tag)) {
       return;
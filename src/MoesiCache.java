@@ -1,7 +1,7 @@
 import java.util.*;
 
 public class MoesiCache extends Cache {
-  public MoesiCache(Bus bus, int cacheSize, int associativity, int blockSize) {
+  public MoesiCache(Interconnect bus, int cacheSize, int associativity, int blockSize) {
     super(bus, cacheSize, associativity, blockSize);
   }
 
@@ -16,7 +16,7 @@ public class MoesiCache extends Cache {
         // Cold miss
         if (!set.isFull()) {
           pendingState = CacheState.READING;
-          pendingTransaction = new BusTransaction(Transition.BUS_RD, pendingAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.BUS_RD, pendingAddress, blockSize);
           break;
         }
         // Conflict miss
@@ -28,11 +28,11 @@ public class MoesiCache extends Cache {
         if (evictionTargetState == BlockState.MOESI_MODIFIED || evictionTargetState == BlockState.MOESI_OWNED) {
           // Need to flush evictee
           pendingState = CacheState.READING_PENDING_FLUSH;
-          pendingTransaction = new BusTransaction(Transition.FLUSH, evictionTargetAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.FLUSH, evictionTargetAddress, blockSize);
         } else {
           // No need to flush evictee
           pendingState = CacheState.READING;
-          pendingTransaction = new BusTransaction(Transition.BUS_RD, pendingAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.BUS_RD, pendingAddress, blockSize);
         }
         break;
       }
@@ -42,14 +42,14 @@ public class MoesiCache extends Cache {
         if (set.contains(tag)) {
           if (set.getState(tag) == BlockState.MOESI_SHARED || set.getState(tag) == BlockState.MOESI_OWNED) {
             pendingState = CacheState.WRITING;
-            pendingTransaction = new BusTransaction(Transition.BUS_UPGR, pendingAddress, 0);
+            pendingTransaction = transaction.set(Transition.BUS_UPGR, pendingAddress, 0);
             break;
           }
         }
         // Cold miss
         if (!set.isFull()) {
           pendingState = CacheState.WRITING;
-          pendingTransaction = new BusTransaction(Transition.BUS_RD_X, pendingAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.BUS_RD_X, pendingAddress, blockSize);
           break;
         }
         // Conflict miss
@@ -61,11 +61,11 @@ public class MoesiCache extends Cache {
         if (evictionTargetState == BlockState.MOESI_MODIFIED || evictionTargetState == BlockState.MOESI_OWNED) {
           // Need to flush evictee
           pendingState = CacheState.WRITING_PENDING_FLUSH;
-          pendingTransaction = new BusTransaction(Transition.FLUSH, evictionTargetAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.FLUSH, evictionTargetAddress, blockSize);
         } else {
           // No need to flush evictee
           pendingState = CacheState.WRITING;
-          pendingTransaction = new BusTransaction(Transition.BUS_RD_X, pendingAddress, blockSize);
+          pendingTransaction = transaction.set(Transition.BUS_RD_X, pendingAddress, blockSize);
         }
         break;
       }
@@ -89,7 +89,7 @@ public class MoesiCache extends Cache {
         BlockState newBlockState = result.getShared() ? BlockState.MOESI_SHARED : BlockState.MOESI_EXCLUSIVE;
         set.add(tag, newBlockState);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case BUS_RD_X:
         if (cacheState != CacheState.WRITING) {
@@ -97,7 +97,7 @@ public class MoesiCache extends Cache {
         }
         set.add(tag, BlockState.MOESI_MODIFIED);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case BUS_UPGR:
         if (cacheState != CacheState.WRITING) {
@@ -106,7 +106,7 @@ public class MoesiCache extends Cache {
         set.update(tag, BlockState.MOESI_MODIFIED);
         set.use(tag);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case FLUSH:
         if (cacheState == CacheState.READING_PENDING_FLUSH) {
@@ -124,10 +124,10 @@ public class MoesiCache extends Cache {
   }
 
   @Override
-  public Optional<BusTransaction> snoop(BusTransaction transaction) {
+  public SnoopResult snoop(BusTransaction transaction) {
     int address = transaction.getAddress();
 
-    Optional<BusTransaction> response = Optional.empty();
+    SnoopResult response = SnoopResult.NONE;
     switch (transaction.getTransition()) {
       case BUS_RD:
         response = busRd(address);
@@ -145,9 +145,9 @@ public class MoesiCache extends Cache {
   }
 
   @Override
-  protected void updateCacheStatistics(Optional<BlockState> state) {
+  protected void updateCacheStatistics(BlockState state) {
     cacheNumTotalAccesses++;
-    switch (state.get()) {
+    switch (state) {
       case MOESI_MODIFIED:
       case MOESI_EXCLUSIVE:
         cacheNumHits++;
@@ -166,15 +166,30 @@ public class MoesiCache extends Cache {
     }
   }
 
+  @Override
+  protected boolean isDirty(BlockState state) {
+    return state == BlockState.MOESI_MODIFIED || state == BlockState.MOESI_OWNED;
+  }
+
+  @Override
+  protected boolean isWritable(BlockState state) {
+    return state == BlockState.MOESI_MODIFIED || state == BlockState.MOESI_EXCLUSIVE;
+  }
+
+  @Override
+  protected BlockState getPrefetchState(boolean shared) {
+    return shared ? BlockState.MOESI_SHARED : BlockState.MOESI_EXCLUSIVE;
+  }
+
   @Override
   protected void prRd(int address) {
-    CacheSet set = sets.get(getSetIndex(address));
+    CacheSet set = getSet(address);
     int tag = getTag(address);
     BlockState state = BlockState.MOESI_INVALID;
     if (set.contains(tag)) {
       state = set.getState(tag);
     }
-    updateCacheStatistics(Optional.of(state));
+    updateCacheStatistics(state);
     switch (state) {
       case MOESI_MODIFIED:
       case MOESI_OWNED:
@@ -182,10 +197,10 @@ public class MoesiCache extends Cache {
       case MOESI_SHARED:
         set.use(tag);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case MOESI_INVALID:
-        bus.reserve(this);
+        reserveBus();
         cacheState = CacheState.READING_WAITBUS;
         break;
       default:
@@ -195,25 +210,25 @@ public class MoesiCache extends Cache {
 
   @Override
   protected void prWr(int address) {
-    CacheSet set = sets.get(getSetIndex(address));
+    CacheSet set = getSet(address);
     int tag = getTag(address);
     BlockState state = BlockState.MOESI_INVALID;
     if (set.contains(tag)) {
       state = set.getState(tag);
     }
-    updateCacheStatistics(Optional.of(state));
+    updateCacheStatistics(state);
     switch (state) {
       case MOESI_EXCLUSIVE:
         set.update(tag, BlockState.MOESI_MODIFIED);
       case MOESI_MODIFIED:
         set.use(tag);
         cacheState = CacheState.READY;
-        processor.unstall();
+        completeAccess();
         break;
       case MOESI_OWNED:
       case MOESI_SHARED:
       case MOESI_INVALID:
-        bus.reserve(this);
+        reserveBus();
         cacheState = CacheState.WRITING_WAITBUS;
         break;
       default:
@@ -221,24 +236,24 @@ public class MoesiCache extends Cache {
     }
   }
 
-  private Optional<BusTransaction> busRd(int address) {
-    CacheSet set = sets.get(getSetIndex(address));
+  private SnoopResult busRd(int address) {
+    CacheSet set = getSet(address);
     int tag = getTag(address);
     if (!set.contains(tag)) {
-      return Optional.empty();
+      return SnoopResult.NONE;
     }
 
-    Optional<BusTransaction> response = Optional.empty();
+    SnoopResult response = SnoopResult.NONE;
     switch (set.getState(tag)) {
       case MOESI_MODIFIED:
         set.update(tag, BlockState.MOESI_OWNED);
       case MOESI_OWNED:
-        response = Optional.of(new BusTransaction(Transition.FLUSH_OPT, address, blockSize));
+        response = SnoopResult.FLUSH_OPT;
         break;
       case MOESI_EXCLUSIVE:
         set.update(tag, BlockState.MOESI_SHARED);
       case MOESI_SHARED:
-        response = Optional.of(new BusTransaction(Transition.FLUSH_OPT, address, blockSize));
+        response = SnoopResult.FLUSH_OPT;
         break;
       case MOESI_INVALID:
       default:
@@ -247,24 +262,24 @@ public class MoesiCache extends Cache {
     return response;
   }
 
-  private Optional<BusTransaction> busRdX(int address) {
-    CacheSet set = sets.get(getSetIndex(address));
+  private SnoopResult busRdX(int address) {
+    CacheSet set = getSet(address);
     int tag = getTag(address);
     if (!set.contains(tag)) {
-      return Optional.empty();
+      return SnoopResult.NONE;
     }
 
-    Optional<BusTransaction> response = Optional.empty();
+    SnoopResult response = SnoopResult.NONE;
     switch (set.getState(tag)) {
       case MOESI_MODIFIED:
       case MOESI_OWNED:
         set.invalidate(tag);
-        response = Optional.of(new BusTransaction(Transition.FLUSH, address, blockSize));
+        response = SnoopResult.FLUSH;
         break;
       case MOESI_EXCLUSIVE:
       case MOESI_SHARED:
         set.invalidate(tag);
-        response = Optional.of(new BusTransaction(Transition.FLUSH_OPT, address, blockSize));
+        response = SnoopResult.FLUSH_OPT;
         break;
       case MOESI_INVALID:
       default:
@@ -274,7 +289,7 @@ public class MoesiCache extends Cache {
   }
 
   private void busUpgr(int address) {
-    CacheSet set = sets.get(getSetIndex(address));
+    CacheSet set = getSet(address);
     int tag = getTag(address);
     if (!set.contains(tag)) {
       return;
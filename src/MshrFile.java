@@ -0,0 +1,275 @@
+import java.io.*;
+
+/**
+ * MshrFile holds the misses of a non-blocking cache while they are served.
+ * Each entry is a block with the access that missed on it first and the
+ * secondary misses merged into it since. Entries remember the order they
+ * were allocated in, and their accesses are kept in flat arrays with a slice
+ * per entry, so nothing is allocated once the file is built.
+ *
+ * The cache serves one entry at a time: the oldest waiting entry whose block
+ * has no older entry. Once the fetch of the entry being served is on the
+ * interconnect, the cache may leave the entry fetching and serve the next,
+ * so that several entries wait for their data at once. Every access of an
+ * entry completes when it does. A load merges into any entry for its block,
+ * but a store only into an entry that fetches the block to write it;
+ * otherwise it takes an entry of its own behind the first.
+ */
+public class MshrFile {
+  enum State {
+    FREE, WAITING, STARTED, FETCHING
+  }
+
+  private int blockSize;
+  private int entries;
+  private int accessesPerEntry;
+
+  // Entries, by the address of their first access and the order they were
+  // allocated in
+  private int[] addresses;
+  private int[] counts;
+  private State[] states;
+  private long[] sequences;
+  private long nextSequence = 0;
+  private int size = 0;
+  private int started = -1;
+
+  // Accesses of each entry, from index entry * accessesPerEntry
+  private long[] issueCycles;
+  private boolean[] stores;
+
+  public MshrFile(int entries, int accessesPerEntry, int blockSize) {
+    this.blockSize = blockSize;
+    this.entries = entries;
+    this.accessesPerEntry = accessesPerEntry;
+    this.addresses = new int[entries];
+    this.counts = new int[entries];
+    this.states = new State[entries];
+    this.sequences = new long[entries];
+    this.issueCycles = new long[entries * accessesPerEntry];
+    this.stores = new boolean[entries * accessesPerEntry];
+    for (int i = 0; i < entries; i++) {
+      states[i] = State.FREE;
+    }
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean isFull() {
+    return size == entries;
+  }
+
+  /**
+   * Whether no entry is being served and one waits for the cache to start
+   * serving it
+   */
+  public boolean hasWaiting() {
+    return started < 0 && findWaiting() >= 0;
+  }
+
+  public boolean contains(int block) {
+    return findNewest(block) >= 0;
+  }
+
+  /**
+   * Merges a secondary miss into the newest entry for its block, returning
+   * false if there is none or it cannot take the access
+   */
+  public boolean merge(int address, boolean store, long issueCycle) {
+    int entry = findNewest(address / blockSize);
+    if (entry < 0 || counts[entry] == accessesPerEntry || (store && !stores[entry * accessesPerEntry])) {
+      return false;
+    }
+    addAccess(entry, store, issueCycle);
+    return true;
+  }
+
+  public void allocate(int address, boolean store, long issueCycle) {
+    if (isFull()) {
+      throw new RuntimeException("Allocating an MSHR when every MSHR is in use");
+    }
+    int entry = 0;
+    while (states[entry] != State.FREE) {
+      entry++;
+    }
+    addresses[entry] = address;
+    counts[entry] = 0;
+    states[entry] = State.WAITING;
+    sequences[entry] = nextSequence++;
+    addAccess(entry, store, issueCycle);
+    size++;
+  }
+
+  /**
+   * Marks the next waiting entry as being served and returns the address of
+   * its first access
+   */
+  public int start() {
+    if (!hasWaiting()) {
+      throw new RuntimeException("Starting an MSHR when none is waiting");
+    }
+    started = findWaiting();
+    states[started] = State.STARTED;
+    return addresses[started];
+  }
+
+  /**
+   * Address of the first access of the entry start() would serve next
+   */
+  public int getWaitingAddress() {
+    return addresses[findWaiting()];
+  }
+
+  /**
+   * The entry being served, or -1 if there is none
+   */
+  public int getStarted() {
+    return started;
+  }
+
+  /**
+   * Whether the entry being served fetches its block to write it
+   */
+  public boolean isWrite() {
+    return stores[started * accessesPerEntry];
+  }
+
+  /**
+   * Leaves the entry being served waiting for the data of its block, so that
+   * the next entry can be served meanwhile
+   */
+  public void detach() {
+    if (started < 0) {
+      throw new RuntimeException("Detaching an MSHR that was not started");
+    }
+    states[started] = State.FETCHING;
+    started = -1;
+  }
+
+  /**
+   * Number of entries waiting for the data of their block
+   */
+  public int getFetchingCount() {
+    int count = 0;
+    for (int i = 0; i < entries; i++) {
+      if (states[i] == State.FETCHING) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * The entry waiting for the data of block, or -1 if there is none
+   */
+  public int getFetching(int block) {
+    for (int i = 0; i < entries; i++) {
+      if (states[i] == State.FETCHING && addresses[i] / blockSize == block) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Number of accesses of entry
+   */
+  public int getAccesses(int entry) {
+    return counts[entry];
+  }
+
+  public long getIssueCycle(int entry, int access) {
+    return issueCycles[entry * accessesPerEntry + access];
+  }
+
+  public boolean isStore(int entry, int access) {
+    return stores[entry * accessesPerEntry + access];
+  }
+
+  /**
+   * Frees entry once it has been served
+   */
+  public void complete(int entry) {
+    if (states[entry] != State.STARTED && states[entry] != State.FETCHING) {
+      throw new RuntimeException("Completing an MSHR that was not started");
+    }
+    states[entry] = State.FREE;
+    size--;
+    if (entry == started) {
+      started = -1;
+    }
+  }
+
+  public void writeState(DataOutputStream out) throws IOException {
+    Checkpoint.writeInts(out, addresses);
+    Checkpoint.writeInts(out, counts);
+    for (int i = 0; i < entries; i++) {
+      out.writeByte(states[i].ordinal());
+    }
+    Checkpoint.writeLongs(out, sequences);
+    out.writeLong(nextSequence);
+    out.writeInt(size);
+    out.writeInt(started);
+    Checkpoint.writeLongs(out, issueCycles);
+    Checkpoint.writeBooleans(out, stores);
+  }
+
+  public void readState(DataInputStream in) throws IOException {
+    Checkpoint.readInts(in, addresses);
+    Checkpoint.readInts(in, counts);
+    for (int i = 0; i < entries; i++) {
+      states[i] = State.values()[in.readByte()];
+    }
+    Checkpoint.readLongs(in, sequences);
+    nextSequence = in.readLong();
+    size = in.readInt();
+    started = in.readInt();
+    Checkpoint.readLongs(in, issueCycles);
+    Checkpoint.readBooleans(in, stores);
+  }
+
+  /**
+   * Oldest waiting entry whose block has no older entry, or -1 if there is
+   * none
+   */
+  private int findWaiting() {
+    int oldest = -1;
+    for (int i = 0; i < entries; i++) {
+      if (states[i] == State.WAITING && (oldest < 0 || sequences[i] < sequences[oldest])
+          && !hasOlder(i)) {
+        oldest = i;
+      }
+    }
+    return oldest;
+  }
+
+  private boolean hasOlder(int entry) {
+    int block = addresses[entry] / blockSize;
+    for (int i = 0; i < entries; i++) {
+      if (states[i] != State.FREE && sequences[i] < sequences[entry] && addresses[i] / blockSize == block) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int findNewest(int block) {
+    int newest = -1;
+    for (int i = 0; i < entries; i++) {
+      if (states[i] != State.FREE && addresses[i] / blockSize == block
+          && (newest < 0 || sequences[i] > sequences[newest])) {
+        newest = i;
+      }
+    }
+    return newest;
+  }
+
+  private void addAccess(int entry, boolean store, long issueCycle) {
+    int index = entry * accessesPerEntry + counts[entry];
+    issueCycles[index] = issueCycle;
+    stores[index] = store;
+    counts[entry]++;
+  }
+}
@@ -0,0 +1,149 @@
+import java.util.*;
+import java.util.concurrent.Phaser;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * ParallelEngine runs the per-cycle processor phases on several threads. The
+ * processors are split into contiguous shards, one per thread, and the
+ * threads meet at a Phaser between the processor and bus phases. Each cycle a
+ * thread tocks the previous cycle and ticks the current one for its shard,
+ * then the first thread runs the bus alone. Reservations made while ticking
+ * are deferred and handed to the bus in processor order, so results match the
+ * sequential engines exactly.
+ */
+public class ParallelEngine {
+  private Interconnect bus;
+  private List<Processor> processors;
+  private List<Cache> caches;
+  private int numThreads;
+  private LongSupplier nextPause;
+  private LongConsumer pause;
+
+  private Phaser phaser;
+  private boolean[] shardDone;
+  private boolean stopped = false;
+  private long cycles;
+  private volatile Throwable failure;
+
+  /**
+   * Runs from startCycle, and calls pause once every processor has reached the
+   * cycle that nextPause returns, before the cycle starts
+   */
+  public ParallelEngine(Interconnect bus, List<Processor> processors, List<Cache> caches, int numThreads,
+      long startCycle, LongSupplier nextPause, LongConsumer pause) {
+    this.bus = bus;
+    this.cycles = startCycle;
+    this.nextPause = nextPause;
+    this.pause = pause;
+    this.processors = processors;
+    this.caches = caches;
+    this.numThreads = Integer.max(1, Integer.min(numThreads, processors.size()));
+  }
+
+  /**
+   * Runs the simulation to completion and returns the cycle it completed at
+   */
+  public long run() {
+    caches.forEach(c -> c.setDeferReservations(true));
+    phaser = new Phaser(numThreads);
+    shardDone = new boolean[numThreads];
+
+    List<Thread> workers = new ArrayList<>();
+    for (int shard = 1; shard < numThreads; shard++) {
+      int workerShard = shard;
+      Thread worker = new Thread(() -> work(workerShard), "simulator-worker-" + shard);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+    work(0);
+    for (Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for simulator workers", e);
+      }
+    }
+
+    caches.forEach(c -> c.setDeferReservations(false));
+    if (failure != null) {
+      throw new RuntimeException("Simulator worker failed", failure);
+    }
+    return cycles;
+  }
+
+  private void work(int shard) {
+    int from = processors.size() * shard / numThreads;
+    int to = processors.size() * (shard + 1) / numThreads;
+    boolean first = true;
+    try {
+      while (true) {
+        boolean done = true;
+        for (int i = from; i < to; i++) {
+          Processor processor = processors.get(i);
+          if (!first && processor.state != Processor.ProcessorState.DONE) {
+            processor.tock();
+          }
+          done &= processor.state == Processor.ProcessorState.DONE;
+        }
+        shardDone[shard] = done;
+        if (cycles >= nextPause.getAsLong()) {
+          // Every thread sees the same cycles here, so all of them meet to let
+          // the first thread pause once every processor has tocked
+          if (phaser.arriveAndAwaitAdvance() < 0) {
+            return;
+          }
+          if (shard == 0) {
+            pause.accept(cycles);
+          }
+          if (phaser.arriveAndAwaitAdvance() < 0) {
+            return;
+          }
+        }
+        for (int i = from; i < to; i++) {
+          Processor processor = processors.get(i);
+          if (processor.state != Processor.ProcessorState.DONE) {
+            processor.tick();
+          }
+        }
+        if (phaser.arriveAndAwaitAdvance() < 0) {
+          return;
+        }
+
+        if (shard == 0) {
+          runBus();
+        }
+        if (phaser.arriveAndAwaitAdvance() < 0 || stopped) {
+          return;
+        }
+        first = false;
+      }
+    } catch (Throwable t) {
+      failure = t;
+      phaser.forceTermination();
+    }
+  }
+
+  /**
+   * Bus phase of a cycle, unless every processor was already done before the
+   * cycle started.
+   */
+  private void runBus() {
+    boolean done = true;
+    for (boolean shardIsDone : shardDone) {
+      done &= shardIsDone;
+    }
+    if (done) {
+      stopped = true;
+      return;
+    }
+    for (int i = 0; i < caches.size(); i++) {
+      caches.get(i).flushReservation();
+    }
+    bus.tick();
+    bus.tock();
+    cycles++;
+  }
+}
@@ -0,0 +1,88 @@
+import java.io.*;
+
+/**
+ * PlruReplacement keeps a binary tree over the ways of every set, with one bit
+ * per node pointing to the half that was used less recently. A fill or hit
+ * points the nodes on the path to its way away from it, and the victim is
+ * found by following the bits down from the root, turning to the other half
+ * wherever every block below a bit is pinned. Associativity must be a power
+ * of two.
+ *
+ * Node n of a set, numbered from 1 at the root with children 2n and 2n + 1,
+ * is stored at set * associativity + n, leaving the first slot of each set
+ * unused.
+ */
+public class PlruReplacement extends ReplacementPolicy {
+  private final boolean[] pointsRight;
+
+  public PlruReplacement(int numSets, int associativity) {
+    super(numSets, associativity, 0);
+    if (Integer.bitCount(associativity) != 1) {
+      throw new RuntimeException("Tree PLRU needs a power of two associativity");
+    }
+    this.pointsRight = new boolean[numSets * associativity];
+  }
+
+  @Override
+  public void fill(int index) {
+    touch(index);
+  }
+
+  @Override
+  public void touch(int index) {
+    int base = index - index % associativity;
+    int node = associativity + index - base;
+    while (node > 1) {
+      // A left child makes its parent point right, and the other way round
+      pointsRight[base + (node >> 1)] = (node & 1) == 0;
+      node >>= 1;
+    }
+  }
+
+  @Override
+  public int findVictim(int setIndex, boolean[] pinned) {
+    int base = setIndex * associativity;
+    int node = 1;
+    while (node < associativity) {
+      node = 2 * node + (pointsRight[base + node] ? 1 : 0);
+      if (isPinned(pinned, base, node)) {
+        node ^= 1;
+      }
+    }
+    return base + node - associativity;
+  }
+
+  /**
+   * Whether every block below node is pinned
+   */
+  private boolean isPinned(boolean[] pinned, int base, int node) {
+    int first = node;
+    int ways = 1;
+    while (first < associativity) {
+      first <<= 1;
+      ways <<= 1;
+    }
+    for (int index = base + first - associativity; index < base + first - associativity + ways; index++) {
+      if (!pinned[index]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void writeState(DataOutputStream out) throws IOException {
+    super.writeState(out);
+    for (boolean bit : pointsRight) {
+      out.writeBoolean(bit);
+    }
+  }
+
+  @Override
+  public void readState(DataInputStream in) throws IOException {
+    super.readState(in);
+    for (int i = 0; i < pointsRight.length; i++) {
+      pointsRight[i] = in.readBoolean();
+    }
+  }
+}
@@ -0,0 +1,174 @@
+import java.io.*;
+
+/**
+ * Prefetcher predicts the blocks a cache will miss on next from the blocks of
+ * its demand misses, and of its first hits on blocks it prefetched, which
+ * would have been misses without it. Predicted blocks wait in a small ring
+ * until the bus is free for the cache to fetch them, the oldest being dropped
+ * when it overflows.
+ *
+ * NEXT_LINE predicts the degree blocks after every trigger. STRIDE looks for
+ * a constant distance between consecutive triggers, without the instruction
+ * addresses the traces lack, and predicts degree strides ahead once the same
+ * stride is seen twice in a row. STREAM keeps up to STREAMS streams of
+ * consecutive blocks in either direction, confirmed by two adjacent triggers,
+ * and keeps degree blocks ahead of each stream as it advances.
+ */
+public class Prefetcher {
+  enum Type {
+    NEXT_LINE, STRIDE, STREAM
+  }
+
+  static final int MAX_DEGREE = 16;
+  private static final int CAPACITY = 2 * MAX_DEGREE;
+  private static final int STREAMS = 4;
+
+  private Type type;
+  private int degree;
+
+  // Ring of predicted blocks
+  private int[] candidates = new int[CAPACITY];
+  private int head = 0;
+  private int size = 0;
+
+  // Stride detection
+  private int lastBlock = -1;
+  private int lastStride = 0;
+
+  // Streams, with a direction of 0 until confirmed
+  private int[] streamLast = new int[STREAMS];
+  private int[] streamDirection = new int[STREAMS];
+  private int[] streamFrontier = new int[STREAMS];
+  private long[] streamLastUse = new long[STREAMS];
+  private long useCounter = 0;
+
+  public Prefetcher(Type type, int degree) {
+    this.type = type;
+    this.degree = degree;
+  }
+
+  /**
+   * Observes a demand miss on block, or the first hit on a prefetched block
+   */
+  public void train(int block) {
+    switch (type) {
+      case NEXT_LINE:
+        for (int i = 1; i <= degree; i++) {
+          offer(block + i);
+        }
+        break;
+      case STRIDE:
+        int stride = block - lastBlock;
+        if (lastBlock >= 0 && stride != 0 && stride == lastStride) {
+          for (int i = 1; i <= degree; i++) {
+            offer(block + i * stride);
+          }
+        }
+        lastStride = lastBlock >= 0 ? stride : 0;
+        lastBlock = block;
+        break;
+      case STREAM:
+        trainStreams(block);
+        break;
+    }
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Removes and returns the oldest predicted block, or -1 if there is none
+   */
+  public int poll() {
+    if (size == 0) {
+      return -1;
+    }
+    int block = candidates[head];
+    head = (head + 1) % CAPACITY;
+    size--;
+    return block;
+  }
+
+  public void writeState(DataOutputStream out) throws IOException {
+    Checkpoint.writeInts(out, candidates);
+    out.writeInt(head);
+    out.writeInt(size);
+    out.writeInt(lastBlock);
+    out.writeInt(lastStride);
+    Checkpoint.writeInts(out, streamLast);
+    Checkpoint.writeInts(out, streamDirection);
+    Checkpoint.writeInts(out, streamFrontier);
+    Checkpoint.writeLongs(out, streamLastUse);
+    out.writeLong(useCounter);
+  }
+
+  public void readState(DataInputStream in) throws IOException {
+    Checkpoint.readInts(in, candidates);
+    head = in.readInt();
+    size = in.readInt();
+    lastBlock = in.readInt();
+    lastStride = in.readInt();
+    Checkpoint.readInts(in, streamLast);
+    Checkpoint.readInts(in, streamDirection);
+    Checkpoint.readInts(in, streamFrontier);
+    Checkpoint.readLongs(in, streamLastUse);
+    useCounter = in.readLong();
+  }
+
+  private void trainStreams(int block) {
+    useCounter++;
+    for (int i = 0; i < STREAMS; i++) {
+      if (streamLastUse[i] == 0) {
+        continue;
+      }
+      int distance = block - streamLast[i];
+      if (distance == 0) {
+        streamLastUse[i] = useCounter;
+        return;
+      }
+      if (streamDirection[i] == 0 && (distance == 1 || distance == -1)) {
+        streamDirection[i] = distance;
+        streamFrontier[i] = block;
+      }
+      // A confirmed stream advances on any block up to just past its frontier
+      int ahead = distance * streamDirection[i];
+      if (streamDirection[i] != 0 && ahead > 0
+          && ahead <= (streamFrontier[i] - streamLast[i]) * streamDirection[i] + 1) {
+        int direction = streamDirection[i];
+        int target = block + degree * direction;
+        for (int next = streamFrontier[i] + direction; (target - next) * direction >= 0; next += direction) {
+          if ((next - block) * direction > 0) {
+            offer(next);
+          }
+        }
+        streamLast[i] = block;
+        streamFrontier[i] = target;
+        streamLastUse[i] = useCounter;
+        return;
+      }
+    }
+    int victim = 0;
+    for (int i = 1; i < STREAMS; i++) {
+      if (streamLastUse[i] < streamLastUse[victim]) {
+        victim = i;
+      }
+    }
+    streamLast[victim] = block;
+    streamDirection[victim] = 0;
+    streamFrontier[victim] = block;
+    streamLastUse[victim] = useCounter;
+  }
+
+  private void offer(int block) {
+    if (block < 0) {
+      return;
+    }
+    if (size == CAPACITY) {
+      head = (head + 1) % CAPACITY;
+      size--;
+    }
+    candidates[(head + size) % CAPACITY] = block;
+    size++;
+  }
+}
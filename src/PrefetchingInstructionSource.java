@@ -0,0 +1,180 @@
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PrefetchingInstructionSource decodes another InstructionSource ahead of time
+ * on a background thread. Decoded instructions are kept as primitive records in
+ * a bounded single-producer/single-consumer ring, so the simulation thread only
+ * reads from memory, and the decoder blocks once the ring is full.
+ *
+ * Both sides only publish their position every BATCH records, or when they are
+ * about to wait, so the ring costs no volatile write per instruction.
+ */
+public class PrefetchingInstructionSource implements InstructionSource {
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+  private static final int BATCH = 256;
+  private static final int SPIN_LIMIT = 128;
+  private static final long PARK_NANOS = 20_000;
+  private static final Instruction.Type[] TYPES = Instruction.Type.values();
+
+  private final InstructionSource source;
+  private final byte[] types;
+  private final int[] values;
+  private final int mask;
+  private final Thread producer;
+
+  // Positions shared between the two threads
+  private volatile long head = 0;
+  private volatile long tail = 0;
+  private volatile boolean finished = false;
+  private volatile boolean closed = false;
+  private volatile RuntimeException failure;
+
+  // Consumer state
+  private long read = 0;
+  private long available = 0;
+  private int value;
+  private long stalls = 0;
+  private long stallNanos = 0;
+
+  // Producer state, only read by the consumer once finished
+  private volatile long fullWaits = 0;
+
+  public PrefetchingInstructionSource(InstructionSource source, int capacity, String name) {
+    if (capacity < BATCH || Integer.bitCount(capacity) != 1) {
+      throw new RuntimeException("Prefetch capacity must be a power of two of at least " + BATCH);
+    }
+    this.source = source;
+    this.types = new byte[capacity];
+    this.values = new int[capacity];
+    this.mask = capacity - 1;
+    this.producer = new Thread(this::produce, "trace-prefetch-" + name);
+    producer.setDaemon(true);
+    producer.start();
+  }
+
+  private void produce() {
+    long written = 0;
+    long consumed = 0;
+    long waits = 0;
+    try {
+      while (!closed && source.hasNext()) {
+        Instruction.Type type = source.next();
+        if (written - consumed == types.length) {
+          consumed = head;
+          if (written - consumed == types.length) {
+            tail = written;
+            waits++;
+            while (!closed && written - (consumed = head) == types.length) {
+              LockSupport.parkNanos(PARK_NANOS);
+            }
+          }
+        }
+        int index = (int) written & mask;
+        types[index] = (byte) type.ordinal();
+        values[index] = source.getValue();
+        written++;
+        if ((written & (BATCH - 1)) == 0) {
+          tail = written;
+        }
+      }
+    } catch (RuntimeException e) {
+      failure = e;
+    } finally {
+      source.close();
+      tail = written;
+      fullWaits = waits;
+      finished = true;
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return read < available || awaitRecords();
+  }
+
+  /**
+   * Waits until the decoder has published more records or reached the end of
+   * the trace, counting the wait as a stall.
+   */
+  private boolean awaitRecords() {
+    head = read;
+    long start = 0;
+    int spins = 0;
+    while (true) {
+      boolean done = finished;
+      available = tail;
+      if (read < available) {
+        break;
+      }
+      if (done) {
+        if (failure != null) {
+          throw failure;
+        }
+        return false;
+      }
+      if (start == 0) {
+        stalls++;
+        start = System.nanoTime();
+      }
+      if (spins < SPIN_LIMIT) {
+        spins++;
+        Thread.onSpinWait();
+      } else {
+        LockSupport.parkNanos(PARK_NANOS);
+      }
+    }
+    if (start != 0) {
+      stallNanos += System.nanoTime() - start;
+    }
+    return true;
+  }
+
+  @Override
+  public Instruction.Type next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    int index = (int) read & mask;
+    value = values[index];
+    Instruction.Type type = TYPES[types[index]];
+    read++;
+    if ((read & (BATCH - 1)) == 0) {
+      head = read;
+    }
+    return type;
+  }
+
+  @Override
+  public int getValue() {
+    return value;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(producer);
+  }
+
+  /**
+   * Number of times the simulation thread found the ring empty
+   */
+  public long getStalls() {
+    return stalls;
+  }
+
+  public long getStallNanos() {
+    return stallNanos;
+  }
+
+  /**
+   * Number of times the decoder found the ring full, known once it has finished
+   */
+  public long getFullWaits() {
+    return fullWaits;
+  }
+
+  public long getInstructionsRead() {
+    return read;
+  }
+}
@@ -1,3 +1,4 @@
+import java.io.*;
 import java.util.*;
 
 public class Processor {
@@ -6,11 +7,13 @@ public class Processor {
   }
 
   private Cache cache;
-  private Scanner sc;
+  private InstructionSource source;
 
   // State variables
   public ProcessorState state;
   private int computeRemaining;
+  private long instructionsRead = 0;
+  private long instructionLimit = Long.MAX_VALUE;
 
   // Statistics
   private long processorCycle = 0;
@@ -19,8 +22,45 @@ public class Processor {
   private long processorStores = 0;
   private long processorIdleCycles = 0;
 
-  public Processor(Scanner sc, Cache cache) {
-    this.sc = sc;
+  // Instructions executed functionally by warm(), which are not counted above
+  private long warmedAccesses = 0;
+  private long warmedComputeCycles = 0;
+
+  // Latency histograms, indexed by load or store and then by fill source
+  private LatencyHistogram[][] latencies;
+  private long accessStartCycle;
+  private boolean accessIsStore;
+  private boolean accessIsWarming;
+
+  // Non-blocking mode, where the processor goes on while up to window loads
+  // and stores are outstanding in the cache. It waits when the cache cannot
+  // take an access yet, when the window is full, and at the end of the trace
+  // or its instruction limit until every access is done.
+  private int window = 0;
+  private int outstanding = 0;
+  private boolean accessPending = false;
+  private boolean draining = false;
+  private long issueStallCycles = 0;
+  private long windowFullCycles = 0;
+  private long drainCycles = 0;
+
+  // Store buffer, which retires stores at once and writes them to the cache in
+  // the background, one at a time and in order. A load from a buffered address
+  // takes its value from the buffer, and other loads go ahead of the stores,
+  // waiting only while the cache is taken by one.
+  private StoreBuffer storeBuffer;
+  private boolean drainInFlight = false;
+  private boolean drainPending = false;
+  private long drainStartCycle;
+  private boolean loadWaiting = false;
+  private int waitingLoadAddress;
+  private boolean storeWaiting = false;
+  private int waitingStoreAddress;
+  private long storeForwards = 0;
+  private long storeBufferFullCycles = 0;
+
+  public Processor(InstructionSource source, Cache cache) {
+    this.source = source;
     this.cache = cache;
     cache.registerProcessor(this);
     this.state = ProcessorState.READY;
@@ -34,31 +74,82 @@ public class Processor {
       case COMPUTE:
         break;
       case READY:
-        if (!sc.hasNext()) {
+        if (instructionsRead >= instructionLimit) {
+          if (isDrained()) {
+            return;
+          }
+          drain();
+          break;
+        }
+        if (!source.hasNext()) {
+          if (!isDrained()) {
+            drain();
+            break;
+          }
           state = ProcessorState.DONE;
-          sc.close();
+          source.close();
           return;
         }
 
-        Instruction inst = getNextInstruction();
-        switch (inst.getType()) {
+        Instruction.Type type = source.next();
+        instructionsRead++;
+        switch (type) {
           case LOAD:
             processorLoads++;
-            state = ProcessorState.WAITCACHE;
-            cache.read(inst.getAddress());
+            load(source.getValue());
             break;
           case STORE:
             processorStores++;
-            state = ProcessorState.WAITCACHE;
-            cache.write(inst.getAddress());
+            store(source.getValue());
             break;
           case OTHER:
             state = ProcessorState.COMPUTE;
-            computeRemaining = inst.getCycleDuration();
+            computeRemaining = source.getValue();
         }
     }
-    cache.tick();
+    // Counted before the cache ticks, so that an access which hits takes a cycle
     processorCycle++;
+    if (storeBuffer != null) {
+      serviceStoreBuffer();
+    }
+    cache.tick();
+  }
+
+  /**
+   * Reads the next instruction of the trace and, if it is a load or store,
+   * starts it in the cache without counting a cycle. The interconnect then
+   * completes it functionally. Computation is skipped. Returns false once the
+   * trace has ended.
+   */
+  public boolean warm() {
+    if (state == ProcessorState.DONE) {
+      return false;
+    }
+    if (state != ProcessorState.READY) {
+      throw new RuntimeException("warm() called when processor is not in READY state");
+    }
+    if (!source.hasNext()) {
+      return false;
+    }
+    Instruction.Type type = source.next();
+    instructionsRead++;
+    switch (type) {
+      case LOAD:
+        state = ProcessorState.WAITCACHE;
+        cache.read(source.getValue());
+        break;
+      case STORE:
+        state = ProcessorState.WAITCACHE;
+        cache.write(source.getValue());
+        break;
+      case OTHER:
+        warmedComputeCycles += source.getValue();
+        return true;
+    }
+    warmedAccesses++;
+    accessIsWarming = true;
+    cache.warm();
+    return true;
   }
 
   public void tock() {
@@ -71,20 +162,415 @@ public class Processor {
         break;
       case WAITCACHE:
         processorIdleCycles++;
+        countStall(1);
         break;
       default:
         break;
     }
   }
 
+  /**
+   * Number of upcoming cycles in which this processor and its cache only count
+   * down, without changing state.
+   */
+  public long getSkippableCycles() {
+    if (storeBuffer != null && (loadWaiting || !storeBuffer.isEmpty() && !drainInFlight) && isPortFree()) {
+      return 0;
+    }
+    switch (state) {
+      case COMPUTE:
+        // A non-blocking cache may still have misses to start, and a store
+        // buffer stores to write
+        long computing = Long.max(computeRemaining - 1, 0);
+        return window > 0 || storeBuffer != null ? Long.min(computing, cache.getSkippableCycles()) : computing;
+      case WAITCACHE:
+        return cache.getSkippableCycles();
+      default:
+        return 0;
+    }
+  }
+
+  public void skipCycles(long cycles) {
+    switch (state) {
+      case COMPUTE:
+        processorComputeCycles += cycles;
+        computeRemaining -= cycles;
+        break;
+      case WAITCACHE:
+        processorIdleCycles += cycles;
+        countStall(cycles);
+        break;
+      default:
+        throw new RuntimeException("skipCycles() called when processor is not waiting");
+    }
+    processorCycle += cycles;
+  }
+
   public void unstall() {
+    if (drainInFlight) {
+      if (latencies != null) {
+        latencies[1][cache.getFillSource().ordinal()].record(processorCycle - drainStartCycle);
+      }
+      completeDrain();
+      return;
+    }
     if (state == ProcessorState.WAITCACHE) { // For idempotency
       state = ProcessorState.READY;
+      if (latencies != null && !accessIsWarming) {
+        latencies[accessIsStore ? 1 : 0][cache.getFillSource().ordinal()].record(processorCycle - accessStartCycle);
+      }
+      accessIsWarming = false;
     } else {
       throw new RuntimeException("unstall() was called when processor was not in WAITCACHE state");
     }
   }
 
+  /**
+   * Lets loads and stores that miss wait in mshrs MSHRs of the cache while the
+   * processor goes on, with up to window of them outstanding. Must be set
+   * before the first instruction.
+   */
+  public void setNonBlocking(int mshrs, int window) {
+    this.window = window;
+    cache.setMshrs(mshrs, window);
+  }
+
+  /**
+   * Retires stores into a buffer of the given depth instead of waiting for the
+   * cache. Must be set before the first instruction.
+   */
+  public void setStoreBuffer(int depth) {
+    this.storeBuffer = new StoreBuffer(depth);
+  }
+
+  /**
+   * Called by a non-blocking cache once it has taken the issued access
+   */
+  public void accept() {
+    if (drainPending) {
+      drainPending = false;
+      return;
+    }
+    accessPending = false;
+    if (outstanding < window) {
+      state = ProcessorState.READY;
+    }
+  }
+
+  /**
+   * Called by a non-blocking cache once an access issued at issueCycle is
+   * done, with where its block came from
+   */
+  public void completeAccess(long issueCycle, boolean store, Cache.FillSource fillSource) {
+    if (latencies != null) {
+      latencies[store ? 1 : 0][fillSource.ordinal()].record(processorCycle - issueCycle);
+    }
+    // With a store buffer, every store the cache serves is written from it
+    if (store && storeBuffer != null) {
+      completeDrain();
+      return;
+    }
+    outstanding--;
+    if (state == ProcessorState.WAITCACHE && !accessPending && !loadWaiting && !storeWaiting
+        && (draining ? isDrained() : outstanding < window)) {
+      state = ProcessorState.READY;
+      draining = false;
+    }
+  }
+
+  private void load(int address) {
+    if (storeBuffer != null && storeBuffer.contains(address)) {
+      // Forwarded from the buffer, which takes the cycle of a hit
+      storeForwards++;
+      return;
+    }
+    state = ProcessorState.WAITCACHE;
+    accessStartCycle = processorCycle;
+    accessIsStore = false;
+    if (window > 0) {
+      outstanding++;
+    }
+    if (storeBuffer != null && !isPortFree()) {
+      loadWaiting = true;
+      waitingLoadAddress = address;
+      return;
+    }
+    sendLoad(address);
+  }
+
+  private void sendLoad(int address) {
+    if (window > 0) {
+      accessPending = true;
+      cache.issue(address, false, accessStartCycle);
+    } else {
+      cache.read(address);
+    }
+  }
+
+  private void store(int address) {
+    if (storeBuffer != null) {
+      if (storeBuffer.isFull()) {
+        storeWaiting = true;
+        waitingStoreAddress = address;
+        state = ProcessorState.WAITCACHE;
+      } else {
+        storeBuffer.add(address);
+      }
+      return;
+    }
+    state = ProcessorState.WAITCACHE;
+    accessStartCycle = processorCycle;
+    accessIsStore = true;
+    if (window > 0) {
+      outstanding++;
+      accessPending = true;
+      cache.issue(address, true, processorCycle);
+    } else {
+      cache.write(address);
+    }
+  }
+
+  /**
+   * Gives the cache to a load that waited for it, or otherwise to the oldest
+   * buffered store once the previous one has been written
+   */
+  private void serviceStoreBuffer() {
+    if (loadWaiting && isPortFree()) {
+      loadWaiting = false;
+      sendLoad(waitingLoadAddress);
+    }
+    if (!drainInFlight && !storeBuffer.isEmpty() && isPortFree()) {
+      drainInFlight = true;
+      drainStartCycle = processorCycle - 1;
+      if (window > 0) {
+        drainPending = true;
+        cache.issue(storeBuffer.peek(), true, drainStartCycle);
+      } else {
+        cache.write(storeBuffer.peek());
+      }
+    }
+  }
+
+  /**
+   * Whether the cache can take an access from the processor now
+   */
+  private boolean isPortFree() {
+    return window > 0 ? !accessPending && !drainPending : cache.isReady();
+  }
+
+  /**
+   * Frees the oldest buffered store once the cache has written it, making room
+   * for a store that waited for space
+   */
+  private void completeDrain() {
+    storeBuffer.remove();
+    drainInFlight = false;
+    if (storeWaiting) {
+      storeWaiting = false;
+      storeBuffer.add(waitingStoreAddress);
+      state = ProcessorState.READY;
+    } else if (state == ProcessorState.WAITCACHE && draining && isDrained()) {
+      state = ProcessorState.READY;
+      draining = false;
+    }
+  }
+
+  /**
+   * Whether no load or store is outstanding or buffered
+   */
+  private boolean isDrained() {
+    return outstanding == 0 && (storeBuffer == null || storeBuffer.isEmpty());
+  }
+
+  /**
+   * Waits for the outstanding accesses before finishing or being held
+   */
+  private void drain() {
+    draining = true;
+    state = ProcessorState.WAITCACHE;
+  }
+
+  /**
+   * Attributes idle cycles of a processor with a store buffer or a
+   * non-blocking cache to why it waits
+   */
+  private void countStall(long cycles) {
+    if (storeWaiting) {
+      storeBufferFullCycles += cycles;
+    } else if (window == 0) {
+      return;
+    } else if (accessPending || loadWaiting) {
+      issueStallCycles += cycles;
+    } else if (draining) {
+      drainCycles += cycles;
+    } else {
+      windowFullCycles += cycles;
+    }
+  }
+
+  /**
+   * Records the latency of every load and store, from when it is issued to
+   * when the processor can issue again
+   */
+  public void enableLatencyHistograms() {
+    latencies = new LatencyHistogram[2][Cache.FillSource.values().length];
+    for (LatencyHistogram[] histograms : latencies) {
+      for (int i = 0; i < histograms.length; i++) {
+        histograms[i] = new LatencyHistogram();
+      }
+    }
+  }
+
+  public Map<String, Number> getLatencyStatistics() {
+    Map<String, Number> statistics = new LinkedHashMap<>();
+    if (latencies == null) {
+      return statistics;
+    }
+    String[] accesses = { "Load", "Store" };
+    String[] sources = { "Hit", "Cache Fill", "Memory Fill" };
+    for (int i = 0; i < latencies.length; i++) {
+      for (int j = 0; j < latencies[i].length; j++) {
+        latencies[i][j].putPercentiles(statistics, accesses[i] + " " + sources[j]);
+      }
+    }
+    return statistics;
+  }
+
+  /**
+   * Saves the state of this processor. Its trace is saved as the number of
+   * instructions read from it.
+   */
+  public void writeState(DataOutputStream out) throws IOException {
+    out.writeByte(state.ordinal());
+    out.writeInt(computeRemaining);
+    out.writeLong(instructionsRead);
+    out.writeLong(accessStartCycle);
+    out.writeBoolean(accessIsStore);
+    out.writeLong(processorCycle);
+    out.writeLong(processorComputeCycles);
+    out.writeLong(processorLoads);
+    out.writeLong(processorStores);
+    out.writeLong(processorIdleCycles);
+    if (window > 0) {
+      out.writeInt(outstanding);
+      out.writeBoolean(accessPending);
+      out.writeBoolean(draining);
+      out.writeLong(issueStallCycles);
+      out.writeLong(windowFullCycles);
+      out.writeLong(drainCycles);
+    }
+    if (storeBuffer != null) {
+      storeBuffer.writeState(out);
+      out.writeBoolean(drainInFlight);
+      out.writeBoolean(drainPending);
+      out.writeLong(drainStartCycle);
+      out.writeBoolean(loadWaiting);
+      out.writeInt(waitingLoadAddress);
+      out.writeBoolean(storeWaiting);
+      out.writeInt(waitingStoreAddress);
+      out.writeLong(storeForwards);
+      out.writeLong(storeBufferFullCycles);
+    }
+  }
+
+  /**
+   * Restores the state saved by writeState(), reading the trace up to where
+   * the saved processor had read it
+   */
+  public void readState(DataInputStream in) throws IOException {
+    state = ProcessorState.values()[in.readByte()];
+    computeRemaining = in.readInt();
+    long savedInstructionsRead = in.readLong();
+    accessStartCycle = in.readLong();
+    accessIsStore = in.readBoolean();
+    processorCycle = in.readLong();
+    processorComputeCycles = in.readLong();
+    processorLoads = in.readLong();
+    processorStores = in.readLong();
+    processorIdleCycles = in.readLong();
+    if (window > 0) {
+      outstanding = in.readInt();
+      accessPending = in.readBoolean();
+      draining = in.readBoolean();
+      issueStallCycles = in.readLong();
+      windowFullCycles = in.readLong();
+      drainCycles = in.readLong();
+    }
+    if (storeBuffer != null) {
+      storeBuffer.readState(in);
+      drainInFlight = in.readBoolean();
+      drainPending = in.readBoolean();
+      drainStartCycle = in.readLong();
+      loadWaiting = in.readBoolean();
+      waitingLoadAddress = in.readInt();
+      storeWaiting = in.readBoolean();
+      waitingStoreAddress = in.readInt();
+      storeForwards = in.readLong();
+      storeBufferFullCycles = in.readLong();
+    }
+    for (; instructionsRead < savedInstructionsRead; instructionsRead++) {
+      if (!source.hasNext()) {
+        throw new IOException("trace is shorter than when the checkpoint was taken");
+      }
+      source.next();
+    }
+    if (state == ProcessorState.DONE) {
+      source.close();
+    }
+  }
+
+  /**
+   * Stops issuing instructions, without counting cycles, once limit
+   * instructions have been read from the trace
+   */
+  public void setInstructionLimit(long limit) {
+    this.instructionLimit = limit;
+  }
+
+  /**
+   * Whether the processor has finished its trace or is held at its
+   * instruction limit with no access outstanding or buffered
+   */
+  public boolean isHeld() {
+    return state == ProcessorState.DONE
+        || (state == ProcessorState.READY && instructionsRead >= instructionLimit && isDrained());
+  }
+
+  public long getInstructionsRead() {
+    return instructionsRead;
+  }
+
+  public long getCycles() {
+    return processorCycle;
+  }
+
+  public long getComputeCycles() {
+    return processorComputeCycles;
+  }
+
+  public long getWarmedAccesses() {
+    return warmedAccesses;
+  }
+
+  /**
+   * Cycles the computation skipped by warm() would have taken
+   */
+  public long getWarmedComputeCycles() {
+    return warmedComputeCycles;
+  }
+
+  public long getLoads() {
+    return processorLoads;
+  }
+
+  public long getStores() {
+    return processorStores;
+  }
+
+  public long getIdleCycles() {
+    return processorIdleCycles;
+  }
+
   public Map<String, Number> getProcessorStatistics() {
     assert processorComputeCycles + processorIdleCycles == processorCycle;
 
@@ -94,28 +580,15 @@ public class Processor {
     statistics.put("Idle Cycles", processorIdleCycles);
     statistics.put("Loads", processorLoads);
     statistics.put("Stores", processorStores);
-    return statistics;
-  }
-
-  private Instruction getNextInstruction() {
-    int instType = sc.nextInt();
-    Instruction.Type type;
-    switch (instType) {
-      case 0:
-        type = Instruction.Type.LOAD;
-        break;
-      case 1:
-        type = Instruction.Type.STORE;
-        break;
-      case 2:
-        type = Instruction.Type.OTHER;
-        break;
-      default:
-        throw new InputMismatchException("Unknown instruction code :" + instType);
+    if (window > 0) {
+      statistics.put("Issue Stall Cycles", issueStallCycles);
+      statistics.put("Window Full Cycles", windowFullCycles);
+      statistics.put("Drain Cycles", drainCycles);
     }
-
-    int value = Integer.parseInt(sc.next().substring(2), 16);
-    return new Instruction(type, value);
+    if (storeBuffer != null) {
+      statistics.put("Store Forwards", storeForwards);
+      statistics.put("Store Buffer Full Cycles", storeBufferFullCycles);
+    }
+    return statistics;
   }
-
 }
@@ -0,0 +1,47 @@
+import java.io.*;
+
+/**
+ * RandomReplacement evicts a block chosen at random. The victim of a set is
+ * drawn when a block is filled into it, so that it stays the same until the
+ * set changes, and runs with the same seed evict the same blocks. A pinned
+ * victim passes to the next way that is not.
+ */
+public class RandomReplacement extends ReplacementPolicy {
+  private final int[] victimWays;
+
+  public RandomReplacement(int numSets, int associativity, long seed) {
+    super(numSets, associativity, seed);
+    this.victimWays = new int[numSets];
+  }
+
+  @Override
+  public void fill(int index) {
+    victimWays[index / associativity] = nextRandom(associativity);
+  }
+
+  @Override
+  public void touch(int index) {
+  }
+
+  @Override
+  public int findVictim(int setIndex, boolean[] pinned) {
+    int base = setIndex * associativity;
+    int way = victimWays[setIndex];
+    while (pinned[base + way]) {
+      way = way + 1 == associativity ? 0 : way + 1;
+    }
+    return base + way;
+  }
+
+  @Override
+  public void writeState(DataOutputStream out) throws IOException {
+    super.writeState(out);
+    Checkpoint.writeInts(out, victimWays);
+  }
+
+  @Override
+  public void readState(DataInputStream in) throws IOException {
+    super.readState(in);
+    Checkpoint.readInts(in, victimWays);
+  }
+}
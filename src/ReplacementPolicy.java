@@ -0,0 +1,114 @@
+import java.io.*;
+
+/**
+ * ReplacementPolicy chooses which block of a full set is evicted. Policies
+ * keep their metadata in flat primitive arrays indexed like the blocks of
+ * CacheBlocks, by set * associativity + way, and are told of every fill and
+ * hit. Blocks can be pinned, and are then never chosen as victims. Choosing a
+ * victim may update the metadata, but asking again before the set or its
+ * pins change returns the same block.
+ */
+public abstract class ReplacementPolicy {
+  enum Type {
+    /**
+     * The least recently used block
+     */
+    LRU,
+
+    /**
+     * Tree pseudo-LRU, one bit per node of a binary tree over the ways
+     */
+    PLRU,
+
+    /**
+     * A block chosen at random, from a seeded generator
+     */
+    RANDOM,
+
+    /**
+     * The block filled earliest, ignoring hits
+     */
+    FIFO,
+
+    /**
+     * Static re-reference interval prediction, inserting blocks with a long
+     * predicted re-reference interval so that blocks used once leave first
+     */
+    SRRIP,
+
+    /**
+     * Bimodal re-reference interval prediction, inserting most blocks with a
+     * distant predicted re-reference interval, so that working sets larger
+     * than the cache do not thrash it
+     */
+    BRRIP
+  }
+
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  protected final int numSets;
+  protected final int associativity;
+  private long randomState;
+
+  protected ReplacementPolicy(int numSets, int associativity, long seed) {
+    this.numSets = numSets;
+    this.associativity = associativity;
+    this.randomState = seed;
+  }
+
+  public static ReplacementPolicy create(Type type, int numSets, int associativity, long seed) {
+    switch (type) {
+      case LRU:
+        return new LruReplacement(numSets, associativity, true);
+      case FIFO:
+        return new LruReplacement(numSets, associativity, false);
+      case PLRU:
+        return new PlruReplacement(numSets, associativity);
+      case RANDOM:
+        return new RandomReplacement(numSets, associativity, seed);
+      case SRRIP:
+        return new RripReplacement(numSets, associativity, seed, false);
+      case BRRIP:
+        return new RripReplacement(numSets, associativity, seed, true);
+      default:
+        throw new RuntimeException("Replacement policy not implemented");
+    }
+  }
+
+  /**
+   * Called when a block is added at index
+   */
+  public abstract void fill(int index);
+
+  /**
+   * Called when the block at index hits
+   */
+  public abstract void touch(int index);
+
+  /**
+   * Index of the block to evict from the full set setIndex, skipping the
+   * blocks marked in pinned, of which the set has at least one unmarked
+   */
+  public abstract int findVictim(int setIndex, boolean[] pinned);
+
+  public void writeState(DataOutputStream out) throws IOException {
+    out.writeLong(randomState);
+  }
+
+  public void readState(DataInputStream in) throws IOException {
+    randomState = in.readLong();
+  }
+
+  /**
+   * Uniformly distributed value in [0, bound), from a SplitMix64 generator so
+   * that its whole state is a single long
+   */
+  protected int nextRandom(int bound) {
+    randomState += GOLDEN_GAMMA;
+    long z = randomState;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    z = z ^ (z >>> 31);
+    return (int) ((z >>> 1) % bound);
+  }
+}
@@ -0,0 +1,64 @@
+import java.io.*;
+
+/**
+ * RripReplacement predicts how soon every block will be reused with a 2-bit
+ * re-reference prediction value, evicting a block predicted to be reused in
+ * the distant future and ageing the blocks of the set that are not pinned
+ * until one of them is. Hits
+ * predict near-immediate reuse. SRRIP inserts blocks with a long prediction,
+ * one step short of distant; BRRIP inserts them distant, and only one in
+ * BIMODAL_THROTTLE with a long prediction.
+ */
+public class RripReplacement extends ReplacementPolicy {
+  private static final byte DISTANT = 3;
+  private static final byte LONG = DISTANT - 1;
+  private static final int BIMODAL_THROTTLE = 32;
+
+  private final byte[] predictions;
+  private final boolean bimodal;
+
+  public RripReplacement(int numSets, int associativity, long seed, boolean bimodal) {
+    super(numSets, associativity, seed);
+    this.predictions = new byte[numSets * associativity];
+    this.bimodal = bimodal;
+  }
+
+  @Override
+  public void fill(int index) {
+    predictions[index] = bimodal && nextRandom(BIMODAL_THROTTLE) != 0 ? DISTANT : LONG;
+  }
+
+  @Override
+  public void touch(int index) {
+    predictions[index] = 0;
+  }
+
+  @Override
+  public int findVictim(int setIndex, boolean[] pinned) {
+    int base = setIndex * associativity;
+    while (true) {
+      for (int index = base; index < base + associativity; index++) {
+        if (predictions[index] == DISTANT && !pinned[index]) {
+          return index;
+        }
+      }
+      for (int index = base; index < base + associativity; index++) {
+        if (!pinned[index]) {
+          predictions[index]++;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void writeState(DataOutputStream out) throws IOException {
+    super.writeState(out);
+    Checkpoint.writeBytes(out, predictions);
+  }
+
+  @Override
+  public void readState(DataInputStream in) throws IOException {
+    super.readState(in);
+    Checkpoint.readBytes(in, predictions);
+  }
+}
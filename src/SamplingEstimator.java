@@ -0,0 +1,177 @@
+import java.util.*;
+
+/**
+ * SamplingEstimator estimates the results of a whole simulation from short
+ * windows of detailed simulation, in the manner of SMARTS: between windows
+ * the traces are executed functionally, keeping the caches warm, and each
+ * window measures a fixed number of instructions per core in detail.
+ *
+ * Every estimate is a mean over the windows scaled to the length of the
+ * traces, with the half-width of its 95% confidence interval taken from the
+ * variance between windows under the normal approximation. Computation takes
+ * a fixed number of cycles, which warming adds up exactly, so only the cycles
+ * spent on loads and stores are sampled: the execution cycles of a core are
+ * its computation plus its mean cycles per access over the windows times its
+ * accesses, and the slowest core gives the overall estimate. Instructions
+ * fast-forwarded before the estimator is created are left out.
+ */
+public class SamplingEstimator {
+  private static final double Z_95 = 1.96;
+
+  private Interconnect bus;
+  private List<Processor> processors;
+  private List<Cache> caches;
+
+  // Instructions fast-forwarded before sampling started
+  private long[] skippedInstructions;
+  private long[] skippedAccesses;
+  private long[] skippedComputeCycles;
+
+  // Counters at the start of the current window
+  private long[] startCycles;
+  private long[] startComputeCycles;
+  private long[] startAccesses;
+  private long[] startInstructions;
+  private long startCacheAccesses;
+  private long startCacheMisses;
+  private long startTraffic;
+
+  // Measurements of every window
+  private int windows = 0;
+  private long measuredInstructions = 0;
+  private Mean[] cyclesPerAccess;
+  private Mean missRate = new Mean();
+  private Mean trafficPerInstruction = new Mean();
+
+  /**
+   * Mean and confidence interval of a value measured once per window
+   */
+  private static class Mean {
+    int count;
+    double sum;
+    double squares;
+
+    void add(double value) {
+      count++;
+      sum += value;
+      squares += value * value;
+    }
+
+    double get() {
+      return count == 0 ? 0 : sum / count;
+    }
+
+    double getHalfWidth() {
+      if (count < 2) {
+        return 0;
+      }
+      double mean = get();
+      double variance = Double.max((squares - count * mean * mean) / (count - 1), 0);
+      return Z_95 * Math.sqrt(variance / count);
+    }
+  }
+
+  public SamplingEstimator(Interconnect bus, List<Processor> processors, List<Cache> caches) {
+    this.bus = bus;
+    this.processors = processors;
+    this.caches = caches;
+    this.startCycles = new long[processors.size()];
+    this.startComputeCycles = new long[processors.size()];
+    this.startAccesses = new long[processors.size()];
+    this.startInstructions = new long[processors.size()];
+    this.cyclesPerAccess = new Mean[processors.size()];
+    this.skippedInstructions = new long[processors.size()];
+    this.skippedAccesses = new long[processors.size()];
+    this.skippedComputeCycles = new long[processors.size()];
+    for (int i = 0; i < processors.size(); i++) {
+      cyclesPerAccess[i] = new Mean();
+      skippedInstructions[i] = processors.get(i).getInstructionsRead();
+      skippedAccesses[i] = processors.get(i).getWarmedAccesses();
+      skippedComputeCycles[i] = processors.get(i).getWarmedComputeCycles();
+    }
+  }
+
+  public void startWindow() {
+    for (int i = 0; i < processors.size(); i++) {
+      Processor processor = processors.get(i);
+      startCycles[i] = processor.getCycles();
+      startComputeCycles[i] = processor.getComputeCycles();
+      startAccesses[i] = processor.getLoads() + processor.getStores();
+      startInstructions[i] = processor.getInstructionsRead();
+    }
+    startCacheAccesses = getCacheAccesses();
+    startCacheMisses = getCacheMisses();
+    startTraffic = bus.getTrafficBytes();
+  }
+
+  public void endWindow() {
+    long instructions = 0;
+    for (int i = 0; i < processors.size(); i++) {
+      Processor processor = processors.get(i);
+      long accesses = processor.getLoads() + processor.getStores() - startAccesses[i];
+      if (accesses > 0) {
+        long accessCycles = processor.getCycles() - startCycles[i]
+            - (processor.getComputeCycles() - startComputeCycles[i]);
+        cyclesPerAccess[i].add((double) accessCycles / accesses);
+      }
+      instructions += processor.getInstructionsRead() - startInstructions[i];
+    }
+    if (instructions == 0) {
+      return;
+    }
+    long cacheAccesses = getCacheAccesses() - startCacheAccesses;
+    if (cacheAccesses > 0) {
+      missRate.add((double) (getCacheMisses() - startCacheMisses) / cacheAccesses);
+    }
+    trafficPerInstruction.add((double) (bus.getTrafficBytes() - startTraffic) / instructions);
+    measuredInstructions += instructions;
+    windows++;
+  }
+
+  public Map<String, Number> getStatistics() {
+    long totalInstructions = 0;
+    double slowestCycles = -1;
+    double slowestHalfWidth = 0;
+    for (int i = 0; i < processors.size(); i++) {
+      Processor processor = processors.get(i);
+      totalInstructions += processor.getInstructionsRead() - skippedInstructions[i];
+      long accesses = processor.getLoads() + processor.getStores() + processor.getWarmedAccesses()
+          - skippedAccesses[i];
+      double cycles = processor.getComputeCycles() + processor.getWarmedComputeCycles() - skippedComputeCycles[i]
+          + cyclesPerAccess[i].get() * accesses;
+      if (cycles > slowestCycles) {
+        slowestCycles = cycles;
+        slowestHalfWidth = cyclesPerAccess[i].getHalfWidth() * accesses;
+      }
+    }
+
+    Map<String, Number> statistics = new LinkedHashMap<>();
+    statistics.put("Windows", windows);
+    statistics.put("Measured Instructions", measuredInstructions);
+    statistics.put("Total Instructions", totalInstructions);
+    statistics.put("Execution Cycle (est)", Math.round(slowestCycles));
+    statistics.put("Execution Cycle (+/-)", Math.round(slowestHalfWidth));
+    statistics.put("Cache Miss Rate (%) (est)", (float) (missRate.get() * 100));
+    statistics.put("Cache Miss Rate (%) (+/-)", (float) (missRate.getHalfWidth() * 100));
+    statistics.put("Traffic (bytes) (est)", Math.round(trafficPerInstruction.get() * totalInstructions));
+    statistics.put("Traffic (bytes) (+/-)",
+        Math.round(trafficPerInstruction.getHalfWidth() * totalInstructions));
+    return statistics;
+  }
+
+  private long getCacheAccesses() {
+    long accesses = 0;
+    for (int i = 0; i < caches.size(); i++) {
+      accesses += caches.get(i).cacheNumTotalAccesses;
+    }
+    return accesses;
+  }
+
+  private long getCacheMisses() {
+    long misses = 0;
+    for (int i = 0; i < caches.size(); i++) {
+      misses += caches.get(i).cacheNumMisses;
+    }
+    return misses;
+  }
+}
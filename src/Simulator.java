@@ -1,32 +1,267 @@
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import com.sun.management.ThreadMXBean;
 
 public class Simulator {
   private static final int DEFAULT_CACHE_SIZE = 4096;
+  // The JVM allocates a few hundred bytes on the simulation thread the first
+  // time it compiles some methods or initializes some classes after the
+  // warm-up, such as the String objects of lazily resolved constants, which
+  // the allocation check tolerates
+  static final long ALLOCATION_CHECK_SLACK = 4096;
   private static final int DEFAULT_ASSOCIATIVITY = 2;
   private static final int DEFAULT_BLOCK_SIZE = 32;
+  private static final int DEFAULT_LLC_ASSOCIATIVITY = 8;
+  private static final int DEFAULT_LLC_LATENCY = 20;
+  private static final long DEFAULT_SAMPLING_WINDOW = 1000;
+  private static final long DEFAULT_SAMPLING_WARMUP = 1000;
+  private static final long DEFAULT_REPLACEMENT_SEED = 1;
+  private static final int DEFAULT_PREFETCH_DEGREE = 2;
+  private static final int DEFAULT_ISSUE_WINDOW = 16;
 
   enum Protocol {
-    MESI, MOESI, DRAGON
+    MESI, MOESI, DRAGON, DIRECTORY
   }
 
+  enum Engine {
+    CYCLE, EVENT, PARALLEL
+  }
+
+  /**
+   * Thrown when the command line is invalid, so that the caller decides
+   * whether to print usage and exit.
+   */
+  static class UsageException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    UsageException(String message) {
+      super(message);
+    }
+  }
+
+  private PrintStream out;
+  private Engine engine;
+  private int numThreads;
+  private Interconnect bus;
+  private LastLevelCache llc;
+  private List<Processor> processors;
+  private List<Cache> caches;
+  private List<PrefetchingInstructionSource> prefetchingSources = new ArrayList<>();
+  // The trace prefetch statistics include wall-clock times, so are only
+  // reported when --trace-prefetch is given
+  private boolean reportTracePrefetch;
+  private IntervalSampler sampler;
+  private BlockProfiler profiler;
+
+  // Sampled simulation, which measures a window of samplingWindow instructions
+  // per core every samplingPeriod instructions, after samplingWarmup detailed
+  // instructions
+  private SamplingEstimator estimator;
+  private long samplingPeriod;
+  private long samplingWindow;
+  private long samplingWarmup;
+
+  // Checkpoints, saved to checkpointFile at checkpointAt and then every
+  // checkpointEvery cycles
+  private File checkpointFile;
+  private long nextCheckpoint = Long.MAX_VALUE;
+  private long checkpointEvery;
+  private String configuration;
+
   // Statistics
-  public static long simulatorCycle = 0;
+  private long simulatorCycle = 0;
+
+  // Allocation check, which measures the heap allocated by the simulation
+  // thread after the warm-up cycles
+  private long allocationCheckCycles;
+  private ThreadMXBean threadBean;
+  private long allocationStartBytes = -1;
+  private long allocationStartCycle = 0;
+  private long allocatedBytes = 0;
 
   public static void main(String[] args) throws Exception {
-    System.out.println("========== Cache Coherence Simulator ==========");
-    validateArgLength(args.length);
-    Protocol protocol = parseProtocol(args[0]);
-    List<Scanner> readers = parseInputFile(args[1]);
-    int cacheSize = args.length < 3 ? DEFAULT_CACHE_SIZE : parseCacheSize(args[2]);
-    int associativity = args.length < 4 ? DEFAULT_ASSOCIATIVITY : parseAssociativity(args[3]);
-    int blockSize = args.length < 5 ? DEFAULT_BLOCK_SIZE : parseBlockSize(args[4]);
-
-    List<Processor> processors = new ArrayList<>(readers.size());
-    List<Cache> caches = new ArrayList<>(readers.size());
-    Bus bus = new Bus();
-    for (Scanner reader : readers) {
+    List<String> positional = new ArrayList<>();
+    Map<String, String> options = parseOptions(args, positional);
+    try {
+      if (parseFlag("sweep", options.getOrDefault("sweep", "false"))) {
+        System.out.println("========== Cache Coherence Sweep ==========");
+        validateArgLength(positional.size());
+        new Sweep(positional, options).run(System.out);
+        return;
+      }
+      System.out.println("========== Cache Coherence Simulator ==========");
+      validateArgLength(positional.size());
+      Protocol protocol = parseProtocol(positional.get(0));
+      String inputFile = positional.get(1);
+      int cacheSize = positional.size() < 3 ? DEFAULT_CACHE_SIZE : parseCacheSize(positional.get(2));
+      int associativity = positional.size() < 4 ? DEFAULT_ASSOCIATIVITY : parseAssociativity(positional.get(3));
+      int blockSize = positional.size() < 5 ? DEFAULT_BLOCK_SIZE : parseBlockSize(positional.get(4));
+
+      Simulator simulator = new Simulator(protocol, inputFile, cacheSize, associativity, blockSize, options,
+          System.out);
+      simulator.run();
+      simulator.printStatistics();
+      if (simulator.getSteadyStateAllocatedBytes() > ALLOCATION_CHECK_SLACK) {
+        System.out.println("...Allocation check failed: the simulation allocated after warming up");
+        System.exit(1);
+      }
+    } catch (UsageException e) {
+      System.out.println("Error: " + e.getMessage());
+      printUsage();
+      System.exit(1);
+    }
+  }
+
+  public Simulator(Protocol protocol, String inputFile, int cacheSize, int associativity, int blockSize,
+      Map<String, String> options, PrintStream out) {
+    if (cacheSize / (blockSize * associativity) < 1) {
+      failWithUsage("cache size " + cacheSize + " is smaller than one set of " + associativity + " blocks of "
+          + blockSize + " bytes");
+    }
+    this.out = out;
+    this.engine = parseEngine(options.getOrDefault("engine", "cycle"));
+    this.numThreads = Runtime.getRuntime().availableProcessors();
+    if (options.containsKey("threads")) {
+      this.numThreads = Sweep.parseThreads(options.get("threads"));
+    }
+    this.allocationCheckCycles = parseAllocationCheck(options.getOrDefault("allocation-check", "0"));
+    if (allocationCheckCycles > 0 && engine == Engine.PARALLEL) {
+      failWithUsage("--allocation-check measures a single simulation thread, so needs the cycle or event engine");
+    }
+    if (allocationCheckCycles > 0) {
+      threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+      getAllocatedBytes();
+    }
+    boolean useSnoopFilter = parseFlag("snoop-filter", options.getOrDefault("snoop-filter", "false"));
+    int maxOutstanding = parseSplitBus(options.getOrDefault("split-bus", "0"));
+    ArbitrationQueue.Policy arbitration = parseArbitration(options.getOrDefault("arbitration", "fifo"));
+    if (protocol == Protocol.DIRECTORY
+        && (useSnoopFilter || maxOutstanding > 0 || arbitration != ArbitrationQueue.Policy.FIFO)) {
+      failWithUsage("the Directory protocol does not use a bus");
+    }
+    int llcSize = options.containsKey("llc-size") ? parseCacheSize(options.get("llc-size")) : 0;
+    int llcAssociativity = parseAssociativity(
+        options.getOrDefault("llc-associativity", String.valueOf(DEFAULT_LLC_ASSOCIATIVITY)));
+    int llcLatency = parseLlcLatency(options.getOrDefault("llc-latency", String.valueOf(DEFAULT_LLC_LATENCY)));
+    LastLevelCache.Inclusion llcInclusion = parseInclusion(options.getOrDefault("llc-inclusion", "inclusive"));
+    if (llcSize > 0) {
+      if (protocol == Protocol.DIRECTORY || maxOutstanding > 0) {
+        failWithUsage("--llc-size sits behind an atomic bus, so cannot be used with the Directory protocol or "
+            + "--split-bus");
+      }
+      if (llcSize / (blockSize * llcAssociativity) < 1) {
+        failWithUsage("LLC size " + llcSize + " is smaller than one set of " + llcAssociativity + " blocks of "
+            + blockSize + " bytes");
+      }
+    } else if (options.containsKey("llc-associativity") || options.containsKey("llc-latency")
+        || options.containsKey("llc-inclusion")) {
+      failWithUsage("--llc-associativity, --llc-latency and --llc-inclusion need --llc-size");
+    }
+    ReplacementPolicy.Type replacement = parseReplacement(options.getOrDefault("replacement", "lru"));
+    long replacementSeed = parseReplacementSeed(
+        options.getOrDefault("replacement-seed", String.valueOf(DEFAULT_REPLACEMENT_SEED)));
+    if (replacement == ReplacementPolicy.Type.PLRU
+        && (Integer.bitCount(associativity) != 1 || llcSize > 0 && Integer.bitCount(llcAssociativity) != 1)) {
+      failWithUsage("tree PLRU needs a power of two associativity");
+    }
+    Prefetcher.Type prefetcher = options.containsKey("prefetcher") ? parsePrefetcher(options.get("prefetcher")) : null;
+    int prefetchDegree = parsePrefetchDegree(
+        options.getOrDefault("prefetch-degree", String.valueOf(DEFAULT_PREFETCH_DEGREE)));
+    if (prefetcher != null) {
+      if (protocol == Protocol.DIRECTORY || maxOutstanding > 0) {
+        failWithUsage("--prefetcher prefetches while the atomic bus is idle, so cannot be used with the Directory "
+            + "protocol or --split-bus");
+      }
+    } else if (options.containsKey("prefetch-degree")) {
+      failWithUsage("--prefetch-degree needs --prefetcher");
+    }
+    int mshrs = parseMshrs(options.getOrDefault("mshrs", "0"));
+    int issueWindow = parseIssueWindow(
+        options.getOrDefault("issue-window", String.valueOf(DEFAULT_ISSUE_WINDOW)));
+    if (mshrs == 0 && options.containsKey("issue-window")) {
+      failWithUsage("--issue-window needs --mshrs");
+    }
+    int storeBuffer = parseStoreBuffer(options.getOrDefault("store-buffer", "0"));
+    int profileBlocks = parseProfileBlocks(options.getOrDefault("profile-blocks", "0"));
+    String sampleOutput = options.get("sample-output");
+    long sampleInterval = parseSampleInterval(
+        options.getOrDefault("sample-interval", String.valueOf(IntervalSampler.DEFAULT_INTERVAL)));
+    if (sampleOutput == null && options.containsKey("sample-interval")) {
+      failWithUsage("--sample-interval needs --sample-output to write the samples to");
+    }
+    if (options.containsKey("checkpoint")) {
+      checkpointFile = new File(options.get("checkpoint"));
+      checkpointEvery = parseCheckpointCycles(options.getOrDefault("checkpoint-every", "0"));
+      long checkpointAt = parseCheckpointCycles(options.getOrDefault("checkpoint-at", "0"));
+      nextCheckpoint = checkpointAt > 0 ? checkpointAt : checkpointEvery > 0 ? checkpointEvery : Long.MAX_VALUE;
+      if (nextCheckpoint == Long.MAX_VALUE) {
+        failWithUsage("--checkpoint needs --checkpoint-at or --checkpoint-every");
+      }
+    } else if (options.containsKey("checkpoint-at") || options.containsKey("checkpoint-every")) {
+      failWithUsage("--checkpoint-at and --checkpoint-every need --checkpoint to write to");
+    }
+    String restoreFile = options.get("restore");
+    if (restoreFile != null
+        && (profileBlocks > 0 || sampleOutput != null || options.containsKey("latency-histograms"))) {
+      failWithUsage("--profile-blocks, --latency-histograms and --sample-output are not saved in checkpoints, so "
+          + "cannot be used with --restore");
+    }
+    long fastForward = parseFastForward(options.getOrDefault("fast-forward", "0"));
+    if (options.containsKey("sampling-period")) {
+      samplingPeriod = parseSamplingInstructions(options.get("sampling-period"));
+      samplingWindow = parseSamplingInstructions(
+          options.getOrDefault("sampling-window", String.valueOf(DEFAULT_SAMPLING_WINDOW)));
+      samplingWarmup = parseSamplingInstructions(
+          options.getOrDefault("sampling-warmup", String.valueOf(DEFAULT_SAMPLING_WARMUP)));
+      if (samplingWindow == 0 || samplingPeriod < samplingWarmup + samplingWindow) {
+        failWithUsage("--sampling-period must be at least --sampling-warmup plus a non-empty --sampling-window");
+      }
+      if (engine == Engine.PARALLEL || checkpointFile != null || restoreFile != null || sampleOutput != null
+          || allocationCheckCycles > 0) {
+        failWithUsage("--sampling-period steps its windows itself, so cannot be used with the parallel engine, "
+            + "--checkpoint, --restore, --sample-output or --allocation-check");
+      }
+    } else if (options.containsKey("sampling-window") || options.containsKey("sampling-warmup")) {
+      failWithUsage("--sampling-window and --sampling-warmup need --sampling-period");
+    }
+    int prefetchCapacity = parseTracePrefetch(
+        options.getOrDefault("trace-prefetch", String.valueOf(PrefetchingInstructionSource.DEFAULT_CAPACITY)));
+    List<InstructionSource> sources = parseInputFile(inputFile, prefetchCapacity);
+    this.reportTracePrefetch = options.containsKey("trace-prefetch");
+    this.configuration = String.format(
+        "%s %s %d %d %d with %d cores, split bus %d, snoop filter %b, %s arbitration, fast-forward %d, "
+            + "LLC %d %d %d %s, %s replacement seed %d, prefetcher %s %d, MSHRs %d window %d, "
+            + "store buffer %d",
+        protocol, inputFile, cacheSize, associativity, blockSize, sources.size(), maxOutstanding, useSnoopFilter,
+        arbitration, fastForward, llcSize, llcAssociativity, llcLatency, llcInclusion, replacement,
+        replacementSeed, prefetcher, prefetchDegree, mshrs, issueWindow, storeBuffer);
+
+    processors = new ArrayList<>(sources.size());
+    caches = new ArrayList<>(sources.size());
+    Directory directory = null;
+    if (protocol == Protocol.DIRECTORY) {
+      directory = new Directory(sources.size(), blockSize);
+      bus = directory;
+    } else {
+      Bus snoopingBus = new Bus();
+      snoopingBus.setArbitrationPolicy(arbitration);
+      if (useSnoopFilter) {
+        snoopingBus.setSnoopFilter(new SnoopFilter(sources.size(), blockSize));
+      }
+      if (maxOutstanding > 0) {
+        snoopingBus.setSplitTransactions(maxOutstanding, blockSize);
+      }
+      if (llcSize > 0) {
+        snoopingBus.setLastLevelCache(llcSize, llcAssociativity, blockSize, llcLatency, llcInclusion);
+        llc = snoopingBus.getLastLevelCache();
+        llc.setReplacementPolicy(replacement, replacementSeed + sources.size());
+      }
+      bus = snoopingBus;
+    }
+    for (InstructionSource source : sources) {
       Cache cache;
       switch (protocol) {
         case MESI:
@@ -38,29 +273,342 @@ public class Simulator {
         case DRAGON:
           cache = new DragonCache(bus, cacheSize, associativity, blockSize);
           break;
+        case DIRECTORY:
+          cache = new DirectoryMesiCache(directory, cacheSize, associativity, blockSize);
+          break;
         default:
           throw new RuntimeException("Cache not implemented for protocol");
       }
+      // Seeded apart so that random policies do not evict in lockstep
+      cache.setReplacementPolicy(replacement, replacementSeed + caches.size());
+      if (prefetcher != null) {
+        cache.setPrefetcher(new Prefetcher(prefetcher, prefetchDegree));
+      }
       caches.add(cache);
-      processors.add(new Processor(reader, cache));
+      Processor processor = new Processor(source, cache);
+      if (mshrs > 0) {
+        processor.setNonBlocking(mshrs, issueWindow);
+      }
+      if (storeBuffer > 0) {
+        processor.setStoreBuffer(storeBuffer);
+      }
+      processors.add(processor);
+    }
+    // A checkpoint holds the warmed caches, so restoring does not warm them again
+    if (fastForward > 0 && restoreFile == null) {
+      fastForward(fastForward);
+    }
+    if (parseFlag("latency-histograms", options.getOrDefault("latency-histograms", "false"))) {
+      bus.enableLatencyHistograms();
+      processors.forEach(Processor::enableLatencyHistograms);
+    }
+    if (profileBlocks > 0) {
+      profiler = new BlockProfiler(profileBlocks, blockSize, sources.size());
+      bus.setBlockProfiler(profiler);
+    }
+    if (sampleOutput != null) {
+      try {
+        sampler = new IntervalSampler(new File(sampleOutput), sampleInterval, bus, processors, caches);
+      } catch (IOException e) {
+        failWithUsage(sampleOutput + " could not be opened for samples: " + e.getMessage());
+      }
+    }
+    if (samplingPeriod > 0) {
+      estimator = new SamplingEstimator(bus, processors, caches);
+    }
+    if (restoreFile != null) {
+      restore(new File(restoreFile));
+    }
+  }
+
+  private void restore(File file) {
+    try {
+      simulatorCycle = Checkpoint.restore(file, configuration, processors, caches, bus);
+    } catch (IOException e) {
+      failWithUsage("checkpoint " + file + " could not be restored: " + e.getMessage());
+    }
+    if (nextCheckpoint <= simulatorCycle) {
+      nextCheckpoint = checkpointEvery > 0 ? simulatorCycle + checkpointEvery : Long.MAX_VALUE;
+    }
+    out.printf("...Restored checkpoint at cycle %d\n", simulatorCycle);
+  }
+
+  /**
+   * Warms the caches functionally with the first instructions of every trace,
+   * interleaving the cores one instruction at a time. Loads and stores change
+   * the cache contents and coherence states as they would in the timed
+   * simulation, but no cycles pass and nothing is counted in the statistics,
+   * so that they only cover the timed simulation.
+   */
+  private void fastForward(long instructions) {
+    warm(instructions);
+    out.printf("...Fast-forwarded %d instructions per core\n", instructions);
+  }
+
+  /**
+   * Executes the next instructions of every trace functionally
+   */
+  private void warm(long instructions) {
+    caches.forEach(cache -> cache.setWarming(true));
+    for (long i = 0; i < instructions; i++) {
+      boolean warmed = false;
+      for (Processor processor : processors) {
+        if (processor.warm()) {
+          bus.completeFunctionally();
+          warmed = true;
+        }
+      }
+      if (!warmed) {
+        break;
+      }
+    }
+    caches.forEach(cache -> cache.setWarming(false));
+  }
+
+  public void run() {
+    out.println("...Simulation starting");
+    if (estimator != null) {
+      runSampled();
+    } else {
+      runEngine();
+    }
+    if (sampler != null) {
+      sampler.finish(simulatorCycle);
+      try {
+        sampler.close();
+      } catch (IOException e) {
+        throw new RuntimeException("Samples could not be written: " + e.getMessage(), e);
+      }
+    }
+    if (allocationStartBytes >= 0) {
+      allocatedBytes = getAllocatedBytes() - allocationStartBytes;
+    }
+    out.printf("...Simulation completed!\n\n");
+  }
+
+  private void runEngine() {
+    switch (engine) {
+      case CYCLE:
+        runCycleByCycle();
+        break;
+      case EVENT:
+        runEventDriven();
+        break;
+      case PARALLEL:
+        simulatorCycle = new ParallelEngine(bus, processors, caches, numThreads, simulatorCycle, this::getNextPause,
+            this::pause).run();
+        break;
+    }
+  }
+
+  /**
+   * Alternates functional warming with detailed windows until every trace has
+   * ended. Each window first simulates samplingWarmup instructions per core in
+   * detail to bring the interconnect and the processors into a steady state,
+   * and then measures samplingWindow instructions per core. The statistics
+   * cover the detailed windows only, and the estimator scales them to the
+   * whole run.
+   */
+  private void runSampled() {
+    while (!isDone()) {
+      warm(samplingPeriod - samplingWarmup - samplingWindow);
+      runDetailed(samplingWarmup);
+      estimator.startWindow();
+      runDetailed(samplingWindow);
+      estimator.endWindow();
+    }
+  }
+
+  /**
+   * Steps every cycle until each processor has read the given number of
+   * further instructions or finished its trace, and the interconnect has
+   * completed every transaction
+   */
+  private void runDetailed(long instructions) {
+    for (int i = 0; i < processors.size(); i++) {
+      processors.get(i).setInstructionLimit(processors.get(i).getInstructionsRead() + instructions);
+    }
+    while (!isHeld()) {
+      step();
+    }
+    for (int i = 0; i < processors.size(); i++) {
+      processors.get(i).setInstructionLimit(Long.MAX_VALUE);
+    }
+  }
+
+  private boolean isHeld() {
+    for (int i = 0; i < processors.size(); i++) {
+      if (!processors.get(i).isHeld()) {
+        return false;
+      }
+    }
+    return bus.isIdle();
+  }
+
+  public long getSimulatorCycle() {
+    return simulatorCycle;
+  }
+
+  public Interconnect getBus() {
+    return bus;
+  }
+
+  public List<Processor> getProcessors() {
+    return processors;
+  }
+
+  public List<Cache> getCaches() {
+    return caches;
+  }
+
+  /**
+   * Bytes allocated by the simulation thread after the warm-up cycles of
+   * --allocation-check, which should be no more than ALLOCATION_CHECK_SLACK
+   */
+  public long getSteadyStateAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Starts the allocation check once the simulation has warmed up
+   */
+  private void checkWarmedUp() {
+    if (allocationCheckCycles > 0 && allocationStartBytes < 0 && simulatorCycle >= allocationCheckCycles) {
+      allocationStartCycle = simulatorCycle;
+      allocationStartBytes = getAllocatedBytes();
+    }
+  }
+
+  /**
+   * Bytes allocated by the simulation thread so far
+   */
+  private long getAllocatedBytes() {
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Cycle before which the simulation next has to pause to sample or save a
+   * checkpoint
+   */
+  private long getNextPause() {
+    return Long.min(sampler == null ? Long.MAX_VALUE : sampler.getNextSample(), nextCheckpoint);
+  }
+
+  /**
+   * Samples and saves checkpoints that are due, between two cycles
+   */
+  private void pause(long cycle) {
+    if (sampler != null) {
+      sampler.sample(cycle);
+    }
+    if (cycle >= nextCheckpoint) {
+      try {
+        Checkpoint.save(checkpointFile, configuration, cycle, processors, caches, bus);
+      } catch (IOException e) {
+        throw new RuntimeException("Checkpoint could not be written: " + e.getMessage(), e);
+      }
+      nextCheckpoint = checkpointEvery > 0 ? cycle + checkpointEvery : Long.MAX_VALUE;
+      out.printf("...Saved checkpoint at cycle %d\n", cycle);
     }
+  }
 
-    System.out.println("...Simulation starting");
-    while (!processors.stream().allMatch(p -> p.state == Processor.ProcessorState.DONE)) {
-      processors.stream().filter(p -> p.state != Processor.ProcessorState.DONE).forEach(p -> p.tick());
-      bus.tick();
-      bus.tock();
-      processors.stream().filter(p -> p.state != Processor.ProcessorState.DONE).forEach(p -> p.tock());
-      simulatorCycle++;
+  private void checkPause() {
+    if (simulatorCycle >= getNextPause()) {
+      pause(simulatorCycle);
     }
-    System.out.printf("...Simulation completed!\n\n");
+  }
 
-    printStatistics(bus, processors, caches);
+  private void runCycleByCycle() {
+    while (!isDone()) {
+      checkWarmedUp();
+      checkPause();
+      step();
+    }
+  }
+
+  /**
+   * Runs the simulation, jumping over runs of cycles in which every processor,
+   * cache and the bus are only counting down towards their next state change.
+   * Jumps stop at the next pause, so that samples and checkpoints see the same
+   * state as when stepping every cycle.
+   */
+  private void runEventDriven() {
+    while (!isDone()) {
+      checkWarmedUp();
+      checkPause();
+      long skippable = bus.getSkippableCycles();
+      for (int i = 0; i < processors.size(); i++) {
+        Processor processor = processors.get(i);
+        if (processor.state != Processor.ProcessorState.DONE) {
+          skippable = Long.min(skippable, processor.getSkippableCycles());
+        }
+      }
+      if (skippable > 0 && skippable != Long.MAX_VALUE) {
+        skippable = Long.min(skippable, getNextPause() - simulatorCycle);
+        for (int i = 0; i < processors.size(); i++) {
+          Processor processor = processors.get(i);
+          if (processor.state != Processor.ProcessorState.DONE) {
+            processor.skipCycles(skippable);
+          }
+        }
+        bus.skipCycles(skippable);
+        simulatorCycle += skippable;
+        checkPause();
+      }
+      step();
+    }
+  }
+
+  private boolean isDone() {
+    for (int i = 0; i < processors.size(); i++) {
+      if (processors.get(i).state != Processor.ProcessorState.DONE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void step() {
+    for (int i = 0; i < processors.size(); i++) {
+      Processor processor = processors.get(i);
+      if (processor.state != Processor.ProcessorState.DONE) {
+        processor.tick();
+      }
+    }
+    bus.tick();
+    bus.tock();
+    for (int i = 0; i < processors.size(); i++) {
+      Processor processor = processors.get(i);
+      if (processor.state != Processor.ProcessorState.DONE) {
+        processor.tock();
+      }
+    }
+    simulatorCycle++;
+  }
+
+  /**
+   * Separates "--name=value" options from positional arguments.
+   */
+  public static Map<String, String> parseOptions(String[] args, List<String> positional) {
+    Map<String, String> options = new LinkedHashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--")) {
+        positional.add(arg);
+        continue;
+      }
+      int separator = arg.indexOf('=');
+      if (separator < 0) {
+        options.put(arg.substring(2).toLowerCase(), "true");
+      } else {
+        options.put(arg.substring(2, separator).toLowerCase(), arg.substring(separator + 1));
+      }
+    }
+    return options;
   }
 
   public static void validateArgLength(int length) {
     if (length < 2) {
-      exitWithUsage("insufficient arguments");
+      failWithUsage("insufficient arguments");
     }
   }
 
@@ -76,33 +624,42 @@ public class Simulator {
       case "dragon":
         protocol = Protocol.DRAGON;
         break;
+      case "directory":
+        protocol = Protocol.DIRECTORY;
+        break;
       default:
-        exitWithUsage(protocolString + " is not a recognized protocol");
+        failWithUsage(protocolString + " is not a recognized protocol");
     }
     return protocol;
   }
 
-  public static List<Scanner> parseInputFile(String inputFile) {
+  private List<InstructionSource> parseInputFile(String inputFile, int prefetchCapacity) {
     File directory = new File("./data/" + inputFile);
     if (!directory.isDirectory()) {
-      exitWithUsage(directory + " is not a valid directory");
+      failWithUsage(directory + " is not a valid directory");
     }
-    System.out.println("...Reading benchmark files from: " + directory.getAbsolutePath());
+    out.println("...Reading benchmark files from: " + directory.getAbsolutePath());
 
     File[] files = directory.listFiles();
     Arrays.sort(files);
 
-    List<Scanner> readers = new ArrayList<>();
+    List<InstructionSource> sources = new ArrayList<>();
     for (File file : files) {
-      System.out.println("..." + file.getName() + " found");
+      out.println("..." + file.getName() + " found");
       try {
-        Scanner reader = new Scanner(file);
-        readers.add(reader);
-      } catch (FileNotFoundException e) {
-        exitWithUsage(file.getName() + " found but could not be read");
+        InstructionSource source = InstructionSource.open(file);
+        if (prefetchCapacity > 0) {
+          PrefetchingInstructionSource prefetching = new PrefetchingInstructionSource(source, prefetchCapacity,
+              file.getName());
+          prefetchingSources.add(prefetching);
+          source = prefetching;
+        }
+        sources.add(source);
+      } catch (IOException e) {
+        failWithUsage(file.getName() + " found but could not be read: " + e.getMessage());
       }
     }
-    return readers;
+    return sources;
   }
 
   public static int parseCacheSize(String cacheSizeString) {
@@ -113,7 +670,7 @@ public class Simulator {
         throw new NumberFormatException();
       }
     } catch (NumberFormatException e) {
-      exitWithUsage("Error: " + cacheSizeString + " is not a valid cache size");
+      failWithUsage("Error: " + cacheSizeString + " is not a valid cache size");
     }
     return cacheSize;
   }
@@ -126,7 +683,7 @@ public class Simulator {
         throw new NumberFormatException();
       }
     } catch (NumberFormatException e) {
-      exitWithUsage(associativityString + " is not a valid associativity");
+      failWithUsage(associativityString + " is not a valid associativity");
     }
     return associativity;
   }
@@ -139,45 +696,435 @@ public class Simulator {
         throw new NumberFormatException();
       }
     } catch (NumberFormatException e) {
-      exitWithUsage(blockSizeString + " is not a valid block size");
+      failWithUsage(blockSizeString + " is not a valid block size");
     }
     return blockSize;
   }
 
-  public static void exitWithUsage(String message) {
-    System.out.println("Error: " + message);
-    printUsage();
-    System.exit(1);
+  public static Engine parseEngine(String engineString) {
+    Engine engine = Engine.CYCLE;
+    switch (engineString.toLowerCase()) {
+      case "cycle":
+        engine = Engine.CYCLE;
+        break;
+      case "event":
+        engine = Engine.EVENT;
+        break;
+      case "parallel":
+        engine = Engine.PARALLEL;
+        break;
+      default:
+        failWithUsage(engineString + " is not a recognized engine");
+    }
+    return engine;
+  }
+
+  public static int parseLlcLatency(String latencyString) {
+    int latency = -1;
+    try {
+      latency = Integer.parseInt(latencyString, 10);
+      if (latency <= 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(latencyString + " is not a valid LLC hit latency");
+    }
+    return latency;
+  }
+
+  public static LastLevelCache.Inclusion parseInclusion(String inclusionString) {
+    LastLevelCache.Inclusion inclusion = LastLevelCache.Inclusion.INCLUSIVE;
+    switch (inclusionString.toLowerCase()) {
+      case "inclusive":
+        inclusion = LastLevelCache.Inclusion.INCLUSIVE;
+        break;
+      case "non_inclusive":
+        inclusion = LastLevelCache.Inclusion.NON_INCLUSIVE;
+        break;
+      default:
+        failWithUsage(inclusionString + " is not a recognized LLC inclusion policy");
+    }
+    return inclusion;
+  }
+
+  public static ReplacementPolicy.Type parseReplacement(String policyString) {
+    ReplacementPolicy.Type policy = ReplacementPolicy.Type.LRU;
+    switch (policyString.toLowerCase()) {
+      case "lru":
+        policy = ReplacementPolicy.Type.LRU;
+        break;
+      case "plru":
+        policy = ReplacementPolicy.Type.PLRU;
+        break;
+      case "random":
+        policy = ReplacementPolicy.Type.RANDOM;
+        break;
+      case "fifo":
+        policy = ReplacementPolicy.Type.FIFO;
+        break;
+      case "srrip":
+        policy = ReplacementPolicy.Type.SRRIP;
+        break;
+      case "brrip":
+        policy = ReplacementPolicy.Type.BRRIP;
+        break;
+      default:
+        failWithUsage(policyString + " is not a recognized replacement policy");
+    }
+    return policy;
+  }
+
+  public static Prefetcher.Type parsePrefetcher(String prefetcherString) {
+    Prefetcher.Type prefetcher = Prefetcher.Type.NEXT_LINE;
+    switch (prefetcherString.toLowerCase()) {
+      case "next_line":
+        prefetcher = Prefetcher.Type.NEXT_LINE;
+        break;
+      case "stride":
+        prefetcher = Prefetcher.Type.STRIDE;
+        break;
+      case "stream":
+        prefetcher = Prefetcher.Type.STREAM;
+        break;
+      default:
+        failWithUsage(prefetcherString + " is not a recognized prefetcher");
+    }
+    return prefetcher;
+  }
+
+  public static int parsePrefetchDegree(String degreeString) {
+    int degree = -1;
+    try {
+      degree = Integer.parseInt(degreeString, 10);
+      if (degree <= 0 || degree > Prefetcher.MAX_DEGREE) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(degreeString + " is not a valid prefetch degree, which must be between 1 and "
+          + Prefetcher.MAX_DEGREE);
+    }
+    return degree;
+  }
+
+  public static int parseMshrs(String mshrsString) {
+    int mshrs = -1;
+    try {
+      mshrs = Integer.parseInt(mshrsString, 10);
+      if (mshrs < 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(mshrsString + " is not a valid number of MSHRs");
+    }
+    return mshrs;
+  }
+
+  public static int parseIssueWindow(String windowString) {
+    int window = -1;
+    try {
+      window = Integer.parseInt(windowString, 10);
+      if (window <= 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(windowString + " is not a valid number of outstanding loads and stores");
+    }
+    return window;
+  }
+
+  public static int parseStoreBuffer(String depthString) {
+    int depth = -1;
+    try {
+      depth = Integer.parseInt(depthString, 10);
+      if (depth < 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(depthString + " is not a valid store buffer depth");
+    }
+    return depth;
+  }
+
+  public static long parseReplacementSeed(String seedString) {
+    long seed = 0;
+    try {
+      seed = Long.parseLong(seedString, 10);
+    } catch (NumberFormatException e) {
+      failWithUsage(seedString + " is not a valid replacement seed");
+    }
+    return seed;
+  }
+
+  public static ArbitrationQueue.Policy parseArbitration(String policyString) {
+    ArbitrationQueue.Policy policy = ArbitrationQueue.Policy.FIFO;
+    switch (policyString.toLowerCase()) {
+      case "fifo":
+        policy = ArbitrationQueue.Policy.FIFO;
+        break;
+      case "round_robin":
+        policy = ArbitrationQueue.Policy.ROUND_ROBIN;
+        break;
+      case "fixed_priority":
+        policy = ArbitrationQueue.Policy.FIXED_PRIORITY;
+        break;
+      case "oldest_first":
+        policy = ArbitrationQueue.Policy.OLDEST_FIRST;
+        break;
+      default:
+        failWithUsage(policyString + " is not a recognized arbitration policy");
+    }
+    return policy;
+  }
+
+  public static int parseSplitBus(String maxOutstandingString) {
+    int maxOutstanding = -1;
+    try {
+      maxOutstanding = Integer.parseInt(maxOutstandingString, 10);
+      if (maxOutstanding < 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(maxOutstandingString + " is not a valid number of outstanding memory accesses");
+    }
+    return maxOutstanding;
+  }
+
+  public static long parseSampleInterval(String intervalString) {
+    long interval = -1;
+    try {
+      interval = Long.parseLong(intervalString, 10);
+      if (interval <= 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(intervalString + " is not a valid number of cycles between samples");
+    }
+    return interval;
+  }
+
+  public static int parseProfileBlocks(String topKString) {
+    int topK = -1;
+    try {
+      topK = Integer.parseInt(topKString, 10);
+      if (topK < 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(topKString + " is not a valid number of blocks to profile");
+    }
+    return topK;
+  }
+
+  public static long parseFastForward(String instructionsString) {
+    long instructions = -1;
+    try {
+      instructions = Long.parseLong(instructionsString, 10);
+      if (instructions < 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(instructionsString + " is not a valid number of instructions to fast-forward");
+    }
+    return instructions;
+  }
+
+  public static long parseSamplingInstructions(String instructionsString) {
+    long instructions = -1;
+    try {
+      instructions = Long.parseLong(instructionsString, 10);
+      if (instructions < 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(instructionsString + " is not a valid number of instructions to sample");
+    }
+    return instructions;
+  }
+
+  public static long parseCheckpointCycles(String cyclesString) {
+    long cycles = -1;
+    try {
+      cycles = Long.parseLong(cyclesString, 10);
+      if (cycles < 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(cyclesString + " is not a valid cycle for checkpoints");
+    }
+    return cycles;
+  }
+
+  public static int parseTracePrefetch(String capacityString) {
+    int capacity = -1;
+    try {
+      capacity = Integer.parseInt(capacityString, 10);
+      if (capacity != 0 && (capacity < 256 || Integer.bitCount(capacity) != 1)) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(capacityString + " is not 0 or a power of two of at least 256 instructions");
+    }
+    return capacity;
+  }
+
+  public static long parseAllocationCheck(String warmupString) {
+    long warmup = -1;
+    try {
+      warmup = Long.parseLong(warmupString, 10);
+      if (warmup < 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      failWithUsage(warmupString + " is not a valid number of warm-up cycles");
+    }
+    return warmup;
+  }
+
+  public static boolean parseFlag(String name, String flagString) {
+    boolean flag = false;
+    switch (flagString.toLowerCase()) {
+      case "true":
+        flag = true;
+        break;
+      case "false":
+        flag = false;
+        break;
+      default:
+        failWithUsage(flagString + " is not a valid value for --" + name);
+    }
+    return flag;
+  }
+
+  public static void failWithUsage(String message) {
+    throw new UsageException(message);
   }
 
   public static void printUsage() {
-    String usage = "usage: Simulator protocol input_file cache_size associativity block_size";
-    String protocol = "\tprotocol: (MESI | MOESI | Dragon)";
+    String usage = "usage: Simulator protocol input_file cache_size associativity block_size [options]";
+    String protocol = "\tprotocol: (MESI | MOESI | Dragon | Directory)";
     String inputFile = "\tinput_file: benchmark located in data/ directory (e.g. blackscholes_four)";
     String cacheSize = "\tcache_size: cache size in bytes";
     String associativity = "\tassociativity: associativity of the cache";
     String blockSize = "\tblock_size: block size in bytes";
-    System.out.println(String.join("\n", usage, protocol, inputFile, cacheSize, associativity, blockSize));
+    String engine = "\t--engine=(CYCLE | EVENT | PARALLEL): step every cycle, skip cycles where nothing changes,\n"
+        + "\t\tor step every cycle with processors split across --threads=N threads";
+    String snoopFilter = "\t--snoop-filter: only snoop caches that hold the block";
+    String splitBus = "\t--split-bus=N: split memory accesses into request and response phases, with up to N in flight";
+    String arbitration = "\t--arbitration=(FIFO | ROUND_ROBIN | FIXED_PRIORITY | OLDEST_FIRST): order in which\n"
+        + "\t\twaiting caches are granted the bus, oldest first by when their access started (default FIFO)";
+    String llc = "\t--llc-size=BYTES: add a shared last-level cache between the bus and memory, with\n"
+        + "\t\t--llc-associativity=N (default " + DEFAULT_LLC_ASSOCIATIVITY + "), --llc-latency=N hit cycles (default "
+        + DEFAULT_LLC_LATENCY + ") and\n"
+        + "\t\t--llc-inclusion=(INCLUSIVE | NON_INCLUSIVE), evicting inclusive blocks from the private caches";
+    String replacement = "\t--replacement=(LRU | PLRU | RANDOM | FIFO | SRRIP | BRRIP): block evicted from a full set\n"
+        + "\t\tof every cache, with random choices drawn from --replacement-seed=N (default LRU, seed "
+        + DEFAULT_REPLACEMENT_SEED + ")";
+    String prefetcher = "\t--prefetcher=(NEXT_LINE | STRIDE | STREAM): prefetch the blocks predicted from the misses\n"
+        + "\t\tof every cache while the bus is idle, --prefetch-degree=N blocks ahead (default "
+        + DEFAULT_PREFETCH_DEGREE + ")";
+    String mshrs = "\t--mshrs=N: make the caches non-blocking with N MSHRs, merging misses to the same block, while\n"
+        + "\t\tthe processors go on with up to --issue-window=N loads and stores outstanding (default "
+        + DEFAULT_ISSUE_WINDOW + ").\n"
+        + "\t\tWith --split-bus, each cache has up to N misses in flight at once";
+    String storeBuffer = "\t--store-buffer=N: retire stores into a FIFO of N stores per core that are written to the\n"
+        + "\t\tcache in order in the background, forwarding them to later loads of the same address";
+    String tracePrefetch = "\t--trace-prefetch=N: decode each trace N instructions ahead on a background thread, 0 to\n"
+        + "\t\tread traces on the simulation thread (default " + PrefetchingInstructionSource.DEFAULT_CAPACITY + ")";
+    String profileBlocks = "\t--profile-blocks=K: report the K blocks with the most invalidations, updates,\n"
+        + "\t\tcache-to-cache transfers and misses";
+    String latencyHistograms = "\t--latency-histograms: report percentiles of load and store latency by where the\n"
+        + "\t\tblock came from, and of the wait for the bus";
+    String sample = "\t--sample-output=FILE: write the counters of every --sample-interval=N cycles to FILE as CSV,\n"
+        + "\t\tor binary if FILE ends in .bin (default " + IntervalSampler.DEFAULT_INTERVAL + " cycles)";
+    String checkpoint = "\t--checkpoint=FILE: save the simulation to FILE at cycle --checkpoint-at=N and then every\n"
+        + "\t\t--checkpoint-every=N cycles, to be resumed with --restore=FILE and the same arguments";
+    String fastForward = "\t--fast-forward=N: warm the caches with the first N instructions of every trace without\n"
+        + "\t\ttiming, then simulate the rest in detail with statistics starting from zero";
+    String sampling = "\t--sampling-period=N: simulate in detail only a window of --sampling-window=N instructions\n"
+        + "\t\tper core out of every N, after --sampling-warmup=N detailed instructions, warming the caches\n"
+        + "\t\tfunctionally in between, and estimate the full results with 95% confidence intervals\n"
+        + "\t\t(default window " + DEFAULT_SAMPLING_WINDOW + ", warm-up " + DEFAULT_SAMPLING_WARMUP + ")";
+    String allocationCheck = "\t--allocation-check=N: fail if the simulation allocates on the heap after N warm-up\n"
+        + "\t\tcycles";
+    String sweep = "\t--sweep: run every combination of comma separated lists or lo..hi doubling ranges, e.g.\n"
+        + "\t\tSimulator MESI,Dragon bodytrack_four 1024..65536 1,2,4 16..64 --sweep\n"
+        + "\t\t--sweep-threads=N: number of points run in parallel, defaults to the number of cores\n"
+        + "\t\t--sweep-output=FILE: also write the results table as CSV to FILE";
+    System.out.println(String.join("\n", usage, protocol, inputFile, cacheSize, associativity, blockSize, engine,
+        snoopFilter, splitBus, arbitration, llc, replacement, prefetcher, mshrs, storeBuffer, tracePrefetch,
+        profileBlocks, latencyHistograms, sample, checkpoint, fastForward, sampling, allocationCheck, sweep));
   }
 
-  public static void printStatistics(Bus bus, List<Processor> processors, List<Cache> caches) {
-    System.out.println("============ Simulation Statistics ============");
-    System.out.println("Overall Execution Cycle: " + simulatorCycle);
-    System.out.println("------------------- Bus --------------------");
-    printStatisticsMap(bus.getBusStatistics());
+  public void printStatistics() {
+    out.println("============ Simulation Statistics ============");
+    out.println("Overall Execution Cycle: " + simulatorCycle);
+    printSectionHeader(bus.getName());
+    printStatisticsMap(bus.getStatistics());
+    if (llc != null) {
+      printSectionHeader("LLC");
+      printStatisticsMap(llc.getStatistics());
+    }
     for (int i = 0; i < processors.size(); i++) {
-      System.out.printf("------------------ Core %d ------------------\n", i + 1);
+      out.printf("------------------ Core %d ------------------\n", i + 1);
       printStatisticsMap(processors.get(i).getProcessorStatistics());
       printStatisticsMap(caches.get(i).getCacheStatistics());
+      printStatisticsMap(bus.getRequesterStatistics(caches.get(i).getId()));
+      printStatisticsMap(processors.get(i).getLatencyStatistics());
+    }
+    if (estimator != null) {
+      printSectionHeader("Sampling Estimates");
+      printStatisticsMap(estimator.getStatistics());
     }
+    if (profiler != null) {
+      for (BlockProfiler.Metric metric : BlockProfiler.Metric.values()) {
+        printSectionHeader("Top " + metric.getTitle());
+        printStatisticsMap(profiler.getTopBlocks(metric));
+      }
+    }
+    if (reportTracePrefetch && !prefetchingSources.isEmpty()) {
+      printSectionHeader("Trace Prefetch");
+      printStatisticsMap(getPrefetchStatistics());
+    }
+    if (allocationCheckCycles > 0) {
+      Map<String, Number> allocation = new LinkedHashMap<>();
+      allocation.put("Measured Cycles", allocationStartBytes < 0 ? 0 : simulatorCycle - allocationStartCycle);
+      allocation.put("Allocated Bytes", allocatedBytes);
+      printSectionHeader("Allocation Check");
+      printStatisticsMap(allocation);
+    }
+  }
+
+  /**
+   * Totals of how often the simulation thread waited on the trace decoders
+   */
+  public Map<String, Number> getPrefetchStatistics() {
+    long stalls = 0;
+    long stallNanos = 0;
+    long fullWaits = 0;
+    for (PrefetchingInstructionSource source : prefetchingSources) {
+      stalls += source.getStalls();
+      stallNanos += source.getStallNanos();
+      fullWaits += source.getFullWaits();
+    }
+    Map<String, Number> map = new LinkedHashMap<>();
+    map.put("I/O Stalls", stalls);
+    map.put("I/O Stall Time (ms)", (float) (stallNanos / 1e6));
+    map.put("Decoder Full Waits", fullWaits);
+    return map;
+  }
+
+  private void printSectionHeader(String title) {
+    String padded = " " + title + " ";
+    int left = (44 - padded.length()) / 2;
+    out.println("-".repeat(left) + padded + "-".repeat(44 - padded.length() - left));
   }
 
-  public static void printStatisticsMap(Map<String, Number> map) {
+  public void printStatisticsMap(Map<String, Number> map) {
     map.forEach((k, v) -> {
       if (v instanceof Float) {
-        System.out.printf("%-28s %15.2f\n", k + ":", v);
+        out.printf("%-28s %15.2f\n", k + ":", v);
       } else {
-        System.out.printf("%-28s %15d\n", k + ":", v);
+        out.printf("%-28s %15d\n", k + ":", v);
       }
     });
   }
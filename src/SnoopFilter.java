@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+/**
+ * SnoopFilter tracks which caches hold each block, so that the bus only has to
+ * snoop the caches that actually share a block. It is an open addressing hash
+ * table from block number to a bitmask of cache ids, kept exact by CacheSet on
+ * every fill, eviction and invalidation.
+ */
+public class SnoopFilter {
+  private static final int EMPTY = -1;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private int blockSize;
+  private int words;
+  private int[] keys;
+  private long[] masks;
+  private int size = 0;
+
+  public SnoopFilter(int numCaches, int blockSize) {
+    this.blockSize = blockSize;
+    this.words = (numCaches + Long.SIZE - 1) / Long.SIZE;
+    allocate(INITIAL_CAPACITY);
+  }
+
+  public int getBlock(int address) {
+    return address / blockSize;
+  }
+
+  public void addSharer(int block, int cacheId) {
+    int slot = find(block);
+    if (slot < 0) {
+      if ((size + 1) * 2 > keys.length) {
+        resize(keys.length * 2);
+      }
+      slot = insert(block);
+      size++;
+    }
+    masks[slot * words + cacheId / Long.SIZE] |= 1L << (cacheId % Long.SIZE);
+  }
+
+  public void removeSharer(int block, int cacheId) {
+    int slot = find(block);
+    if (slot < 0) {
+      throw new RuntimeException("SnoopFilter does not track block, unable to remove sharer");
+    }
+    masks[slot * words + cacheId / Long.SIZE] &= ~(1L << (cacheId % Long.SIZE));
+    for (int i = 0; i < words; i++) {
+      if (masks[slot * words + i] != 0) {
+        return;
+      }
+    }
+    delete(slot);
+    size--;
+  }
+
+  /**
+   * Copies the sharer bitmask of the block containing address into sharers,
+   * which must hold at least getWords() longs.
+   */
+  public void getSharers(int address, long[] sharers) {
+    int slot = find(getBlock(address));
+    if (slot < 0) {
+      Arrays.fill(sharers, 0, words, 0);
+    } else {
+      System.arraycopy(masks, slot * words, sharers, 0, words);
+    }
+  }
+
+  public int getWords() {
+    return words;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  private int home(int block) {
+    return (block * 0x9E3779B9) >>> (Integer.SIZE - Integer.numberOfTrailingZeros(keys.length));
+  }
+
+  private int find(int block) {
+    int mask = keys.length - 1;
+    for (int slot = home(block);; slot = (slot + 1) & mask) {
+      if (keys[slot] == block) {
+        return slot;
+      }
+      if (keys[slot] == EMPTY) {
+        return -1;
+      }
+    }
+  }
+
+  private int insert(int block) {
+    int mask = keys.length - 1;
+    int slot = home(block);
+    while (keys[slot] != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = block;
+    return slot;
+  }
+
+  /**
+   * Removes a slot with backward shift deletion, so lookups never need
+   * tombstones.
+   */
+  private void delete(int slot) {
+    int mask = keys.length - 1;
+    int hole = slot;
+    for (int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+      int home = home(keys[next]);
+      boolean reachable = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+      if (reachable) {
+        continue;
+      }
+      keys[hole] = keys[next];
+      System.arraycopy(masks, next * words, masks, hole * words, words);
+      hole = next;
+    }
+    keys[hole] = EMPTY;
+    Arrays.fill(masks, hole * words, (hole + 1) * words, 0);
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    masks = new long[capacity * words];
+    Arrays.fill(keys, EMPTY);
+  }
+
+  private void resize(int capacity) {
+    int[] oldKeys = keys;
+    long[] oldMasks = masks;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = insert(oldKeys[i]);
+        System.arraycopy(oldMasks, i * words, masks, slot * words, words);
+      }
+    }
+  }
+}
@@ -0,0 +1,7 @@
+/**
+ * Response of a cache to a snooped transaction: whether it supplies the block,
+ * and whether the block it supplies is dirty
+ */
+public enum SnoopResult {
+  NONE, FLUSH, FLUSH_OPT
+}
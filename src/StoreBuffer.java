@@ -0,0 +1,75 @@
+import java.io.*;
+
+/**
+ * StoreBuffer holds the stores a processor has retired but not yet written to
+ * its cache, oldest first, in a ring of addresses. Stores leave in the order
+ * they entered, one at a time, so other processors see them in program order
+ * as x86-TSO requires, while later loads may go ahead of them.
+ */
+public class StoreBuffer {
+  private int[] addresses;
+  private int head = 0;
+  private int size = 0;
+
+  public StoreBuffer(int depth) {
+    this.addresses = new int[depth];
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean isFull() {
+    return size == addresses.length;
+  }
+
+  public void add(int address) {
+    if (isFull()) {
+      throw new RuntimeException("Adding a store to a full store buffer");
+    }
+    addresses[(head + size) % addresses.length] = address;
+    size++;
+  }
+
+  /**
+   * Address of the oldest store, the next to be written to the cache
+   */
+  public int peek() {
+    if (isEmpty()) {
+      throw new RuntimeException("Peeking into an empty store buffer");
+    }
+    return addresses[head];
+  }
+
+  public void remove() {
+    if (isEmpty()) {
+      throw new RuntimeException("Removing a store from an empty store buffer");
+    }
+    head = (head + 1) % addresses.length;
+    size--;
+  }
+
+  /**
+   * Whether a load from address can take its value from a buffered store
+   */
+  public boolean contains(int address) {
+    for (int i = 0; i < size; i++) {
+      if (addresses[(head + i) % addresses.length] == address) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void writeState(DataOutputStream out) throws IOException {
+    Checkpoint.writeInts(out, addresses);
+    out.writeInt(head);
+    out.writeInt(size);
+  }
+
+  public void readState(DataInputStream in) throws IOException {
+    Checkpoint.readInts(in, addresses);
+    head = in.readInt();
+    size = in.readInt();
+  }
+}
@@ -0,0 +1,223 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sweep runs the simulator on every combination of a grid of protocols, input
+ * files, cache geometries and replacement policies in parallel, and prints
+ * one results table.
+ */
+public class Sweep {
+  private static final String[] COLUMNS = { "Protocol", "Input", "Cache Size", "Associativity", "Block Size",
+      "Replacement", "Cycles", "Traffic (bytes)", "Invalidations", "Updates", "Miss Rate (%)", "Evictions",
+      "Idle Cycles" };
+
+  /**
+   * A single point of the grid, filled in with its results once run
+   */
+  static class Point {
+    Simulator.Protocol protocol;
+    String inputFile;
+    int cacheSize;
+    int associativity;
+    int blockSize;
+    ReplacementPolicy.Type replacement;
+    List<String> results = Collections.emptyList();
+
+    Point(Simulator.Protocol protocol, String inputFile, int cacheSize, int associativity, int blockSize,
+        ReplacementPolicy.Type replacement) {
+      this.protocol = protocol;
+      this.inputFile = inputFile;
+      this.cacheSize = cacheSize;
+      this.associativity = associativity;
+      this.blockSize = blockSize;
+      this.replacement = replacement;
+    }
+  }
+
+  private List<Point> points = new ArrayList<>();
+  private Map<String, String> options;
+  private int threads;
+  private String outputFile;
+
+  public Sweep(List<String> positional, Map<String, String> options) {
+    List<Simulator.Protocol> protocols = new ArrayList<>();
+    for (String protocol : positional.get(0).split(",")) {
+      protocols.add(Simulator.parseProtocol(protocol));
+    }
+    List<String> inputFiles = Arrays.asList(positional.get(1).split(","));
+    List<Integer> cacheSizes = parseRange(positional.size() < 3 ? "4096" : positional.get(2));
+    List<Integer> associativities = parseRange(positional.size() < 4 ? "2" : positional.get(3));
+    List<Integer> blockSizes = parseRange(positional.size() < 5 ? "32" : positional.get(4));
+    cacheSizes.forEach(size -> Simulator.parseCacheSize(size.toString()));
+    associativities.forEach(associativity -> Simulator.parseAssociativity(associativity.toString()));
+    blockSizes.forEach(size -> Simulator.parseBlockSize(size.toString()));
+    List<ReplacementPolicy.Type> replacements = new ArrayList<>();
+    for (String replacement : options.getOrDefault("replacement", "lru").split(",")) {
+      replacements.add(Simulator.parseReplacement(replacement));
+    }
+
+    for (Simulator.Protocol protocol : protocols) {
+      for (String inputFile : inputFiles) {
+        for (int cacheSize : cacheSizes) {
+          for (int associativity : associativities) {
+            for (int blockSize : blockSizes) {
+              for (ReplacementPolicy.Type replacement : replacements) {
+                points.add(new Point(protocol, inputFile, cacheSize, associativity, blockSize, replacement));
+              }
+            }
+          }
+        }
+      }
+    }
+
+    if (options.containsKey("sample-output") || options.containsKey("checkpoint") || options.containsKey("restore")
+        || options.containsKey("sampling-period")) {
+      Simulator.failWithUsage("--sample-output, --checkpoint, --restore and --sampling-period apply to a single "
+          + "simulation, so cannot be used with --sweep");
+    }
+    this.options = options;
+    this.threads = Runtime.getRuntime().availableProcessors();
+    if (options.containsKey("sweep-threads")) {
+      this.threads = parseThreads(options.get("sweep-threads"));
+    }
+    this.outputFile = options.get("sweep-output");
+  }
+
+  public void run(PrintStream out) throws InterruptedException, IOException {
+    out.printf("...Running %d points on %d threads\n", points.size(), threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (Point point : points) {
+        futures.add(executor.submit(() -> runPoint(point)));
+      }
+      for (int i = 0; i < points.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (ExecutionException e) {
+          points.get(i).results = List.of("error: " + e.getCause().getMessage());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    out.printf("...Sweep completed!\n\n");
+
+    printTable(out);
+    if (outputFile != null) {
+      try (PrintStream csv = new PrintStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+        csv.println(String.join(",", COLUMNS));
+        for (Point point : points) {
+          csv.println(String.join(",", getRow(point)));
+        }
+      }
+      out.println("...Results written to " + outputFile);
+    }
+  }
+
+  private void runPoint(Point point) {
+    Map<String, String> pointOptions = new HashMap<>(options);
+    pointOptions.put("replacement", point.replacement.toString());
+    Simulator simulator = new Simulator(point.protocol, point.inputFile, point.cacheSize, point.associativity,
+        point.blockSize, pointOptions, new PrintStream(OutputStream.nullOutputStream()));
+    simulator.run();
+
+    Map<String, Number> busStatistics = simulator.getBus().getStatistics();
+    long accesses = 0;
+    long misses = 0;
+    long evictions = 0;
+    for (Cache cache : simulator.getCaches()) {
+      Map<String, Number> cacheStatistics = cache.getCacheStatistics();
+      accesses += cacheStatistics.get("Cache Accesses").longValue();
+      misses += cacheStatistics.get("Cache Misses").longValue();
+      evictions += cacheStatistics.get("Cache Evictions").longValue();
+    }
+    long idleCycles = 0;
+    for (Processor processor : simulator.getProcessors()) {
+      idleCycles += processor.getProcessorStatistics().get("Idle Cycles").longValue();
+    }
+
+    point.results = List.of(Long.toString(simulator.getSimulatorCycle()),
+        busStatistics.getOrDefault("Bus Traffic (bytes)", busStatistics.get("Network Traffic (bytes)")).toString(),
+        busStatistics.getOrDefault("Invalidations", 0).toString(),
+        busStatistics.getOrDefault("Updates", 0).toString(),
+        String.format("%.2f", (float) misses / accesses * 100),
+        Long.toString(evictions), Long.toString(idleCycles));
+  }
+
+  private List<String> getRow(Point point) {
+    List<String> row = new ArrayList<>(List.of(point.protocol.toString(), point.inputFile,
+        Integer.toString(point.cacheSize), Integer.toString(point.associativity), Integer.toString(point.blockSize),
+        point.replacement.toString()));
+    row.addAll(point.results);
+    return row;
+  }
+
+  private void printTable(PrintStream out) {
+    int[] widths = new int[COLUMNS.length];
+    for (int i = 0; i < COLUMNS.length; i++) {
+      widths[i] = COLUMNS[i].length();
+    }
+    for (Point point : points) {
+      List<String> row = getRow(point);
+      for (int i = 0; i < row.size() && i < widths.length; i++) {
+        widths[i] = Integer.max(widths[i], row.get(i).length());
+      }
+    }
+    printRow(out, Arrays.asList(COLUMNS), widths);
+    for (Point point : points) {
+      printRow(out, getRow(point), widths);
+    }
+  }
+
+  private static void printRow(PrintStream out, List<String> row, int[] widths) {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < row.size(); i++) {
+      String format = i < 2 ? "%-" + widths[i] + "s  " : "%" + (i < widths.length ? widths[i] : 0) + "s  ";
+      line.append(String.format(format, row.get(i)));
+    }
+    out.println(line.toString().stripTrailing());
+  }
+
+  /**
+   * Parses a comma separated list of values, each of which may be a lo..hi
+   * range that doubles from lo up to hi.
+   */
+  public static List<Integer> parseRange(String rangeString) {
+    List<Integer> values = new ArrayList<>();
+    for (String part : rangeString.split(",")) {
+      try {
+        int separator = part.indexOf("..");
+        if (separator < 0) {
+          values.add(Integer.parseInt(part, 10));
+          continue;
+        }
+        int lo = Integer.parseInt(part.substring(0, separator), 10);
+        int hi = Integer.parseInt(part.substring(separator + 2), 10);
+        if (lo <= 0 || hi < lo) {
+          throw new NumberFormatException();
+        }
+        for (long value = lo; value <= hi; value *= 2) {
+          values.add((int) value);
+        }
+      } catch (NumberFormatException e) {
+        Simulator.failWithUsage(part + " is not a valid value or range");
+      }
+    }
+    return values;
+  }
+
+  public static int parseThreads(String threadsString) {
+    int threads = -1;
+    try {
+      threads = Integer.parseInt(threadsString, 10);
+      if (threads <= 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      Simulator.failWithUsage(threadsString + " is not a valid number of threads");
+    }
+    return threads;
+  }
+}
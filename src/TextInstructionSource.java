@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * TextInstructionSource reads a text trace with one "type 0xvalue"
+ * instruction per line. The trace is parsed directly from a reusable direct
+ * buffer, so no Strings or tokens are created per instruction.
+ */
+public class TextInstructionSource implements InstructionSource {
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final int EOF = -1;
+
+  private ReadableByteChannel channel;
+  private String name;
+  private ByteBuffer buffer;
+  private long line = 1;
+
+  // Current instruction
+  private int value;
+
+  public TextInstructionSource(File file) throws IOException {
+    this(FileChannel.open(file.toPath(), StandardOpenOption.READ), file.getName());
+  }
+
+  public TextInstructionSource(ReadableByteChannel channel, String name) {
+    this.channel = channel;
+    this.name = name;
+    this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    this.buffer.flip();
+  }
+
+  @Override
+  public boolean hasNext() {
+    skipWhitespace();
+    return peek() != EOF;
+  }
+
+  @Override
+  public Instruction.Type next() {
+    skipWhitespace();
+    int instType = parseDecimal();
+    Instruction.Type type;
+    switch (instType) {
+      case 0:
+        type = Instruction.Type.LOAD;
+        break;
+      case 1:
+        type = Instruction.Type.STORE;
+        break;
+      case 2:
+        type = Instruction.Type.OTHER;
+        break;
+      default:
+        throw mismatch("Unknown instruction code :" + instType);
+    }
+
+    skipWhitespace();
+    value = parseHex();
+    return type;
+  }
+
+  @Override
+  public int getValue() {
+    return value;
+  }
+
+  @Override
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private int parseDecimal() {
+    long result = 0;
+    int digits = 0;
+    for (int c = peek(); c >= '0' && c <= '9'; c = peek()) {
+      result = result * 10 + (c - '0');
+      if (result > Integer.MAX_VALUE) {
+        throw mismatch("Instruction code out of range");
+      }
+      buffer.get();
+      digits++;
+    }
+    if (digits == 0) {
+      throw mismatch("Expected instruction code");
+    }
+    return (int) result;
+  }
+
+  private int parseHex() {
+    if (peek() != '0') {
+      throw mismatch("Expected hexadecimal value");
+    }
+    buffer.get();
+    int x = peek();
+    if (x != 'x' && x != 'X') {
+      throw mismatch("Expected hexadecimal value");
+    }
+    buffer.get();
+
+    long result = 0;
+    int digits = 0;
+    for (int c = peek(); c != EOF; c = peek()) {
+      int digit = Character.digit(c, 16);
+      if (digit < 0) {
+        break;
+      }
+      result = (result << 4) | digit;
+      if (result > Integer.MAX_VALUE) {
+        throw mismatch("Value out of range");
+      }
+      buffer.get();
+      digits++;
+    }
+    if (digits == 0) {
+      throw mismatch("Expected hexadecimal value");
+    }
+    return (int) result;
+  }
+
+  private void skipWhitespace() {
+    for (int c = peek(); c == ' ' || c == '\t' || c == '\r' || c == '\n'; c = peek()) {
+      if (c == '\n') {
+        line++;
+      }
+      buffer.get();
+    }
+  }
+
+  private int peek() {
+    if (!buffer.hasRemaining() && !fill()) {
+      return EOF;
+    }
+    return buffer.get(buffer.position()) & 0xff;
+  }
+
+  private boolean fill() {
+    try {
+      buffer.clear();
+      int read = 0;
+      while (read == 0) {
+        read = channel.read(buffer);
+      }
+      buffer.flip();
+      return read > 0;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private InputMismatchException mismatch(String message) {
+    return new InputMismatchException(name + ":" + line + ": " + message);
+  }
+}
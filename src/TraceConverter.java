@@ -0,0 +1,213 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * TraceConverter converts the text traces of a benchmark in the data/
+ * directory into binary traces read by BinaryInstructionSource, optionally
+ * compressing them with gzip or into independently inflated blocks.
+ */
+public class TraceConverter {
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final int MAX_TEXT_RECORD_SIZE = 13;
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+  enum Compression {
+    NONE, GZIP, BLOCK
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      exitWithUsage("insufficient arguments");
+    }
+    File inputDirectory = new File("./data/" + args[0]);
+    File outputDirectory = new File("./data/" + args[1]);
+    BinaryInstructionSource.Encoding encoding = args.length < 3 ? BinaryInstructionSource.Encoding.DELTA
+        : parseEncoding(args[2]);
+    Compression compression = args.length < 4 ? Compression.NONE : parseCompression(args[3]);
+    if (!inputDirectory.isDirectory()) {
+      exitWithUsage(inputDirectory + " is not a valid directory");
+    }
+    if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+      exitWithUsage(outputDirectory + " could not be created");
+    }
+
+    File[] files = inputDirectory.listFiles();
+    Arrays.sort(files);
+    for (File file : files) {
+      File output = new File(outputDirectory, file.getName() + (compression == Compression.GZIP ? ".gz" : ""));
+      long count = convert(file, output, encoding, compression);
+      System.out.printf("...%s: %d instructions, %d -> %d bytes\n", file.getName(), count, file.length(),
+          output.length());
+    }
+  }
+
+  public static long convert(File input, File output, BinaryInstructionSource.Encoding encoding)
+      throws IOException {
+    return convert(input, output, encoding, Compression.NONE);
+  }
+
+  /**
+   * Converts a trace, writing it back as text if encoding is null.
+   */
+  public static long convert(File input, File output, BinaryInstructionSource.Encoding encoding,
+      Compression compression) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    long count = 0;
+    try (InstructionSource source = InstructionSource.open(input);
+        WritableByteChannel channel = openOutput(output, compression)) {
+      if (encoding == null) {
+        while (source.hasNext()) {
+          if (buffer.remaining() < MAX_TEXT_RECORD_SIZE) {
+            drain(buffer, channel);
+          }
+          Instruction.Type type = source.next();
+          putTextRecord(buffer, type, source.getValue());
+          count++;
+        }
+        drain(buffer, channel);
+        return count;
+      }
+
+      buffer.order(ByteOrder.BIG_ENDIAN).putInt(BinaryInstructionSource.MAGIC).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.put(BinaryInstructionSource.VERSION);
+      buffer.put((byte) encoding.ordinal());
+      buffer.putShort((short) 0);
+
+      int previousAddress = 0;
+      while (source.hasNext()) {
+        if (buffer.remaining() < BinaryInstructionSource.MAX_RECORD_SIZE) {
+          drain(buffer, channel);
+        }
+        Instruction.Type type = source.next();
+        int value = source.getValue();
+        buffer.put((byte) type.ordinal());
+        switch (encoding) {
+          case FIXED:
+            buffer.putInt(value);
+            break;
+          case DELTA:
+            if (type == Instruction.Type.OTHER) {
+              putVarint(buffer, value);
+            } else {
+              int delta = value - previousAddress;
+              putVarint(buffer, (delta << 1) ^ (delta >> 31));
+              previousAddress = value;
+            }
+            break;
+        }
+        count++;
+      }
+      drain(buffer, channel);
+    }
+    return count;
+  }
+
+  private static WritableByteChannel openOutput(File output, Compression compression) throws IOException {
+    switch (compression) {
+      case GZIP:
+        return Channels.newChannel(new GZIPOutputStream(new FileOutputStream(output), BUFFER_SIZE));
+      case BLOCK:
+        return Channels.newChannel(new BlockCompressedOutputStream(new FileOutputStream(output),
+            BlockCompressedOutputStream.DEFAULT_BLOCK_SIZE));
+      default:
+        return FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    }
+  }
+
+  /**
+   * Writes a "type 0xvalue" line, which is at most MAX_TEXT_RECORD_SIZE bytes
+   */
+  private static void putTextRecord(ByteBuffer buffer, Instruction.Type type, int value) {
+    buffer.put((byte) ('0' + type.ordinal()));
+    buffer.put((byte) ' ');
+    buffer.put((byte) '0');
+    buffer.put((byte) 'x');
+    int shift = 28;
+    while (shift > 0 && (value >>> shift) == 0) {
+      shift -= 4;
+    }
+    for (; shift >= 0; shift -= 4) {
+      buffer.put(HEX_DIGITS[(value >>> shift) & 0xf]);
+    }
+    buffer.put((byte) '\n');
+  }
+
+  private static void putVarint(ByteBuffer buffer, int value) {
+    while ((value & ~0x7f) != 0) {
+      buffer.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Parses a binary encoding, or TEXT which is returned as null
+   */
+  public static BinaryInstructionSource.Encoding parseEncoding(String encodingString) {
+    BinaryInstructionSource.Encoding encoding = BinaryInstructionSource.Encoding.DELTA;
+    switch (encodingString.toLowerCase()) {
+      case "text":
+        encoding = null;
+        break;
+      case "fixed":
+        encoding = BinaryInstructionSource.Encoding.FIXED;
+        break;
+      case "delta":
+        encoding = BinaryInstructionSource.Encoding.DELTA;
+        break;
+      default:
+        exitWithUsage(encodingString + " is not a recognized encoding");
+    }
+    return encoding;
+  }
+
+  public static Compression parseCompression(String compressionString) {
+    Compression compression = Compression.NONE;
+    switch (compressionString.toLowerCase()) {
+      case "none":
+        compression = Compression.NONE;
+        break;
+      case "gzip":
+        compression = Compression.GZIP;
+        break;
+      case "block":
+        compression = Compression.BLOCK;
+        break;
+      default:
+        exitWithUsage(compressionString + " is not a recognized compression");
+    }
+    return compression;
+  }
+
+  public static void exitWithUsage(String message) {
+    System.out.println("Error: " + message);
+    printUsage();
+    System.exit(1);
+  }
+
+  public static void printUsage() {
+    String usage = "usage: TraceConverter input_file output_file [encoding] [compression]";
+    String inputFile = "\tinput_file: benchmark located in data/ directory (e.g. blackscholes_four)";
+    String outputFile = "\toutput_file: benchmark to create in data/ directory";
+    String encoding = "\tencoding: (FIXED | DELTA | TEXT), defaults to DELTA";
+    String compression = "\tcompression: (NONE | GZIP | BLOCK), defaults to NONE;\n"
+        + "\t\tBLOCK traces are inflated in parallel";
+    System.out.println(String.join("\n", usage, inputFile, outputFile, encoding, compression));
+  }
+}
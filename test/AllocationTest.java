@@ -0,0 +1,52 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * AllocationTest runs every protocol under the cycle and event engines with
+ * --allocation-check, and fails if the simulation thread allocates more on the
+ * heap once it has warmed up, as ThreadMXBean reports it, than the few one-off
+ * allocations of the JVM that Simulator.ALLOCATION_CHECK_SLACK tolerates.
+ */
+public class AllocationTest {
+  private static final String BENCHMARK = "bodytrack_four";
+  private static final long WARMUP_CYCLES = 1000000;
+  private static final List<String> CONFIGURATIONS = List.of("", "--snoop-filter", "--split-bus=8",
+      "--mshrs=4 --store-buffer=8", "--split-bus=8 --mshrs=4", "--trace-prefetch=0");
+
+  public static void main(String[] args) {
+    int failures = 0;
+    for (Simulator.Protocol protocol : Simulator.Protocol.values()) {
+      for (Simulator.Engine engine : List.of(Simulator.Engine.CYCLE, Simulator.Engine.EVENT)) {
+        for (String configuration : CONFIGURATIONS) {
+          if (protocol == Simulator.Protocol.DIRECTORY
+              && (configuration.contains("snoop-filter") || configuration.contains("split-bus"))) {
+            continue;
+          }
+          Map<String, String> options = Simulator.parseOptions(configuration.split(" "), new ArrayList<>());
+          options.put("engine", engine.toString());
+          options.put("allocation-check", String.valueOf(WARMUP_CYCLES));
+          Simulator simulator = new Simulator(protocol, BENCHMARK, 1024, 2, 16, options,
+              new PrintStream(OutputStream.nullOutputStream()));
+          simulator.run();
+
+          String name = String.format("%s %s %s", protocol, engine, configuration).trim();
+          long allocated = simulator.getSteadyStateAllocatedBytes();
+          if (simulator.getSimulatorCycle() <= WARMUP_CYCLES) {
+            System.out.printf("FAIL %s: the simulation ended within the warm-up\n", name);
+            failures++;
+          } else if (allocated > Simulator.ALLOCATION_CHECK_SLACK) {
+            System.out.printf("FAIL %s: allocated %d bytes after warming up\n", name, allocated);
+            failures++;
+          } else {
+            System.out.printf("ok   %s: %d bytes\n", name, allocated);
+          }
+        }
+      }
+    }
+    if (failures > 0) {
+      System.out.printf("%d allocation checks failed\n", failures);
+      System.exit(1);
+    }
+  }
+}
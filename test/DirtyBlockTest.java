@@ -0,0 +1,288 @@
+import java.util.*;
+
+/**
+ * DirtyBlockTest runs a core whose loads and stores all map to one set of a
+ * small cache, with more MSHRs than the set has ways, on a split-transaction
+ * bus. Every protocol and replacement policy must conserve the dirty blocks:
+ * each block a store makes dirty is written back exactly once or is still
+ * dirty at the end, and no block is evicted or written back while its own
+ * data is still on the bus.
+ */
+public class DirtyBlockTest {
+  private static final int CACHE_SIZE = 64;
+  private static final int ASSOCIATIVITY = 2;
+  private static final int BLOCK_SIZE = 16;
+  private static final int MSHRS = 8;
+  private static final int MAX_OUTSTANDING = 8;
+  private static final int ACCESSES = 4000;
+  private static final int BLOCKS = 12;
+  private static final long MAX_CYCLES = 10000000;
+  private static final List<ReplacementPolicy.Type> REPLACEMENTS = List.of(ReplacementPolicy.Type.LRU,
+      ReplacementPolicy.Type.PLRU, ReplacementPolicy.Type.RANDOM, ReplacementPolicy.Type.SRRIP);
+
+  /**
+   * Loads and stores to the blocks of set 0, revisiting them in a scrambled
+   * order, with every third access a load
+   */
+  private static class AccessSource implements InstructionSource {
+    private int index = 0;
+
+    @Override
+    public boolean hasNext() {
+      return index < ACCESSES;
+    }
+
+    @Override
+    public Instruction.Type next() {
+      index++;
+      return index % 3 == 0 ? Instruction.Type.LOAD : Instruction.Type.STORE;
+    }
+
+    @Override
+    public int getValue() {
+      int block = (index * 7) % BLOCKS;
+      return block * CACHE_SIZE / ASSOCIATIVITY;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Counts the dirty blocks of a cache as they are made, written back and
+   * fetched, and the errors it finds
+   */
+  private static class Tracker {
+    Cache cache;
+    Set<Integer> fetching = new HashSet<>();
+    long madeDirty = 0;
+    long writtenBack = 0;
+    List<String> errors = new ArrayList<>();
+
+    boolean isDirty(int address) {
+      BlockState state = cache.getBlockState(address);
+      return state != null && cache.isDirty(state);
+    }
+
+    void countMadeDirty(int address, boolean wasDirty) {
+      if (!wasDirty && isDirty(address)) {
+        madeDirty++;
+      }
+    }
+
+    void checkAccess(BusTransaction transaction) {
+      if (transaction.getTransition() == Transition.FLUSH) {
+        writtenBack++;
+        int block = transaction.getAddress() / BLOCK_SIZE;
+        if (fetching.contains(block)) {
+          errors.add("block " + block + " was written back before its data arrived");
+        }
+      }
+    }
+
+    /**
+     * Checks that the blocks being fetched are still cached, as nothing else
+     * snoops them
+     */
+    void checkFetching() {
+      for (int block : fetching) {
+        if (cache.getBlockState(block * BLOCK_SIZE) == null) {
+          errors.add("block " + block + " was evicted before its data arrived");
+        }
+      }
+    }
+
+    long countResidentDirty() {
+      long dirty = 0;
+      for (int block = 0; block < BLOCKS; block++) {
+        if (isDirty(block * CACHE_SIZE / ASSOCIATIVITY)) {
+          dirty++;
+        }
+      }
+      return dirty;
+    }
+  }
+
+  public static void main(String[] args) {
+    int failures = 0;
+    for (Simulator.Protocol protocol : List.of(Simulator.Protocol.MESI, Simulator.Protocol.MOESI,
+        Simulator.Protocol.DRAGON)) {
+      for (ReplacementPolicy.Type replacement : REPLACEMENTS) {
+        String name = protocol + " " + replacement;
+        List<String> errors = run(protocol, replacement);
+        if (errors.isEmpty()) {
+          System.out.printf("ok   %s\n", name);
+        } else {
+          System.out.printf("FAIL %s: %s\n", name, errors.get(0));
+          failures++;
+        }
+      }
+    }
+    if (failures > 0) {
+      System.out.printf("%d dirty block checks failed\n", failures);
+      System.exit(1);
+    }
+  }
+
+  private static List<String> run(Simulator.Protocol protocol, ReplacementPolicy.Type replacement) {
+    Bus bus = new Bus();
+    bus.setSplitTransactions(MAX_OUTSTANDING, BLOCK_SIZE);
+    Tracker tracker = new Tracker();
+    tracker.cache = createCache(protocol, bus, tracker);
+    tracker.cache.setReplacementPolicy(replacement, 1);
+    Processor processor = new Processor(new AccessSource(), tracker.cache);
+    processor.setNonBlocking(MSHRS, MSHRS);
+
+    long cycle = 0;
+    while (processor.state != Processor.ProcessorState.DONE || !bus.isIdle()) {
+      if (++cycle > MAX_CYCLES) {
+        tracker.errors.add("the simulation did not finish within " + MAX_CYCLES + " cycles");
+        return tracker.errors;
+      }
+      if (processor.state != Processor.ProcessorState.DONE) {
+        processor.tick();
+      }
+      bus.tick();
+      bus.tock();
+      if (processor.state != Processor.ProcessorState.DONE) {
+        processor.tock();
+      }
+      tracker.checkFetching();
+    }
+    long residentDirty = tracker.countResidentDirty();
+    if (tracker.madeDirty != tracker.writtenBack + residentDirty) {
+      tracker.errors.add(String.format("%d blocks were made dirty but %d were written back and %d are still dirty",
+          tracker.madeDirty, tracker.writtenBack, residentDirty));
+    }
+    if (tracker.writtenBack == 0) {
+      tracker.errors.add("no block was written back");
+    }
+    return tracker.errors;
+  }
+
+  /**
+   * A cache of the protocol that reports its stores, fills and writebacks to
+   * tracker
+   */
+  private static Cache createCache(Simulator.Protocol protocol, Bus bus, Tracker tracker) {
+    switch (protocol) {
+      case MESI:
+        return new MesiCache(bus, CACHE_SIZE, ASSOCIATIVITY, BLOCK_SIZE) {
+          @Override
+          protected void prWr(int address) {
+            boolean wasDirty = tracker.isDirty(address);
+            super.prWr(address);
+            tracker.countMadeDirty(address, wasDirty);
+          }
+
+          @Override
+          public BusTransaction accessBus() {
+            BusTransaction transaction = super.accessBus();
+            tracker.checkAccess(transaction);
+            return transaction;
+          }
+
+          @Override
+          public void exitBus(BusTransaction result) {
+            boolean wasDirty = tracker.isDirty(result.getAddress());
+            super.exitBus(result);
+            tracker.countMadeDirty(result.getAddress(), wasDirty);
+          }
+
+          @Override
+          public boolean detachFetch(BusTransaction result) {
+            boolean detached = super.detachFetch(result);
+            if (detached) {
+              tracker.fetching.add(result.getAddress() / BLOCK_SIZE);
+            }
+            return detached;
+          }
+
+          @Override
+          public void completeFetch(BusTransaction result) {
+            tracker.fetching.remove(result.getAddress() / BLOCK_SIZE);
+            super.completeFetch(result);
+          }
+        };
+      case MOESI:
+        return new MoesiCache(bus, CACHE_SIZE, ASSOCIATIVITY, BLOCK_SIZE) {
+          @Override
+          protected void prWr(int address) {
+            boolean wasDirty = tracker.isDirty(address);
+            super.prWr(address);
+            tracker.countMadeDirty(address, wasDirty);
+          }
+
+          @Override
+          public BusTransaction accessBus() {
+            BusTransaction transaction = super.accessBus();
+            tracker.checkAccess(transaction);
+            return transaction;
+          }
+
+          @Override
+          public void exitBus(BusTransaction result) {
+            boolean wasDirty = tracker.isDirty(result.getAddress());
+            super.exitBus(result);
+            tracker.countMadeDirty(result.getAddress(), wasDirty);
+          }
+
+          @Override
+          public boolean detachFetch(BusTransaction result) {
+            boolean detached = super.detachFetch(result);
+            if (detached) {
+              tracker.fetching.add(result.getAddress() / BLOCK_SIZE);
+            }
+            return detached;
+          }
+
+          @Override
+          public void completeFetch(BusTransaction result) {
+            tracker.fetching.remove(result.getAddress() / BLOCK_SIZE);
+            super.completeFetch(result);
+          }
+        };
+      case DRAGON:
+        return new DragonCache(bus, CACHE_SIZE, ASSOCIATIVITY, BLOCK_SIZE) {
+          @Override
+          protected void prWr(int address) {
+            boolean wasDirty = tracker.isDirty(address);
+            super.prWr(address);
+            tracker.countMadeDirty(address, wasDirty);
+          }
+
+          @Override
+          public BusTransaction accessBus() {
+            BusTransaction transaction = super.accessBus();
+            tracker.checkAccess(transaction);
+            return transaction;
+          }
+
+          @Override
+          public void exitBus(BusTransaction result) {
+            boolean wasDirty = tracker.isDirty(result.getAddress());
+            super.exitBus(result);
+            tracker.countMadeDirty(result.getAddress(), wasDirty);
+          }
+
+          @Override
+          public boolean detachFetch(BusTransaction result) {
+            boolean detached = super.detachFetch(result);
+            if (detached) {
+              tracker.fetching.add(result.getAddress() / BLOCK_SIZE);
+            }
+            return detached;
+          }
+
+          @Override
+          public void completeFetch(BusTransaction result) {
+            tracker.fetching.remove(result.getAddress() / BLOCK_SIZE);
+            super.completeFetch(result);
+          }
+        };
+      default:
+        throw new RuntimeException("Dirty blocks are only checked for the snooping protocols");
+    }
+  }
+}